@@ -0,0 +1,74 @@
+package com.chavna.pantryproject;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * ImagePreprocessor.prepare on synthetic phone photos, next to a plain full decode of the same upload.
+ * Setup prints how many bytes would be sent to Textract before and after preprocessing.
+ * ./gradlew jmh -Pjmh.includes=ImagePreprocessorBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ImagePreprocessorBenchmark {
+    // width x height of the uploaded photo
+    @Param({"1200x1600", "3024x4032"})
+    public String size;
+
+    private byte[] upload;
+    private ImagePreprocessor preprocessor;
+
+    @Setup
+    public void setup() throws IOException {
+        int width = Integer.parseInt(size.split("x")[0]);
+        int height = Integer.parseInt(size.split("x")[1]);
+
+        BufferedImage photo = SyntheticReceipts.photo(width, height, width / 5, height / 4);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(photo, "JPG", bytes);
+        upload = bytes.toByteArray();
+
+        preprocessor = ImagePreprocessor.builder()
+            .recognizer((byte[] image) -> new ReceiptGeometry(0))
+            .maxWidth(1600)
+            .maxHeight(16000)
+            .jpegQuality(0.85f)
+            .threads(1)
+            .maxQueued(1)
+            .build();
+
+        System.out.println();
+        System.out.println(size + ": uploaded " + upload.length + " bytes, prepared " + preprocessor.prepare(upload).image.length + " bytes");
+    }
+
+    @Benchmark
+    public BufferedImage decodeOnly() throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(upload));
+    }
+
+    @Benchmark
+    public byte[] prepare() {
+        return preprocessor.prepare(upload).image;
+    }
+}
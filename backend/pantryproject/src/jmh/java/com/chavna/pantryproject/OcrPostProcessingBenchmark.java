@@ -0,0 +1,57 @@
+package com.chavna.pantryproject;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.chavna.pantryproject.ReceiptParser.Word;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/***
+ * Everything scan-receipt does after Textract answers: straightening, word boxes, lines and the JSON.
+ * Word/Point objects vs ReceiptGeometry. Add -Pjmh.profilers=gc for allocation per call.
+ * ./gradlew jmh -Pjmh.includes=OcrPostProcessingBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class OcrPostProcessingBenchmark {
+    @Param({"100", "500", "1000", "5000"})
+    public int wordCount;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private List<String> texts;
+    private List<float[]> polygons;
+
+    @Setup
+    public void setup() {
+        List<Word> words = SyntheticReceipts.generate(wordCount, 0);
+        texts = SyntheticReceipts.texts(words);
+        polygons = SyntheticReceipts.skewedPolygons(words, 0.05);
+    }
+
+    @Benchmark
+    public byte[] geometry() throws JsonProcessingException {
+        return mapper.writeValueAsBytes(ReceiptGeometryTests.geometry(texts, polygons));
+    }
+
+    @Benchmark
+    public byte[] legacy() throws JsonProcessingException {
+        return mapper.writeValueAsBytes(LegacyOcrPostProcessing.process(texts, polygons));
+    }
+}
@@ -0,0 +1,80 @@
+package com.chavna.pantryproject;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Collection;
+import java.util.List;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+/***
+ * The most heap, and the most direct and mapped buffer memory, in use at once during each iteration. Sampled every
+ * 10 ms, so it can miss short spikes, and heap in use includes garbage that hasn't been collected yet.
+ * -Pjmh.profilers=com.chavna.pantryproject.PeakMemoryProfiler
+ */
+public class PeakMemoryProfiler implements InternalProfiler {
+    private static final long SAMPLE_INTERVAL_MILLIS = 10;
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final List<BufferPoolMXBean> bufferPools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+
+    private volatile boolean sampling;
+    private volatile long peakHeap;
+    private volatile long peakOffHeap;
+    private Thread sampler;
+
+    @Override
+    public String getDescription() {
+        return "Peak heap and off-heap buffer memory";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+        peakHeap = 0;
+        peakOffHeap = 0;
+        sampling = true;
+
+        sampler = new Thread(this::sample, "peak-memory-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    @Override
+    public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams, IterationResult result) {
+        sampling = false;
+        try {
+            sampler.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        return List.of(
+            new ScalarResult("peak.heap", peakHeap / (1024.0 * 1024.0), "MB", AggregationPolicy.MAX),
+            new ScalarResult("peak.offheap", peakOffHeap / (1024.0 * 1024.0), "MB", AggregationPolicy.MAX)
+        );
+    }
+
+    private void sample() {
+        while (sampling) {
+            peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+
+            long offHeap = 0;
+            for (BufferPoolMXBean pool : bufferPools)
+                offHeap += pool.getMemoryUsed();
+            peakOffHeap = Math.max(peakOffHeap, offHeap);
+
+            try {
+                Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.chavna.pantryproject;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.chavna.pantryproject.ReceiptParser.Word;
+
+/***
+ * Line grouping, sweep vs the old TreeSet parser.
+ * ./gradlew jmh -Pjmh.includes=ReceiptParserBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReceiptParserBenchmark {
+    @Param({"100", "500", "1000", "5000"})
+    public int wordCount;
+
+    private List<Word> words;
+
+    @Setup
+    public void setup() {
+        words = SyntheticReceipts.generate(wordCount, 0);
+    }
+
+    @Benchmark
+    public ReceiptParser.LineBlock[] sweep() {
+        ReceiptParser parser = new ReceiptParser();
+        for (Word word : words)
+            parser.addWord(word);
+
+        return parser.getLines();
+    }
+
+    @Benchmark
+    public LegacyReceiptParser.LineBlock[] legacy() {
+        LegacyReceiptParser parser = new LegacyReceiptParser();
+        for (Word word : words)
+            parser.addWord(word);
+
+        return parser.getLines();
+    }
+}
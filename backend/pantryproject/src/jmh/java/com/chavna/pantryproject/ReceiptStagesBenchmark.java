@@ -0,0 +1,96 @@
+package com.chavna.pantryproject;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.chavna.pantryproject.ReceiptParser.LineBlock;
+import com.chavna.pantryproject.ReceiptParser.Word;
+import com.chavna.pantryproject.TextractFixtures.Fixture;
+
+/***
+ * Each step of scan-receipt's post-processing on its own, over the fixtures in src/test/resources/receipts.
+ * Every step runs on the output of the steps before it, which setup computes once.
+ * ./gradlew jmh -Pjmh.includes=ReceiptStagesBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReceiptStagesBenchmark {
+    @Param({"small", "skewed", "long", "multi-column"})
+    public String fixtureName;
+
+    private Fixture fixture;
+    private ReceiptGeometry geometry;
+    private List<Word> words;
+    private ReceiptParser parser;
+
+    @Setup
+    public void setup() {
+        fixture = TextractFixtures.load(fixtureName);
+
+        geometry = fixture.geometry();
+        geometry.process();
+
+        words = fixture.straightenedWords(geometry);
+        parser = new ReceiptParser();
+        for (Word word : words)
+            parser.addWord(word);
+    }
+
+    @Benchmark
+    public ReceiptGeometry load() {
+        return fixture.geometry();
+    }
+
+    @Benchmark
+    public float averageAngle() {
+        geometry.averageAngle();
+        return geometry.getAngle();
+    }
+
+    @Benchmark
+    public ReceiptGeometry rotate() {
+        geometry.straighten();
+        return geometry;
+    }
+
+    @Benchmark
+    public ReceiptGeometry groupLines() {
+        geometry.groupLines();
+        return geometry;
+    }
+
+    @Benchmark
+    public ReceiptParser parserAddWord() {
+        ReceiptParser fresh = new ReceiptParser();
+        for (Word word : words)
+            fresh.addWord(word);
+
+        return fresh;
+    }
+
+    @Benchmark
+    public LineBlock[] parserGetLines() {
+        return parser.getLines();
+    }
+
+    @Benchmark
+    public ReceiptStructure structure() {
+        return new ReceiptStructure(geometry);
+    }
+}
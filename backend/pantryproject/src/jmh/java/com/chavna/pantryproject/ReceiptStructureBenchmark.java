@@ -0,0 +1,55 @@
+package com.chavna.pantryproject;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.chavna.pantryproject.ReceiptParser.Word;
+
+/***
+ * Line items from long grocery receipts, on top of the geometry step that comes before it.
+ * ./gradlew jmh -Pjmh.includes=ReceiptStructureBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReceiptStructureBenchmark {
+    @Param({"50", "200", "1000", "5000"})
+    public int itemCount;
+
+    private List<String> texts;
+    private List<float[]> polygons;
+    private ReceiptGeometry geometry;
+
+    @Setup
+    public void setup() {
+        List<Word> words = SyntheticReceipts.groceryReceipt(itemCount, 0);
+        texts = SyntheticReceipts.texts(words);
+        polygons = SyntheticReceipts.skewedPolygons(words, 0.03);
+        geometry = ReceiptGeometryTests.geometry(texts, polygons);
+    }
+
+    @Benchmark
+    public ReceiptStructure structure() {
+        return new ReceiptStructure(geometry);
+    }
+
+    @Benchmark
+    public ReceiptStructure geometryAndStructure() {
+        return new ReceiptStructure(ReceiptGeometryTests.geometry(texts, polygons));
+    }
+}
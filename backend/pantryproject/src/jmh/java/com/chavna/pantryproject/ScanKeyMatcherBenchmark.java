@@ -0,0 +1,107 @@
+package com.chavna.pantryproject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.chavna.pantryproject.ScanKeyMatcher.Candidate;
+import com.chavna.pantryproject.ScanKeyMatcher.DeletionIndex;
+
+/***
+ * Matching a 50 line receipt against a household's scan keys, without the database. Half of the lines are keys with
+ * one or two characters misread, the other half aren't keys at all. One operation is the whole receipt, so the target
+ * of well under a millisecond per line is well under 50 ms per operation.
+ * ./gradlew jmh -Pjmh.includes=ScanKeyMatcherBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ScanKeyMatcherBenchmark {
+    private static final int RECEIPT_LINES = 50;
+    private static final String[] WORDS = {
+        "ORG", "CHKN", "BRST", "BNLS", "GRND", "BEEF", "WHL", "MILK", "2%", "GV", "KS", "BANANAS", "APPLES", "GALA",
+        "CHEDDAR", "CHS", "SHRD", "MOZZ", "YOGURT", "GREEK", "BREAD", "WHEAT", "EGGS", "LRG", "BTR", "UNSLTD", "OJ",
+        "PULP", "FREE", "RICE", "JASMINE", "PASTA", "PENNE", "SAUCE", "MARINARA", "CHIPS", "TORTILLA", "SALSA", "MED",
+        "SPINACH", "BABY", "CARROTS", "ONIONS", "YLW", "POTATOES", "RUSSET", "COFFEE", "GRND", "CEREAL", "OATS"
+    };
+    private static final String[] SIZES = {"", " 1LB", " 2LB", " 12OZ", " 16OZ", " 1GAL", " 6PK", " 24CT"};
+    // Characters OCR tends to read wrong
+    private static final String[][] MISREADS = {{"A", "4"}, {"O", "0"}, {"S", "5"}, {"I", "1"}, {"B", "8"}, {"E", "F"}};
+
+    @Param({"100", "1000", "10000"})
+    public int keyCount;
+
+    private DeletionIndex keys;
+    private List<String> lines;
+    private final ArrayList<Candidate> candidates = new ArrayList<>();
+
+    private static String name(Random rng) {
+        StringBuilder name = new StringBuilder();
+        int words = 2 + rng.nextInt(3);
+        for (int i = 0; i < words; i++) {
+            if (i > 0)
+                name.append(' ');
+            name.append(WORDS[rng.nextInt(WORDS.length)]);
+        }
+
+        return name.append(SIZES[rng.nextInt(SIZES.length)]).toString();
+    }
+
+    private static String misread(String text, int count, Random rng) {
+        for (int i = 0; i < count; i++) {
+            String[] misread = MISREADS[rng.nextInt(MISREADS.length)];
+            text = text.replaceFirst(misread[0], misread[1]);
+        }
+
+        return text;
+    }
+
+    @Setup
+    public void setup() {
+        Random rng = new Random(0);
+
+        keys = new DeletionIndex();
+        List<String> scanTexts = new ArrayList<>();
+        for (int i = 0; i < keyCount; i++) {
+            String scanText = name(rng);
+            keys.put(ScanKeys.normalize(scanText), scanText, UUID.randomUUID());
+            scanTexts.add(scanText);
+        }
+
+        lines = new ArrayList<>();
+        for (int i = 0; i < RECEIPT_LINES; i++) {
+            if (i % 2 == 0)
+                lines.add(misread(scanTexts.get(rng.nextInt(scanTexts.size())), 1 + rng.nextInt(2), rng));
+            else
+                lines.add(name(rng) + " " + rng.nextInt(1000));
+        }
+    }
+
+    @Benchmark
+    public int receipt() {
+        int matched = 0;
+        for (String line : lines) {
+            if (ScanKeyMatcher.matchKey(keys, line, 5, candidates) != null)
+                matched++;
+        }
+
+        return matched;
+    }
+}
@@ -0,0 +1,165 @@
+package com.chavna.pantryproject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.chavna.pantryproject.Uploader.Upload;
+
+/***
+ * Uploader under load, without Spring, S3 or the database: uploads of fileMegabytes in UPLOAD_CHUNK_SIZE chunks, many
+ * at once, with their chunks arriving shuffled on every thread. One operation is one chunk, the thread whose chunk
+ * completes an upload also finishes it, and an upload whose chunks have all been handed out is replaced by a new one,
+ * so there are always uploadsInFlight going.
+ *
+ * Throughput is chunks per millisecond, sample time gives the chunk latency percentiles (p0.99). With the profilers,
+ * gc reports the allocation rate (gc.alloc.rate.norm is bytes per chunk) and PeakMemoryProfiler the peak heap and
+ * off-heap memory:
+ * ./gradlew jmh -Pjmh.includes=UploaderBenchmark -Pjmh.profilers=gc,com.chavna.pantryproject.PeakMemoryProfiler
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-XX:MaxDirectMemorySize=2g"})
+@Threads(8)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class UploaderBenchmark {
+    @Param({"1", "20"})
+    public int fileMegabytes;
+
+    @Param({"direct", "tempfile"})
+    public String store;
+
+    @Param({"32"})
+    public int uploadsInFlight;
+
+    private static class InFlight {
+        private final Upload upload;
+        private final int[] order; // chunk indices, shuffled
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicBoolean replaced = new AtomicBoolean();
+
+        private InFlight(Upload upload, int[] order) {
+            this.upload = upload;
+            this.order = order;
+        }
+    }
+
+    private Uploader uploader;
+    private int fileSize;
+    // Every chunk of the file, made once so sending one doesn't allocate
+    private byte[][] chunks;
+    private AtomicReferenceArray<InFlight> uploads;
+
+    @Setup
+    public void setup() {
+        uploader = Uploader.builder()
+            .chunkStores(store.equals("direct") ? ChunkStore.Direct::new : ChunkStore.TempFile::new)
+            .build();
+
+        int chunkSize = UploadController.UPLOAD_CHUNK_SIZE;
+        fileSize = fileMegabytes * 1024 * 1024;
+
+        Random rng = new Random(0);
+        chunks = new byte[(fileSize + chunkSize - 1) / chunkSize][];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new byte[Math.min(chunkSize, fileSize - i * chunkSize)];
+            rng.nextBytes(chunks[i]);
+        }
+
+        uploads = new AtomicReferenceArray<>(uploadsInFlight);
+        for (int i = 0; i < uploadsInFlight; i++)
+            uploads.set(i, start());
+    }
+
+    private InFlight start() {
+        Upload upload = uploader.initializeUpload(UploadController.UPLOAD_CHUNK_SIZE, fileSize);
+
+        int[] order = new int[upload.getChunkCount()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+
+        ThreadLocalRandom rng = ThreadLocalRandom.current();
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = rng.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+
+        return new InFlight(upload, order);
+    }
+
+    // The next chunk of a random upload, -1 if that upload's chunks have all been handed out
+    private int next(InFlight flight, int slot) {
+        int n = flight.next.getAndIncrement();
+        if (n < flight.order.length)
+            return flight.order[n];
+
+        // Only the first thread to run out starts the next one, the others move on to another upload
+        if (flight.replaced.compareAndSet(false, true))
+            uploads.set(slot, start());
+
+        return -1;
+    }
+
+    @Benchmark
+    public boolean chunk() {
+        ThreadLocalRandom rng = ThreadLocalRandom.current();
+
+        while (true) {
+            int slot = rng.nextInt(uploadsInFlight);
+            InFlight flight = uploads.get(slot);
+
+            int index = next(flight, slot);
+            if (index < 0)
+                continue;
+
+            boolean completed = flight.upload.uploadChunk(index, chunks[index]);
+            if (completed)
+                flight.upload.finish();
+
+            return completed;
+        }
+    }
+
+    // Like the binary upload-chunk endpoint, from a stream
+    @Benchmark
+    public boolean streamedChunk() throws IOException {
+        ThreadLocalRandom rng = ThreadLocalRandom.current();
+
+        while (true) {
+            int slot = rng.nextInt(uploadsInFlight);
+            InFlight flight = uploads.get(slot);
+
+            int index = next(flight, slot);
+            if (index < 0)
+                continue;
+
+            boolean completed = flight.upload.uploadChunk(index, new ByteArrayInputStream(chunks[index]));
+            if (completed)
+                flight.upload.finish();
+
+            return completed;
+        }
+    }
+}
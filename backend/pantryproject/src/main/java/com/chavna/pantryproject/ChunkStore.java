@@ -0,0 +1,231 @@
+package com.chavna.pantryproject;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/***
+ * Where an upload's bytes go while its chunks come in. Chunks are written at their offset from any number of threads
+ * at once, each byte once.
+ */
+public interface ChunkStore {
+    // Uploads up to this size are kept in memory by forSize, bigger ones go to a temp file
+    public static final int MEMORY_LIMIT = 8 * 1024 * 1024;
+
+    public interface Factory {
+        ChunkStore create(int size);
+    }
+
+    /***
+     * Safe to call from many threads at once for different parts of the file.
+     * @throws IllegalStateException If the store has been closed.
+     */
+    void write(int offset, byte[] chunk);
+
+    /***
+     * Reads exactly length bytes from the stream into the file at offset, without holding the whole chunk anywhere on
+     * the way. Safe to call from many threads at once like write.
+     * @throws EOFException If the stream ends first. Whatever was read is still written.
+     * @throws IllegalStateException If the store has been closed.
+     */
+    void write(int offset, InputStream in, int length) throws IOException;
+
+    /***
+     * The whole file, read-only, without copying it. Call once, after every chunk has been written. The store doesn't
+     * need to be closed afterwards.
+     */
+    ByteBuffer finish();
+
+    /***
+     * Throws away what's been written, for uploads that are never finished.
+     */
+    void close();
+
+    /***
+     * In memory for small files, a temp file for large ones, so big uploads don't sit on the heap.
+     */
+    public static ChunkStore forSize(int size) {
+        return size <= MEMORY_LIMIT ? new Direct(size) : new TempFile(size);
+    }
+
+    /***
+     * A direct ByteBuffer, outside the heap.
+     */
+    public static class Direct implements ChunkStore {
+        private final ByteBuffer buffer;
+
+        public Direct(int size) {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+
+        @Override
+        public void write(int offset, byte[] chunk) {
+            // Absolute puts don't touch the buffer's position, so they can happen at the same time
+            buffer.put(offset, chunk);
+        }
+
+        @Override
+        public void write(int offset, InputStream in, int length) throws IOException {
+            // Its own position and limit, the buffer's aren't touched
+            ByteBuffer target = buffer.slice(offset, length);
+            ReadableByteChannel source = Channels.newChannel(in);
+
+            while (target.hasRemaining()) {
+                if (source.read(target) < 0)
+                    throw new EOFException();
+            }
+        }
+
+        @Override
+        public ByteBuffer finish() {
+            return buffer.asReadOnlyBuffer();
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    /***
+     * A temp file the size of the upload, written with positional writes and mapped into memory once finished.
+     */
+    public static class TempFile implements ChunkStore {
+        private final Path path;
+        private final FileChannel channel;
+        private final int size;
+
+        public TempFile(int size) {
+            this.size = size;
+
+            try {
+                path = Files.createTempFile("upload-", ".part");
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+                // Full size up front, so writes never grow the file and can run in parallel
+                channel.truncate(size);
+                if (size > 0)
+                    channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        Path getPath() {
+            return path;
+        }
+
+        @Override
+        public void write(int offset, byte[] chunk) {
+            ByteBuffer source = ByteBuffer.wrap(chunk);
+
+            try {
+                while (source.hasRemaining())
+                    channel.write(source, offset + source.position());
+            } catch (ClosedChannelException ex) {
+                throw new IllegalStateException("Upload has been canceled.");
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public void write(int offset, InputStream in, int length) throws IOException {
+            ReadableByteChannel source = Channels.newChannel(in);
+
+            try {
+                long written = 0;
+                while (written < length) {
+                    // Only comes back short when the stream has ended
+                    long count = channel.transferFrom(source, offset + written, length - written);
+                    if (count == 0)
+                        throw new EOFException();
+
+                    written += count;
+                }
+            } catch (ClosedChannelException ex) {
+                throw new IllegalStateException("Upload has been canceled.");
+            }
+        }
+
+        @Override
+        public ByteBuffer finish() {
+            try {
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+                // The mapping stays valid after the file is closed and deleted, it's released once it's garbage
+                close();
+
+                return mapped;
+            } catch (IOException ex) {
+                close();
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException ex) {
+                System.out.println("Failed to delete upload temp file " + path);
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    //                  //
+    //     HELPERS      //
+    //                  //
+
+    /***
+     * Copies the buffer's remaining bytes onto the heap, for code that needs a byte[].
+     */
+    public static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+
+        return bytes;
+    }
+
+    /***
+     * Reads the buffer's remaining bytes without copying them.
+     */
+    public static InputStream inputStream(ByteBuffer buffer) {
+        ByteBuffer source = buffer.duplicate();
+
+        return new InputStream() {
+            @Override
+            public int read() {
+                return source.hasRemaining() ? source.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                if (length == 0)
+                    return 0;
+
+                if (!source.hasRemaining())
+                    return -1;
+
+                int count = Math.min(length, source.remaining());
+                source.get(bytes, offset, count);
+
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return source.remaining();
+            }
+        };
+    }
+}
@@ -0,0 +1,253 @@
+package com.chavna.pantryproject;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/***
+ * Immutable byte trie stored in a single file and read through a memory map, so it costs almost no heap.
+ * Keys are UTF-8 strings and values are opaque bytes.
+ *
+ * The file is written in one pass from keys in sorted order. Nodes are written children first, so the writer only
+ * keeps the nodes along the current key in memory. Layout:
+ * <pre>
+ * node:    varint (value length + 1, 0 = no value), value bytes, varint child count, children sorted by label
+ * child:   1 byte label, 4 byte offset of the child node
+ * trailer: 4 byte offset of the root node, 4 byte magic
+ * </pre>
+ */
+public class CompactTrie {
+    private static final int MAGIC = 0x54524945; // "TRIE"
+    private static final int CHILD_SIZE = 5;
+
+    private final MappedByteBuffer buffer;
+    private final int root;
+
+    private CompactTrie(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        int size = buffer.capacity();
+        if (size < 8 || buffer.getInt(size - 4) != MAGIC)
+            throw new IOException("Not a trie file.");
+
+        this.root = buffer.getInt(size - 8);
+    }
+
+    public static CompactTrie open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            return new CompactTrie(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /***
+     * @return A read only view of the value in the mapped file, or null if the key isn't in the trie.
+     */
+    public ByteBuffer get(String key) {
+        return get(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public ByteBuffer get(byte[] key) {
+        int node = root;
+        for (byte label : key) {
+            node = findChild(node, label);
+            if (node < 0)
+                return null;
+        }
+
+        int valueLength = readVarint(node) - 1;
+        if (valueLength < 0)
+            return null;
+
+        return buffer.slice(skipVarint(node), valueLength).asReadOnlyBuffer();
+    }
+
+    private int findChild(int node, byte label) {
+        int valueLength = Math.max(readVarint(node) - 1, 0);
+        int position = skipVarint(node) + valueLength;
+
+        int childCount = readVarint(position);
+        int children = skipVarint(position);
+
+        int low = 0;
+        int high = childCount - 1;
+        int target = label & 0xFF;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entry = children + middle * CHILD_SIZE;
+            int current = buffer.get(entry) & 0xFF;
+
+            if (current < target)
+                low = middle + 1;
+            else if (current > target)
+                high = middle - 1;
+            else
+                return buffer.getInt(entry + 1);
+        }
+
+        return -1;
+    }
+
+    private int readVarint(int position) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = buffer.get(position++);
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0)
+                return value;
+
+            shift += 7;
+        }
+    }
+
+    private int skipVarint(int position) {
+        while ((buffer.get(position) & 0x80) != 0)
+            position++;
+
+        return position + 1;
+    }
+
+    //          //
+    //  WRITER  //
+    //          //
+
+    private static class PendingNode {
+        byte[] value;
+        ByteBuffer children = ByteBuffer.allocate(CHILD_SIZE * 4);
+        int childCount;
+
+        void addChild(byte label, int offset) {
+            if (children.remaining() < CHILD_SIZE)
+                children = ByteBuffer.allocate(children.capacity() * 2).put(children.flip());
+
+            children.put(label);
+            children.putInt(offset);
+            childCount++;
+        }
+    }
+
+    /***
+     * Streams a trie to a file. Keys have to be added in ascending order of their UTF-8 bytes
+     * (what Postgres gives with COLLATE "C").
+     */
+    public static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final ArrayList<PendingNode> path = new ArrayList<>();
+        private byte[] previous = new byte[0];
+        private int written;
+        private boolean finished;
+
+        public Writer(Path path) throws IOException {
+            this(Files.newOutputStream(path));
+        }
+
+        public Writer(OutputStream out) {
+            this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+            this.path.add(new PendingNode());
+        }
+
+        public void add(String key, byte[] value) throws IOException {
+            add(key.getBytes(StandardCharsets.UTF_8), value);
+        }
+
+        public void add(byte[] key, byte[] value) throws IOException {
+            int common = 0;
+            while (common < key.length && common < previous.length && key[common] == previous[common])
+                common++;
+
+            boolean ascending = common == previous.length
+                ? key.length > previous.length || path.get(0).value == null && key.length == 0
+                : common < key.length && (key[common] & 0xFF) > (previous[common] & 0xFF);
+            if (!ascending)
+                throw new IllegalArgumentException("Keys must be added in ascending order without duplicates.");
+
+            // Everything below the shared prefix is done and can be written out
+            finishPath(common);
+
+            for (int i = common; i < key.length; i++)
+                path.add(new PendingNode());
+
+            path.get(key.length).value = value;
+            previous = key;
+        }
+
+        private void finishPath(int depth) throws IOException {
+            while (path.size() - 1 > depth) {
+                int index = path.size() - 1;
+                PendingNode node = path.remove(index);
+
+                path.get(index - 1).addChild(previous[index - 1], writeNode(node));
+            }
+        }
+
+        private int writeNode(PendingNode node) throws IOException {
+            int offset = written;
+
+            if (node.value == null) {
+                writeVarint(0);
+            } else {
+                writeVarint(node.value.length + 1);
+                out.write(node.value);
+                written += node.value.length;
+            }
+
+            writeVarint(node.childCount);
+            out.write(node.children.array(), 0, node.childCount * CHILD_SIZE);
+            written += node.childCount * CHILD_SIZE;
+
+            if (written < 0)
+                throw new IOException("Trie is too big.");
+
+            return offset;
+        }
+
+        private void writeVarint(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+                written++;
+            }
+
+            out.write(value);
+            written++;
+        }
+
+        /***
+         * Writes the remaining nodes and the trailer.
+         */
+        public void finish() throws IOException {
+            if (finished)
+                return;
+
+            finishPath(0);
+            int root = writeNode(path.get(0));
+
+            out.writeInt(root);
+            out.writeInt(MAGIC);
+            out.flush();
+
+            finished = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                finish();
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
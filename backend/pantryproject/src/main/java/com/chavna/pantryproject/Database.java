@@ -23,11 +23,16 @@ public class Database {
     public static final String FAMILY_MEMBER_TABLE = "family_member";
     public static final String FOOD_ITEM_TEMPLATES_TABLE = "food_item_templates";
     public static final String FOOD_ITEMS_TABLE = "food_items";
+    public static final String IMAGE_REFS_TABLE = "image_refs";
     public static final String MEAL_INGREDIENTS_TABLE = "meal_ingredients";
     public static final String MEALS_TABLE = "meals";
+    public static final String MEAL_PLAN_TABLE = "meal_plan_entries";
+    public static final String OCR_CACHE_TABLE = "ocr_cache";
     public static final String PERSONAL_INFO_TABLE = "personal_info";
     public static final String SCAN_ITEMS_TABLE = "scan_items";
     public static final String SHOPPING_LIST_TABLE = "shopping_list";
+    public static final String UPLOAD_CHUNKS_TABLE = "upload_chunks";
+    public static final String UPLOADS_TABLE = "uploads";
     public static final String USERS_TABLE = "users";
     public static final String CATEGORIES_TABLE = "user_categories";
 
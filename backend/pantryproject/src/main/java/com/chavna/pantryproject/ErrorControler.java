@@ -14,6 +14,12 @@ public class ErrorControler {
         return response.getResponse();
     }
 
+    // Thrown wherever an upload is started or a chunk comes in
+    @ExceptionHandler(Uploader.RejectedException.class)
+    public Response uploadRejected(Uploader.RejectedException ex) {
+        return UploadController.rejected(ex);
+    }
+
     @ExceptionHandler(BindException.class)
     public Response methodArgumentNotValidException(BindException ex){
         return Response.Error(HttpStatus.BAD_REQUEST, ex.toString());
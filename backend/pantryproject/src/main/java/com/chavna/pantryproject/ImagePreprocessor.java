@@ -0,0 +1,352 @@
+package com.chavna.pantryproject;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+
+/***
+ * Shrinks uploaded photos before they're sent for recognition: decodes them subsampled, turns them gray, crops off
+ * the margins around the ink, scales them down to at most maxWidth x maxHeight and encodes them as JPEG. Images that
+ * can't be decoded or have no ink on them are rejected with UnreadableImageException before anything is sent.
+ *
+ * The words that come back are moved back into the coordinates of the uploaded image, so cropping doesn't show.
+ *
+ * Metrics:
+ * - ocr.image.bytes{stage = uploaded | prepared}
+ * - ocr.image.prepare (time spent preprocessing)
+ * - ocr.image.rejected{reason = undecodable | blank}
+ */
+public class ImagePreprocessor implements TextRecognizer {
+    // Pixels this much darker than the paper are ink
+    private static final int INK_CONTRAST = 64;
+    // Less of the image than this is ink means there's nothing on it
+    private static final double MIN_INK_FRACTION = 0.0005;
+    // Kept around the ink when cropping, as a fraction of the width
+    private static final double CROP_MARGIN = 0.02;
+
+    /***
+     * An image ready to be sent and where it is in the uploaded image, as fractions of the uploaded image.
+     */
+    @AllArgsConstructor
+    static class Prepared {
+        byte[] image;
+        float cropX;
+        float cropY;
+        float cropWidth;
+        float cropHeight;
+    }
+
+    private final TextRecognizer recognizer;
+    private final int maxWidth;
+    private final int maxHeight;
+    private final float jpegQuality;
+
+    private final ThreadPoolExecutor cpuWorkers;
+
+    private final DistributionSummary uploadedBytes = Metrics.summary("ocr.image.bytes", "stage", "uploaded");
+    private final DistributionSummary preparedBytes = Metrics.summary("ocr.image.bytes", "stage", "prepared");
+    private final Timer prepareTimer = Metrics.timer("ocr.image.prepare");
+    private final Counter undecodableCounter = Metrics.counter("ocr.image.rejected", "reason", "undecodable");
+    private final Counter blankCounter = Metrics.counter("ocr.image.rejected", "reason", "blank");
+
+    /***
+     * @param threads - Most images preprocessed at once.
+     * @param maxQueued - Images waiting for a thread. Past that, the thread recognizing the image does it itself.
+     */
+    @Builder
+    private ImagePreprocessor(TextRecognizer recognizer, int maxWidth, int maxHeight, float jpegQuality, int threads, int maxQueued) {
+        if (recognizer == null)
+            throw new IllegalArgumentException("recognizer is required.");
+
+        if (maxWidth <= 0 || maxHeight <= 0)
+            throw new IllegalArgumentException("maxWidth and maxHeight must be > 0.");
+
+        if (jpegQuality <= 0 || jpegQuality > 1)
+            throw new IllegalArgumentException("jpegQuality must be > 0 and <= 1.");
+
+        if (threads <= 0 || maxQueued <= 0)
+            throw new IllegalArgumentException("threads and maxQueued must be > 0.");
+
+        this.recognizer = recognizer;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.jpegQuality = jpegQuality;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.cpuWorkers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(maxQueued),
+            (Runnable runnable) -> {
+                Thread thread = new Thread(runnable, "ocr-preprocess-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @Override
+    public ReceiptGeometry recognize(byte[] image) {
+        Prepared prepared;
+        try {
+            prepared = CompletableFuture.supplyAsync(() -> prepare(image), cpuWorkers).join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+
+            throw ex;
+        }
+
+        ReceiptGeometry geometry = recognizer.recognize(prepared.image);
+
+        if (prepared.cropX == 0 && prepared.cropY == 0 && prepared.cropWidth == 1 && prepared.cropHeight == 1)
+            return geometry;
+
+        return uncrop(geometry, prepared);
+    }
+
+    Prepared prepare(byte[] image) {
+        long start = System.nanoTime();
+        uploadedBytes.record(image.length);
+
+        BufferedImage decoded = decode(image);
+        int width = decoded.getWidth();
+        int height = decoded.getHeight();
+
+        BufferedImage gray = toGray(decoded);
+        byte[] pixels = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
+        int[] ink = inkBounds(pixels, width, height);
+        if (ink == null) {
+            blankCounter.increment();
+            throw new UnreadableImageException("Image is blank.");
+        }
+
+        int margin = (int) Math.ceil(width * CROP_MARGIN);
+        int cropX = Math.max(ink[0] - margin, 0);
+        int cropY = Math.max(ink[1] - margin, 0);
+        int cropWidth = Math.min(ink[2] + 1 + margin, width) - cropX;
+        int cropHeight = Math.min(ink[3] + 1 + margin, height) - cropY;
+
+        BufferedImage cropped = gray.getSubimage(cropX, cropY, cropWidth, cropHeight);
+
+        double scale = Math.min(1, Math.min((double) maxWidth / cropWidth, (double) maxHeight / cropHeight));
+        if (scale < 1) {
+            int scaledWidth = Math.max((int) Math.round(cropWidth * scale), 1);
+            int scaledHeight = Math.max((int) Math.round(cropHeight * scale), 1);
+
+            BufferedImage scaled = new BufferedImage(scaledWidth, scaledHeight, BufferedImage.TYPE_BYTE_GRAY);
+            Graphics2D graphics = scaled.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(cropped, 0, 0, scaledWidth, scaledHeight, null);
+            graphics.dispose();
+
+            cropped = scaled;
+        }
+
+        byte[] encoded = encode(cropped);
+
+        Prepared prepared = new Prepared(encoded, (float) cropX / width, (float) cropY / height,
+            (float) cropWidth / width, (float) cropHeight / height);
+
+        preparedBytes.record(encoded.length);
+        prepareTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+        return prepared;
+    }
+
+    /***
+     * Decodes the image, skipping rows and columns while reading so it's between one and two times the max size.
+     */
+    private BufferedImage decode(byte[] image) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(image))) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                undecodableCounter.increment();
+                throw new UnreadableImageException("Image could not be decoded.");
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+
+                int subsampling = Math.max(1, Math.max(reader.getWidth(0) / maxWidth, reader.getHeight(0) / maxHeight));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException ex) {
+            if (ex instanceof UnreadableImageException)
+                throw (UnreadableImageException) ex;
+
+            undecodableCounter.increment();
+            throw new UnreadableImageException("Image could not be decoded.");
+        }
+    }
+
+    /***
+     * Decoded JPEGs and PNGs are converted by hand, drawing them onto a gray image is a few times slower.
+     */
+    private static BufferedImage toGray(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        if (image.getType() == BufferedImage.TYPE_BYTE_GRAY)
+            return image;
+
+        BufferedImage gray = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] out = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
+
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+            byte[] in = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            for (int i = 0; i < out.length; i++) {
+                int b = in[i * 3] & 0xFF;
+                int g = in[i * 3 + 1] & 0xFF;
+                int r = in[i * 3 + 2] & 0xFF;
+                out[i] = (byte) ((r * 77 + g * 150 + b * 29) >> 8);
+            }
+
+            return gray;
+        }
+
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+            int[] in = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            for (int i = 0; i < out.length; i++) {
+                int rgb = in[i];
+                out[i] = (byte) ((((rgb >> 16) & 0xFF) * 77 + ((rgb >> 8) & 0xFF) * 150 + (rgb & 0xFF) * 29) >> 8);
+            }
+
+            return gray;
+        }
+
+        // Anything else, white where it was transparent
+        Graphics2D graphics = gray.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, width, height);
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+
+        return gray;
+    }
+
+    /***
+     * Box around the ink as {minX, minY, maxX, maxY}, or null if there's hardly any. The paper is taken to be the
+     * brightest tenth of the image.
+     */
+    static int[] inkBounds(byte[] pixels, int width, int height) {
+        int[] histogram = new int[256];
+        for (byte pixel : pixels)
+            histogram[pixel & 0xFF]++;
+
+        int paper = 255;
+        int brighter = 0;
+        while (paper > 0 && brighter + histogram[paper] < pixels.length / 10) {
+            brighter += histogram[paper];
+            paper--;
+        }
+
+        int threshold = paper - INK_CONTRAST;
+
+        int inkCount = 0;
+        for (int value = 0; value < threshold; value++)
+            inkCount += histogram[value];
+
+        if (inkCount < pixels.length * MIN_INK_FRACTION)
+            return null;
+
+        // A row or column needs 2 ink pixels so specks don't count
+        int[] rowInk = new int[height];
+        int[] columnInk = new int[width];
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                if ((pixels[row + x] & 0xFF) < threshold) {
+                    rowInk[y]++;
+                    columnInk[x]++;
+                }
+            }
+        }
+
+        int minX = 0;
+        while (columnInk[minX] < 2 && minX < width - 1)
+            minX++;
+        int maxX = width - 1;
+        while (columnInk[maxX] < 2 && maxX > minX)
+            maxX--;
+        int minY = 0;
+        while (rowInk[minY] < 2 && minY < height - 1)
+            minY++;
+        int maxY = height - 1;
+        while (rowInk[maxY] < 2 && maxY > minY)
+            maxY--;
+
+        return new int[] {minX, minY, maxX, maxY};
+    }
+
+    private byte[] encode(BufferedImage image) {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            writer.dispose();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /***
+     * Moves words found in the prepared image back to where they are in the uploaded image.
+     */
+    static ReceiptGeometry uncrop(ReceiptGeometry geometry, Prepared prepared) {
+        ReceiptGeometry uncropped = new ReceiptGeometry(geometry.getWordCount());
+
+        for (int w = 0; w < geometry.getWordCount(); w++) {
+            uncropped.addWord(geometry.text(w));
+
+            for (int p = geometry.pointStart(w); p < geometry.pointStart(w + 1); p++) {
+                uncropped.addPoint(prepared.cropX + geometry.pointX(p) * prepared.cropWidth,
+                    prepared.cropY + geometry.pointY(p) * prepared.cropHeight);
+            }
+        }
+
+        return uncropped;
+    }
+}
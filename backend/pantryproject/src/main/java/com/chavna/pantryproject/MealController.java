@@ -5,14 +5,17 @@ import static com.chavna.pantryproject.Database.FOOD_ITEM_TEMPLATES_TABLE;
 import static com.chavna.pantryproject.Database.MEALS_TABLE;
 import static com.chavna.pantryproject.Database.MEAL_INGREDIENTS_TABLE;
 
-import java.awt.image.BufferedImage;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -25,13 +28,14 @@ import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
 
 import com.chavna.pantryproject.Authorization.Login;
-import com.chavna.pantryproject.S3.S3Upload;
+import com.chavna.pantryproject.S3.AbstractS3Upload;
 import com.chavna.pantryproject.Uploader.Upload;
 
 import jakarta.annotation.Nullable;
 import jakarta.validation.Valid;
 import jakarta.validation.constraints.NotNull;
 import lombok.AllArgsConstructor;
+import lombok.Getter;
 
 @RestController
 public class MealController {
@@ -76,6 +80,149 @@ public class MealController {
             return insert.executeUpdate();
     }
 
+    private static class IngredientDiffResult {
+        boolean mealFound;
+        int present; // how many of the requested ingredients are in the meal afterwards
+        int added;
+        int updated;
+        int removed;
+    }
+
+    private static boolean hasDuplicateTemplates(List<UUID> templateIds) {
+        return new HashSet<>(templateIds).size() < templateIds.size();
+    }
+
+    /***
+     * Makes the meal's ingredients match the given list, touching only the rows that actually change.
+     * Rows that are already correct are left alone so they don't turn into dead tuples.
+     */
+    private static IngredientDiffResult applyIngredientList(Connection con, UUID mealId, UUID owner, List<Ingredient> ingredients) throws SQLException {
+        UUID[] templateIds = new UUID[ingredients.size()];
+        Double[] amounts = new Double[ingredients.size()];
+        for (int i = 0; i < ingredients.size(); i++) {
+            templateIds[i] = ingredients.get(i).templateId;
+            amounts[i] = ingredients.get(i).amount;
+        }
+
+        PreparedStatement statement = con.prepareStatement(String.format("""
+            WITH meal AS (
+                SELECT id FROM %1$s
+                WHERE id = ? AND owner = ?
+            ), desired AS (
+                SELECT d.template_id, d.amount, (d.ord - 1)::int AS order_index
+                FROM unnest(?::uuid[], ?::float8[]) WITH ORDINALITY AS d(template_id, amount, ord)
+            ), removed AS (
+                DELETE FROM %2$s i
+                USING meal
+                WHERE i.meal_id = meal.id
+                AND NOT EXISTS (SELECT 1 FROM desired WHERE desired.template_id = i.template_id)
+                RETURNING i.template_id
+            ), updated AS (
+                UPDATE %2$s i
+                SET amount = desired.amount, order_index = desired.order_index
+                FROM meal, desired
+                WHERE i.meal_id = meal.id AND i.template_id = desired.template_id
+                AND (i.amount IS DISTINCT FROM desired.amount OR i.order_index IS DISTINCT FROM desired.order_index)
+                RETURNING i.template_id
+            ), added AS (
+                INSERT INTO %2$s (amount, template_id, meal_id, order_index)
+                SELECT desired.amount, desired.template_id, meal.id, desired.order_index
+                FROM meal, desired
+                INNER JOIN %3$s t
+                ON t.id = desired.template_id AND t.owner = ?
+                WHERE NOT EXISTS (
+                    SELECT 1 FROM %2$s i
+                    WHERE i.meal_id = meal.id AND i.template_id = desired.template_id
+                )
+                RETURNING template_id
+            )
+            SELECT
+                (SELECT COUNT(*) FROM meal),
+                (SELECT COUNT(*) FROM meal, desired WHERE EXISTS (
+                    SELECT 1 FROM %2$s i
+                    WHERE i.meal_id = meal.id AND i.template_id = desired.template_id
+                )),
+                (SELECT COUNT(*) FROM added),
+                (SELECT COUNT(*) FROM updated),
+                (SELECT COUNT(*) FROM removed);
+        """, MEALS_TABLE, MEAL_INGREDIENTS_TABLE, FOOD_ITEM_TEMPLATES_TABLE));
+
+        statement.setObject(1, mealId);
+        statement.setObject(2, owner);
+        statement.setArray(3, con.createArrayOf("uuid", templateIds));
+        statement.setArray(4, con.createArrayOf("float8", amounts));
+        statement.setObject(5, owner);
+
+        ResultSet result = statement.executeQuery();
+        result.next();
+
+        IngredientDiffResult diff = new IngredientDiffResult();
+        diff.mealFound = result.getInt(1) > 0;
+        diff.added = result.getInt(3);
+        diff.updated = result.getInt(4);
+        diff.removed = result.getInt(5);
+        // Every statement in the WITH sees the table from before it ran, so the ones already there and the new ones don't overlap
+        diff.present = result.getInt(2) + diff.added;
+
+        return diff;
+    }
+
+    // Keeps meals.has_picture in sync so listing meals doesn't need to ask S3.
+    private static void setHasPicture(Connection con, UUID mealId) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(String.format("""
+            UPDATE %s
+            SET has_picture = true
+            WHERE id = ?;
+        """, MEALS_TABLE));
+        statement.setObject(1, mealId);
+
+        statement.executeUpdate();
+    }
+
+    // has_picture is null for meals from before the column that MealPictureBackfill hasn't got to yet. Those are checked
+    // in S3 the way they used to be and the answer is saved, so it's one HEAD per meal at most.
+    private static boolean hasPicture(Connection con, UUID mealId, Boolean hasPicture) throws SQLException {
+        if (hasPicture != null)
+            return hasPicture;
+
+        // Pictures from before has_picture are all under their own key, not refs
+        boolean exists = S3.objectExists(S3.getImageKey(MEAL_PREFIX, mealId));
+
+        PreparedStatement statement = con.prepareStatement(String.format("""
+            UPDATE %s
+            SET has_picture = ?
+            WHERE id = ? AND has_picture IS NULL;
+        """, MEALS_TABLE));
+        statement.setBoolean(1, exists);
+        statement.setObject(2, mealId);
+
+        statement.executeUpdate();
+
+        return exists;
+    }
+
+    public static class MealPictureUpload extends AbstractS3Upload {
+        @Getter
+        private UUID mealId;
+
+        public MealPictureUpload(UUID mealId) {
+            super(S3.getImageKey(MEAL_PREFIX, mealId));
+
+            this.mealId = mealId;
+        }
+
+        @Override
+        public void uploadPostProcess() {
+            Database.openConnection((Connection con) -> {
+                setHasPicture(con, mealId);
+
+                return null;
+            })
+            .throwIfError()
+            .ignoreResponse();
+        }
+    }
+
     public static class CreateMealRequest {
         @NotNull
         public String name;
@@ -154,12 +301,22 @@ public class MealController {
             if (result == 0)
                 return Response.Fail("Failed to delete meal.");
 
-            return Response.Success("Meal deleted.");
+            MealPlanController.invalidateCache(familyOwner);
+
+            return null;
         })
         .throwIfError()
         .throwResponse();
 
-        return null;
+        // After the connection is given back, the meal is gone either way
+        try {
+            S3.deleteImage(S3.getImageKey(MEAL_PREFIX, requestBody.mealId));
+        } catch (RuntimeException ex) {
+            System.out.println("Failed to delete picture of meal " + requestBody.mealId);
+            ex.printStackTrace();
+        }
+
+        return Response.Success("Meal deleted.");
     }
 
     public static class FlattenedIngredient {
@@ -175,6 +332,7 @@ public class MealController {
     }
 
     public static class FlattenedMeal {
+        public UUID mealId;
         public String name;
         public boolean isFavorite;
         public String mealPictureURL;
@@ -188,7 +346,7 @@ public class MealController {
 
     private FlattenedMeal getFlattenedMeal(Connection con, UUID mealId, UUID owner) throws SQLException {
         PreparedStatement mealStatement = con.prepareStatement(String.format("""
-            SELECT name, is_favorite FROM %s
+            SELECT name, is_favorite, has_picture FROM %s
             WHERE owner = ? AND id = ?
         """, Database.MEALS_TABLE));
         mealStatement.setObject(1, owner);
@@ -201,6 +359,7 @@ public class MealController {
 
         String mealName = mealResult.getString(1);
         boolean isFavorite = mealResult.getBoolean(2);
+        Boolean hasPicture = (Boolean) mealResult.getObject(3);
 
         String query = String.format("""
             SELECT %2$s.id, %1$s.amount, %2$s.name, %2$s.unit FROM %1$s
@@ -231,13 +390,13 @@ public class MealController {
             throw new ResponseException(Response.Fail("Meal not found."));
 
         FlattenedMeal meal = new FlattenedMeal();
+        meal.mealId = mealId;
         meal.name = mealName;
         meal.ingredients = ingredients;
         meal.isFavorite = isFavorite;
 
-        String key = S3.getImageKey(MEAL_PREFIX, mealId);
-        if (S3.imageExists(key))
-            meal.mealPictureURL = S3.getImageURL(key);
+        if (hasPicture(con, mealId, hasPicture))
+            meal.mealPictureURL = S3.getImageURL(S3.getImageKey(MEAL_PREFIX, mealId));
 
         return meal;
     }
@@ -259,6 +418,98 @@ public class MealController {
         return null;
     }
 
+    public static class GetMealsBulkRequest {
+        @Nullable
+        public List<UUID> mealIds; // null gets every meal
+    }
+
+    @AllArgsConstructor
+    public static class GetMealsBulkResponse {
+        public List<FlattenedMeal> meals;
+    }
+
+    @PostMapping("/get-meals-bulk")
+    public Response getMealsBulk(@RequestHeader("Authorization") String authorizationHeader, @Valid @RequestBody(required = false) GetMealsBulkRequest requestBody) {
+        Login login = Authorization.authorize(authorizationHeader);
+        UUID familyOwner = Authorization.getFamilyOwnerId(login);
+
+        if (requestBody == null)
+            requestBody = new GetMealsBulkRequest();
+
+        final var body = requestBody;
+
+        if (body.mealIds != null && body.mealIds.size() == 0)
+            return Response.Success(new GetMealsBulkResponse(new ArrayList<>()));
+
+        Map<UUID, FlattenedMeal> meals = new LinkedHashMap<>();
+        Database.openConnection((Connection con) -> {
+            String query = String.format("""
+                SELECT id, name, is_favorite, has_picture FROM %s
+                WHERE owner = ?
+            """, MEALS_TABLE);
+
+            if (body.mealIds != null)
+                query += " AND id = ANY(?)";
+
+            query += "\nORDER BY name";
+
+            PreparedStatement mealStatement = con.prepareStatement(query);
+            mealStatement.setObject(1, familyOwner);
+
+            if (body.mealIds != null)
+                mealStatement.setArray(2, con.createArrayOf("uuid", body.mealIds.toArray()));
+
+            ResultSet mealResult = mealStatement.executeQuery();
+
+            while (mealResult.next()) {
+                FlattenedMeal meal = new FlattenedMeal();
+                meal.mealId = (UUID) mealResult.getObject(1);
+                meal.name = mealResult.getString(2);
+                meal.isFavorite = mealResult.getBoolean(3);
+                meal.ingredients = new ArrayList<>();
+
+                // has_picture instead of asking S3 for each meal
+                if (hasPicture(con, meal.mealId, (Boolean) mealResult.getObject(4)))
+                    meal.mealPictureURL = S3.getImageURL(S3.getImageKey(MEAL_PREFIX, meal.mealId));
+
+                meals.put(meal.mealId, meal);
+            }
+
+            if (meals.size() == 0)
+                return null;
+
+            // Ingredients for every meal in one query
+            PreparedStatement ingredientsStatement = con.prepareStatement(String.format("""
+                SELECT %1$s.meal_id, %2$s.id, %1$s.amount, %2$s.name, %2$s.unit FROM %1$s
+                INNER JOIN %2$s
+                ON %1$s.template_id = %2$s.id
+                WHERE %1$s.meal_id = ANY(?) AND %2$s.owner = ?
+                ORDER BY %1$s.meal_id, order_index;
+            """, MEAL_INGREDIENTS_TABLE, FOOD_ITEM_TEMPLATES_TABLE));
+
+            ingredientsStatement.setArray(1, con.createArrayOf("uuid", meals.keySet().toArray()));
+            ingredientsStatement.setObject(2, familyOwner);
+
+            ResultSet result = ingredientsStatement.executeQuery();
+
+            while (result.next()) {
+                FlattenedIngredient ingredient = new FlattenedIngredient();
+                ingredient.templateId = (UUID) result.getObject(2);
+                ingredient.amount = result.getDouble(3);
+                ingredient.name = result.getString(4);
+                ingredient.unit = result.getString(5);
+
+                meals.get((UUID) result.getObject(1)).ingredients.add(ingredient);
+            }
+
+            return null;
+        })
+        .throwIfError()
+        .throwResponse();
+
+        return Response.Success(new GetMealsBulkResponse(new ArrayList<>(meals.values())));
+    }
+
     public static class Meal {
         @Nullable
         public String name;
@@ -287,80 +538,329 @@ public class MealController {
         Login login = Authorization.authorize(authorizationHeader);
         UUID familyOwner = Authorization.getFamilyOwnerId(login);
 
+        if (requestBody.meal.ingredients != null) {
+            List<UUID> templateIds = new ArrayList<>();
+            for (Ingredient ingredient : requestBody.meal.ingredients)
+                templateIds.add(ingredient.templateId);
+
+            if (hasDuplicateTemplates(templateIds))
+                return Response.Error(HttpStatus.BAD_REQUEST, "Each template can only be used once per meal.");
+        }
+
         if (requestBody.meal.mealPictureBase64 != null) {
-            BufferedImage image;
-            // Attempt to decode the image
+            byte[] image;
             try {
-                image = S3.decodeBase64Image(requestBody.meal.mealPictureBase64);
+                image = S3.decodeBase64(requestBody.meal.mealPictureBase64);
             } catch (IllegalArgumentException ex) {
                 return Response.Error(HttpStatus.BAD_REQUEST, "Meal picture is not a valid base64 string.");
-            } catch (IOException ex) {
-                return Response.Error(HttpStatus.INTERNAL_SERVER_ERROR, "Unable to decode image.", ex);
             }
 
-            if (image == null)
-                return Response.Error(HttpStatus.INTERNAL_SERVER_ERROR, "Unable to decode image.");
-
+            // Hashed as sent, so a picture that's already stored isn't decoded at all
             String mealKey = S3.getImageKey(MEAL_PREFIX, requestBody.mealId);
+            boolean decoded;
             try {
-                S3.uploadImage(image, mealKey);
+                decoded = S3.uploadImage(ByteBuffer.wrap(image), mealKey);
             } catch (Exception ex) {
                 return Response.Fail("Unable to upload image.");
             }
+
+            if (!decoded)
+                return Response.Error(HttpStatus.INTERNAL_SERVER_ERROR, "Unable to decode image.");
         }
 
         Database.openConnection((Connection con) -> {
-            if (requestBody.meal.name != null) {
-                PreparedStatement updateStatement = con.prepareStatement(String.format("""
-                    UPDATE %s
-                    SET name = ?
-                    WHERE id = ? AND owner = ?;
-                """, Database.MEALS_TABLE));
+            Meal meal = requestBody.meal;
 
-                updateStatement.setString(1, requestBody.meal.name);
-                updateStatement.setObject(2, requestBody.mealId);
-                updateStatement.setObject(3, familyOwner);
-
-                if (updateStatement.executeUpdate() < 1)
-                    return Response.Fail("Meal ID Not Found.");
-            }
-
-            if (requestBody.meal.isFavorite != null) {
+            // Name, favorite and picture flag all go in one UPDATE. Anything left null keeps its current value.
+            if (meal.name != null || meal.isFavorite != null || meal.mealPictureBase64 != null) {
                 PreparedStatement updateStatement = con.prepareStatement(String.format("""
                     UPDATE %s
-                    SET is_favorite = ?
+                    SET name = COALESCE(?, name),
+                        is_favorite = COALESCE(?, is_favorite),
+                        has_picture = has_picture OR ?
                     WHERE id = ? AND owner = ?;
                 """, Database.MEALS_TABLE));
 
-                updateStatement.setBoolean(1, requestBody.meal.isFavorite);
-                updateStatement.setObject(2, requestBody.mealId);
-                updateStatement.setObject(3, familyOwner);
+                updateStatement.setString(1, meal.name);
+                updateStatement.setObject(2, meal.isFavorite, Types.BOOLEAN);
+                updateStatement.setBoolean(3, meal.mealPictureBase64 != null);
+                updateStatement.setObject(4, requestBody.mealId);
+                updateStatement.setObject(5, familyOwner);
 
                 if (updateStatement.executeUpdate() < 1)
                     return Response.Fail("Meal ID Not Found.");
             }
 
             int added = 0;
-            if (requestBody.meal.ingredients != null) {
-                PreparedStatement deleteStatement = con.prepareStatement(String.format("""
-                    DELETE FROM %1$s
-                    USING %2$s
-                    WHERE meal_id = %2$s.id
-                    AND meal_id = ?
-                    AND owner = ?;
-                """, Database.MEAL_INGREDIENTS_TABLE, Database.MEALS_TABLE));
-                deleteStatement.setObject(1, requestBody.mealId);
-                deleteStatement.setObject(2, familyOwner);
+            if (meal.ingredients != null) {
+                IngredientDiffResult diff = applyIngredientList(con, requestBody.mealId, familyOwner, meal.ingredients);
 
-                deleteStatement.executeUpdate();
+                if (!diff.mealFound)
+                    return Response.Fail("Meal ID Not Found.");
+
+                added = diff.present;
 
-                added = insertMealIngredients(con, requestBody.mealId, requestBody.meal.ingredients);
+                if (diff.added + diff.updated + diff.removed > 0)
+                    MealPlanController.invalidateCache(familyOwner);
 
-                if (added < requestBody.meal.ingredients.size())
+                if (added < meal.ingredients.size())
                     return Response.Fail("Failed to add some ingredients.", new UpdateMealResponse(added));
             }
 
             return Response.Success(new UpdateMealResponse(added));
+        }).onSQLError((SQLException ex) -> {
+            if (ex.getSQLState().equals("23505"))
+                return Response.Fail("Meal with that name already exists.");
+
+            return null;
+        })
+        .throwIfError()
+        .throwResponse();
+
+        // This should be unreachable
+        return null;
+    }
+
+    public static class IngredientOperation {
+        @NotNull
+        public String op; // "add", "update", "remove" or "reorder"
+        @NotNull
+        public UUID templateId;
+        @Nullable
+        public Double amount;
+        @Nullable
+        public Integer orderIndex;
+    }
+
+    public static class PatchMealIngredientsRequest {
+        @NotNull
+        public UUID mealId;
+        @NotNull
+        @Valid
+        public List<IngredientOperation> operations;
+    }
+
+    @AllArgsConstructor
+    public static class PatchMealIngredientsResponse {
+        public int added;
+        public int updated;
+        public int removed;
+        public List<UUID> failedAdds; // templates that were already in the meal or don't exist
+    }
+
+    /***
+     * Renumbers the meal's ingredients 0, 1, 2... Ingredients in moved get exactly the position they asked for (or the
+     * end of the list, if it's past it), and the rest keep their order in the positions left over.
+     */
+    private static void renumberIngredients(Connection con, UUID mealId, Map<UUID, Integer> moved) throws SQLException {
+        PreparedStatement select = con.prepareStatement(String.format("""
+            SELECT template_id, order_index FROM %s
+            WHERE meal_id = ?
+            ORDER BY order_index, template_id
+            FOR UPDATE;
+        """, MEAL_INGREDIENTS_TABLE));
+        select.setObject(1, mealId);
+
+        // template id -> order_index, in the current order
+        Map<UUID, Integer> rows = new LinkedHashMap<>();
+        ResultSet result = select.executeQuery();
+        while (result.next())
+            rows.put((UUID) result.getObject(1), result.getInt(2));
+
+        UUID[] positions = new UUID[rows.size()];
+
+        // From the last one asked for, so ones past the end stay in the order they asked for
+        List<UUID> movedRows = new ArrayList<>(rows.keySet());
+        movedRows.retainAll(moved.keySet());
+        movedRows.sort(Comparator.comparing((UUID templateId) -> moved.get(templateId)).reversed());
+
+        int limit = positions.length - 1;
+        for (UUID templateId : movedRows) {
+            int position = Math.min(moved.get(templateId), limit);
+            positions[position] = templateId;
+            limit = position - 1;
+        }
+
+        int position = 0;
+        for (UUID templateId : rows.keySet()) {
+            if (moved.containsKey(templateId))
+                continue;
+
+            while (positions[position] != null)
+                position++;
+            positions[position] = templateId;
+        }
+
+        List<UUID> changedIds = new ArrayList<>();
+        List<Integer> changedIndices = new ArrayList<>();
+        for (int i = 0; i < positions.length; i++) {
+            if (rows.get(positions[i]) != i) {
+                changedIds.add(positions[i]);
+                changedIndices.add(i);
+            }
+        }
+
+        if (changedIds.size() == 0)
+            return;
+
+        PreparedStatement update = con.prepareStatement(String.format("""
+            UPDATE %s i
+            SET order_index = d.order_index
+            FROM unnest(?::uuid[], ?::int[]) AS d(template_id, order_index)
+            WHERE i.meal_id = ? AND i.template_id = d.template_id;
+        """, MEAL_INGREDIENTS_TABLE));
+        update.setArray(1, con.createArrayOf("uuid", changedIds.toArray()));
+        update.setArray(2, con.createArrayOf("int4", changedIndices.toArray()));
+        update.setObject(3, mealId);
+        update.executeUpdate();
+    }
+
+    @PostMapping("/patch-meal-ingredients")
+    public Response patchMealIngredients(@RequestHeader("Authorization") String authorizationHeader, @Valid @RequestBody PatchMealIngredientsRequest requestBody) {
+        Login login = Authorization.authorize(authorizationHeader);
+        UUID familyOwner = Authorization.getFamilyOwnerId(login);
+
+        if (requestBody.operations.size() == 0)
+            return Response.Success(new PatchMealIngredientsResponse(0, 0, 0, new ArrayList<>()));
+
+        int n = requestBody.operations.size();
+        String[] ops = new String[n];
+        UUID[] templateIds = new UUID[n];
+        Double[] amounts = new Double[n];
+        Integer[] orderIndices = new Integer[n];
+
+        // Ingredients given an orderIndex, which everything else moves around
+        Map<UUID, Integer> moved = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            IngredientOperation operation = requestBody.operations.get(i);
+
+            switch (operation.op) {
+                case "add":
+                    if (operation.amount == null)
+                        return Response.Error(HttpStatus.BAD_REQUEST, "Add operations need an amount.");
+                    break;
+                case "update":
+                    if (operation.amount == null && operation.orderIndex == null)
+                        return Response.Error(HttpStatus.BAD_REQUEST, "Update operations need an amount or orderIndex.");
+                    break;
+                case "reorder":
+                    if (operation.orderIndex == null)
+                        return Response.Error(HttpStatus.BAD_REQUEST, "Reorder operations need an orderIndex.");
+                    break;
+                case "remove":
+                    break;
+                default:
+                    return Response.Error(HttpStatus.BAD_REQUEST, "Unknown operation: " + operation.op);
+            }
+
+            if (operation.orderIndex != null && !operation.op.equals("remove")) {
+                if (operation.orderIndex < 0)
+                    return Response.Error(HttpStatus.BAD_REQUEST, "orderIndex can't be negative.");
+                if (moved.containsValue(operation.orderIndex))
+                    return Response.Error(HttpStatus.BAD_REQUEST, "Each orderIndex can only appear in one operation.");
+
+                moved.put(operation.templateId, operation.orderIndex);
+            }
+
+            ops[i] = operation.op;
+            templateIds[i] = operation.templateId;
+            amounts[i] = operation.amount;
+            orderIndices[i] = operation.orderIndex;
+        }
+
+        // Postgres doesn't allow the same row to be changed twice in one statement
+        if (hasDuplicateTemplates(List.of(templateIds)))
+            return Response.Error(HttpStatus.BAD_REQUEST, "Each template can only appear in one operation.");
+
+        Database.openConnection((Connection con) -> {
+            // All of the operations run as one statement. Adds without an orderIndex go on the end of the list,
+            // then if anything was given an orderIndex the list is renumbered around it.
+            PreparedStatement statement = con.prepareStatement(String.format("""
+                WITH meal AS (
+                    SELECT id FROM %1$s
+                    WHERE id = ? AND owner = ?
+                ), ops AS (
+                    SELECT * FROM unnest(?::text[], ?::uuid[], ?::float8[], ?::int[])
+                    WITH ORDINALITY AS o(op, template_id, amount, order_index, ord)
+                ), removed AS (
+                    DELETE FROM %2$s i
+                    USING meal, ops
+                    WHERE i.meal_id = meal.id AND i.template_id = ops.template_id
+                    AND ops.op = 'remove'
+                    RETURNING i.template_id
+                ), updated AS (
+                    UPDATE %2$s i
+                    SET amount = COALESCE(ops.amount, i.amount),
+                        order_index = COALESCE(ops.order_index, i.order_index)
+                    FROM meal, ops
+                    WHERE i.meal_id = meal.id AND i.template_id = ops.template_id
+                    AND ops.op IN ('update', 'reorder')
+                    RETURNING i.template_id
+                ), added AS (
+                    INSERT INTO %2$s (amount, template_id, meal_id, order_index)
+                    SELECT ops.amount, ops.template_id, meal.id, COALESCE(
+                        ops.order_index,
+                        (SELECT COALESCE(MAX(order_index) + 1, 0) FROM %2$s WHERE meal_id = meal.id)
+                            + (ROW_NUMBER() OVER (ORDER BY ops.ord))::int - 1
+                    )
+                    FROM meal, ops
+                    INNER JOIN %3$s t
+                    ON t.id = ops.template_id AND t.owner = ?
+                    WHERE ops.op = 'add' AND NOT EXISTS (
+                        SELECT 1 FROM %2$s i
+                        WHERE i.meal_id = meal.id AND i.template_id = ops.template_id
+                    )
+                    RETURNING template_id
+                )
+                SELECT
+                    (SELECT COUNT(*) FROM meal),
+                    (SELECT COUNT(*) FROM added),
+                    (SELECT COUNT(*) FROM updated),
+                    (SELECT COUNT(*) FROM removed),
+                    ARRAY(
+                        SELECT template_id FROM ops WHERE op = 'add'
+                        EXCEPT
+                        SELECT template_id FROM added
+                    );
+            """, MEALS_TABLE, MEAL_INGREDIENTS_TABLE, FOOD_ITEM_TEMPLATES_TABLE));
+
+            statement.setObject(1, requestBody.mealId);
+            statement.setObject(2, familyOwner);
+            statement.setArray(3, con.createArrayOf("text", ops));
+            statement.setArray(4, con.createArrayOf("uuid", templateIds));
+            statement.setArray(5, con.createArrayOf("float8", amounts));
+            statement.setArray(6, con.createArrayOf("int4", orderIndices));
+            statement.setObject(7, familyOwner);
+
+            PatchMealIngredientsResponse response;
+            try {
+                con.setAutoCommit(false);
+
+                ResultSet result = statement.executeQuery();
+                result.next();
+
+                if (result.getInt(1) == 0) {
+                    con.rollback();
+                    return Response.Fail("Meal ID Not Found.");
+                }
+
+                response = new PatchMealIngredientsResponse(result.getInt(2), result.getInt(3), result.getInt(4),
+                    List.of((UUID[]) result.getArray(5).getArray()));
+
+                if (moved.size() > 0)
+                    renumberIngredients(con, requestBody.mealId, moved);
+
+                con.commit();
+            } catch (SQLException | RuntimeException ex) {
+                con.rollback();
+
+                throw ex;
+            }
+
+            MealPlanController.invalidateCache(familyOwner);
+
+            // The other operations are applied either way, so skipped adds are only listed
+            return Response.Success(response);
         })
         .throwIfError()
         .throwResponse();
@@ -391,7 +891,7 @@ public class MealController {
 
         Database.openConnection((Connection con) -> {
             PreparedStatement statement = con.prepareStatement(String.format("""
-                SELECT id, name, is_favorite FROM %s
+                SELECT id, name, is_favorite, has_picture FROM %s
                 WHERE owner = ?
             """, Database.MEALS_TABLE));
             statement.setObject(1, familyOwner);
@@ -405,10 +905,161 @@ public class MealController {
                 meal.mealId = (UUID) result.getObject(1);
                 meal.name = result.getString(2);
                 meal.isFavorite = result.getBoolean(3);
-                
-                String key = S3.getImageKey(MEAL_PREFIX, meal.mealId);
-                if (S3.imageExists(key))
-                    meal.mealPictureURL = S3.getImageURL(key);
+
+                // has_picture instead of asking S3 for each meal
+                if (hasPicture(con, meal.mealId, (Boolean) result.getObject(4)))
+                    meal.mealPictureURL = S3.getImageURL(S3.getImageKey(MEAL_PREFIX, meal.mealId));
+
+                response.meals.add(meal);
+            }
+
+            return Response.Success(response);
+        })
+        .throwIfError()
+        .throwResponse();
+
+        // This should be unreachable
+        return null;
+    }
+
+    public static class MealDashboardCursor {
+        @NotNull
+        public Boolean isFavorite;
+        @NotNull
+        public String name;
+        @NotNull
+        public UUID mealId;
+    }
+
+    public static class GetMealDashboardRequest {
+        @Nullable
+        public Integer limit;
+        @Nullable
+        @Valid
+        public MealDashboardCursor after; // null for the first page
+    }
+
+    public static class MealDashboardEntry {
+        public UUID mealId;
+        public String name;
+        public boolean isFavorite;
+        public String mealPictureURL;
+        public int ingredientCount;
+        public boolean cookable;
+        public Double estimatedPrice; // null if some ingredient has never had a price
+    }
+
+    public static class GetMealDashboardResponse {
+        public List<MealDashboardEntry> meals;
+        public MealDashboardCursor nextCursor; // null when there are no more pages
+
+        public GetMealDashboardResponse() {
+            meals = new ArrayList<>();
+        }
+    }
+
+    public static final int MEAL_DASHBOARD_DEFAULT_LIMIT = 50;
+    public static final int MEAL_DASHBOARD_MAX_LIMIT = 200;
+
+    @PostMapping("/get-meal-dashboard")
+    public Response getMealDashboard(@RequestHeader("Authorization") String authorizationHeader, @Valid @RequestBody(required = false) GetMealDashboardRequest requestBody) {
+        Login login = Authorization.authorize(authorizationHeader);
+        UUID familyOwner = Authorization.getFamilyOwnerId(login);
+
+        if (requestBody == null)
+            requestBody = new GetMealDashboardRequest();
+
+        final var body = requestBody;
+
+        int limit = body.limit != null ? body.limit : MEAL_DASHBOARD_DEFAULT_LIMIT;
+        if (limit <= 0 || limit > MEAL_DASHBOARD_MAX_LIMIT)
+            return Response.Error(HttpStatus.BAD_REQUEST, "Limit must be between 1 and " + MEAL_DASHBOARD_MAX_LIMIT + ".");
+
+        Database.openConnection((Connection con) -> {
+            // Price and stock work the same way as calculate-meal-price and cook-meal:
+            // price comes from the oldest food item (0 if it has no price), or the template's last price if there are no food items,
+            // and an ingredient is covered if the food items add up to the amount (with the same 0.001 slack).
+            // Favorites come first, so the sort key is (NOT is_favorite, name, id).
+            String query = String.format("""
+                SELECT m.id, m.name, m.is_favorite, m.has_picture,
+                    COUNT(i.template_id) AS ingredient_count,
+                    COUNT(i.template_id) > 0 AND COALESCE(BOOL_AND(COALESCE(stock.on_hand, 0) >= i.amount - 0.001), false) AS cookable,
+                    CASE
+                        WHEN BOOL_OR(i.template_id IS NOT NULL AND COALESCE(oldest.unit_price, t.most_recent_unit_price) IS NULL) THEN NULL
+                        ELSE COALESCE(SUM(i.amount * COALESCE(oldest.unit_price, t.most_recent_unit_price)), 0)
+                    END AS estimated_price
+                FROM %1$s m
+                LEFT JOIN %2$s i
+                ON i.meal_id = m.id
+                LEFT JOIN %3$s t
+                ON t.id = i.template_id
+                LEFT JOIN LATERAL (
+                    SELECT SUM(f.amount) AS on_hand FROM %4$s f
+                    WHERE f.template_id = i.template_id
+                ) stock ON true
+                LEFT JOIN LATERAL (
+                    SELECT COALESCE(f.unit_price, 0) AS unit_price FROM %4$s f
+                    WHERE f.template_id = i.template_id
+                    ORDER BY f.add_date
+                    LIMIT 1
+                ) oldest ON true
+                WHERE m.owner = ?
+            """, MEALS_TABLE, MEAL_INGREDIENTS_TABLE, FOOD_ITEM_TEMPLATES_TABLE, FOOD_ITEMS_TABLE);
+
+            if (body.after != null)
+                query += " AND (NOT m.is_favorite, m.name, m.id) > (NOT ?, ?, ?)";
+
+            query += """
+
+                GROUP BY m.id, m.name, m.is_favorite, m.has_picture
+                ORDER BY NOT m.is_favorite, m.name, m.id
+                LIMIT ?;
+            """;
+
+            PreparedStatement statement = con.prepareStatement(query);
+
+            int i = 1;
+            statement.setObject(i, familyOwner);
+            i++;
+
+            if (body.after != null) {
+                statement.setBoolean(i, body.after.isFavorite);
+                i++;
+                statement.setString(i, body.after.name);
+                i++;
+                statement.setObject(i, body.after.mealId);
+                i++;
+            }
+
+            // Fetch one extra row to find out if there's another page
+            statement.setInt(i, limit + 1);
+
+            ResultSet result = statement.executeQuery();
+
+            GetMealDashboardResponse response = new GetMealDashboardResponse();
+            while (result.next()) {
+                if (response.meals.size() == limit) {
+                    MealDashboardEntry last = response.meals.get(response.meals.size() - 1);
+
+                    response.nextCursor = new MealDashboardCursor();
+                    response.nextCursor.isFavorite = last.isFavorite;
+                    response.nextCursor.name = last.name;
+                    response.nextCursor.mealId = last.mealId;
+                    break;
+                }
+
+                MealDashboardEntry meal = new MealDashboardEntry();
+                meal.mealId = (UUID) result.getObject("id");
+                meal.name = result.getString("name");
+                meal.isFavorite = result.getBoolean("is_favorite");
+                meal.ingredientCount = result.getInt("ingredient_count");
+                meal.cookable = result.getBoolean("cookable");
+
+                double price = result.getDouble("estimated_price");
+                meal.estimatedPrice = result.wasNull() ? null : price;
+
+                if (hasPicture(con, meal.mealId, (Boolean) result.getObject("has_picture")))
+                    meal.mealPictureURL = S3.getImageURL(S3.getImageKey(MEAL_PREFIX, meal.mealId));
 
                 response.meals.add(meal);
             }
@@ -530,9 +1181,8 @@ public class MealController {
         .throwIfError()
         .throwResponse();
 
-        String key = S3.getImageKey(MEAL_PREFIX, requestBody.mealId);
-        S3Upload s3Upload = new S3Upload(key);
-        Upload upload = UploadController.uploader.initializeUpload(UploadController.UPLOAD_CHUNK_SIZE, requestBody.fileSize, s3Upload);
+        MealPictureUpload s3Upload = new MealPictureUpload(requestBody.mealId);
+        Upload upload = UploadController.uploader.initializeUpload(UploadController.UPLOAD_CHUNK_SIZE, requestBody.fileSize, login.userId, s3Upload);
 
         return Response.Success(new InitializeMealPictureUploadResponse(upload.getUploadId(), upload.getChunkCount(), upload.getChunkSize()));
     }
@@ -686,6 +1336,8 @@ public class MealController {
                 deleteStatement.executeUpdate();
 
                 con.commit();
+
+                MealPlanController.invalidateCache(familyOwner);
             } catch (SQLException ex) {
                 con.rollback();
 
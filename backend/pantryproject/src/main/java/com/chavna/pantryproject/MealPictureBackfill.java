@@ -0,0 +1,95 @@
+package com.chavna.pantryproject;
+
+import static com.chavna.pantryproject.Database.MEALS_TABLE;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/***
+ * Sets meals.has_picture for meals from before the column, where it's still null, by asking S3 whether meal-<id>.jpg
+ * exists. Those pictures are all under their own key, so a HEAD is enough. See "Meal pictures flag" in Database.md.
+ *
+ * Meals are saved a batch at a time, only where has_picture is still null, so it can be stopped and run again, and
+ * listing meals checking one of them in the meantime doesn't conflict.
+ * ./gradlew backfillMealPictures
+ */
+public class MealPictureBackfill {
+    private static final int BATCH_SIZE = 1000;
+    private static final int THREADS = 16;
+
+    public static void backfill() {
+        List<UUID> mealIds = new ArrayList<>();
+
+        Database.openConnection((Connection con) -> {
+            PreparedStatement select = con.prepareStatement(String.format("""
+                SELECT id FROM %s
+                WHERE has_picture IS NULL;
+            """, MEALS_TABLE));
+
+            ResultSet result = select.executeQuery();
+            while (result.next())
+                mealIds.add((UUID) result.getObject(1));
+
+            return null;
+        })
+        .throwIfError()
+        .ignoreResponse();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        int withPicture = 0;
+
+        try {
+            for (int start = 0; start < mealIds.size(); start += BATCH_SIZE) {
+                List<UUID> batch = mealIds.subList(start, Math.min(start + BATCH_SIZE, mealIds.size()));
+
+                List<Future<Boolean>> heads = new ArrayList<>();
+                for (UUID mealId : batch)
+                    heads.add(executor.submit(() -> S3.objectExists(S3.getImageKey(MealController.MEAL_PREFIX, mealId))));
+
+                Boolean[] hasPicture = new Boolean[batch.size()];
+                for (int i = 0; i < hasPicture.length; i++) {
+                    hasPicture[i] = heads.get(i).get();
+                    if (hasPicture[i])
+                        withPicture++;
+                }
+
+                Database.openConnection((Connection con) -> {
+                    PreparedStatement update = con.prepareStatement(String.format("""
+                        UPDATE %s m
+                        SET has_picture = d.has_picture
+                        FROM unnest(?::uuid[], ?::boolean[]) AS d(id, has_picture)
+                        WHERE m.id = d.id AND m.has_picture IS NULL;
+                    """, MEALS_TABLE));
+                    update.setArray(1, con.createArrayOf("uuid", batch.toArray()));
+                    update.setArray(2, con.createArrayOf("boolean", hasPicture));
+                    update.executeUpdate();
+
+                    return null;
+                })
+                .throwIfError()
+                .ignoreResponse();
+
+                System.out.println("Meals checked: " + (start + batch.size()) + "/" + mealIds.size());
+            }
+        } catch (InterruptedException | ExecutionException ex) {
+            throw new RuntimeException("Failed to check meal pictures.", ex);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        System.out.println("Meals with a picture: " + withPicture + "/" + mealIds.size());
+    }
+
+    public static void main(String[] args) {
+        backfill();
+        System.exit(0);
+    }
+}
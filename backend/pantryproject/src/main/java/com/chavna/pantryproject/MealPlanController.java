@@ -0,0 +1,304 @@
+package com.chavna.pantryproject;
+
+import static com.chavna.pantryproject.Database.FOOD_ITEMS_TABLE;
+import static com.chavna.pantryproject.Database.FOOD_ITEM_TEMPLATES_TABLE;
+import static com.chavna.pantryproject.Database.MEALS_TABLE;
+import static com.chavna.pantryproject.Database.MEAL_INGREDIENTS_TABLE;
+import static com.chavna.pantryproject.Database.MEAL_PLAN_TABLE;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.chavna.pantryproject.Authorization.Login;
+
+import jakarta.annotation.Nullable;
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotNull;
+import lombok.AllArgsConstructor;
+
+@RestController
+public class MealPlanController {
+    public static final int MAX_PLAN_DAYS = 62;
+
+    //            //
+    //  CACHING   //
+    //            //
+
+    // Plans get reopened a lot, so the computed response is cached per household and date range.
+    // Anything that changes the plan, the meals in it or the pantry has to call invalidateCache.
+    // The TTL is there because other app nodes have their own cache and won't see the invalidation.
+    private static final Duration CACHE_TTL = Duration.ofMinutes(2);
+    private static final int MAX_CACHED_RANGES_PER_OWNER = 16;
+    private static final int MAX_CACHED_OWNERS = 10_000;
+
+    @AllArgsConstructor
+    private static class CachedPlan {
+        GetMealPlanResponse plan;
+        Instant created;
+    }
+
+    private static final ConcurrentHashMap<UUID, Map<String, CachedPlan>> planCache = new ConcurrentHashMap<>();
+
+    public static void invalidateCache(UUID owner) {
+        // Anything still computing holds onto the old map, so a stale result can't end up back in the cache.
+        planCache.remove(owner);
+    }
+
+    private static String getRangeKey(LocalDate start, LocalDate end) {
+        return start.toString() + "/" + end.toString();
+    }
+
+    //                //
+    //  PLAN REQUESTS //
+    //                //
+
+    public static class AddMealPlanEntryRequest {
+        @NotNull
+        public UUID mealId;
+        @NotNull
+        public LocalDate date;
+        @Nullable
+        public Double servings; // defaults to 1
+    }
+
+    @AllArgsConstructor
+    public static class AddMealPlanEntryResponse {
+        public UUID entryId;
+    }
+
+    @PostMapping("/add-meal-plan-entry")
+    public Response addMealPlanEntry(@RequestHeader("Authorization") String authorizationHeader, @Valid @RequestBody AddMealPlanEntryRequest requestBody) {
+        Login login = Authorization.authorize(authorizationHeader);
+        UUID familyOwner = Authorization.getFamilyOwnerId(login);
+
+        double servings = requestBody.servings != null ? requestBody.servings : 1;
+        if (servings <= 0)
+            return Response.Error(HttpStatus.BAD_REQUEST, "Servings must be > 0.");
+
+        Database.openConnection((Connection con) -> {
+            PreparedStatement statement = con.prepareStatement(String.format("""
+                INSERT INTO %s (owner, meal_id, plan_date, servings)
+                SELECT owner, id, ?, ? FROM %s
+                WHERE id = ? AND owner = ?
+                RETURNING id;
+            """, MEAL_PLAN_TABLE, MEALS_TABLE));
+
+            statement.setObject(1, requestBody.date);
+            statement.setDouble(2, servings);
+            statement.setObject(3, requestBody.mealId);
+            statement.setObject(4, familyOwner);
+
+            ResultSet result = statement.executeQuery();
+
+            if (!result.next())
+                return Response.Fail("Meal not found.");
+
+            invalidateCache(familyOwner);
+
+            return Response.Success(new AddMealPlanEntryResponse((UUID) result.getObject(1)));
+        })
+        .throwIfError()
+        .throwResponse();
+
+        // This should be unreachable
+        return null;
+    }
+
+    public static class RemoveMealPlanEntryRequest {
+        @NotNull
+        public UUID entryId;
+    }
+
+    @PostMapping("/remove-meal-plan-entry")
+    public Response removeMealPlanEntry(@RequestHeader("Authorization") String authorizationHeader, @Valid @RequestBody RemoveMealPlanEntryRequest requestBody) {
+        Login login = Authorization.authorize(authorizationHeader);
+        UUID familyOwner = Authorization.getFamilyOwnerId(login);
+
+        Database.openConnection((Connection con) -> {
+            PreparedStatement statement = con.prepareStatement(String.format("""
+                DELETE FROM %s
+                WHERE id = ? AND owner = ?;
+            """, MEAL_PLAN_TABLE));
+
+            statement.setObject(1, requestBody.entryId);
+            statement.setObject(2, familyOwner);
+
+            if (statement.executeUpdate() == 0)
+                return Response.Fail("Meal plan entry not found.");
+
+            invalidateCache(familyOwner);
+
+            return null;
+        })
+        .throwIfError()
+        .throwResponse();
+
+        return Response.Success("Meal plan entry removed.");
+    }
+
+    public static class GetMealPlanRequest {
+        @NotNull
+        public LocalDate start;
+        @NotNull
+        public LocalDate end; // inclusive
+    }
+
+    public static class MealPlanEntry {
+        public UUID entryId;
+        public UUID mealId;
+        public String mealName;
+        public LocalDate date;
+        public double servings;
+    }
+
+    public static class IngredientShortage {
+        public UUID templateId;
+        public String name;
+        public String unit;
+        public double required;
+        public double onHand;
+        public double shortage;
+    }
+
+    public static class GetMealPlanResponse {
+        public List<MealPlanEntry> entries;
+        public List<IngredientShortage> shortages;
+
+        public GetMealPlanResponse() {
+            entries = new ArrayList<>();
+            shortages = new ArrayList<>();
+        }
+    }
+
+    @PostMapping("/get-meal-plan")
+    public Response getMealPlan(@RequestHeader("Authorization") String authorizationHeader, @Valid @RequestBody GetMealPlanRequest requestBody) {
+        Login login = Authorization.authorize(authorizationHeader);
+        UUID familyOwner = Authorization.getFamilyOwnerId(login);
+
+        if (requestBody.end.isBefore(requestBody.start))
+            return Response.Error(HttpStatus.BAD_REQUEST, "End date must not be before start date.");
+
+        if (ChronoUnit.DAYS.between(requestBody.start, requestBody.end) >= MAX_PLAN_DAYS)
+            return Response.Error(HttpStatus.BAD_REQUEST, "Meal plans can cover at most " + MAX_PLAN_DAYS + " days.");
+
+        String rangeKey = getRangeKey(requestBody.start, requestBody.end);
+
+        if (planCache.size() > MAX_CACHED_OWNERS)
+            planCache.clear();
+
+        Map<String, CachedPlan> ownerPlans = planCache.computeIfAbsent(familyOwner, (UUID owner) -> new ConcurrentHashMap<>());
+
+        CachedPlan cached = ownerPlans.get(rangeKey);
+        if (cached != null && Duration.between(cached.created, Instant.now()).compareTo(CACHE_TTL) < 0)
+            return Response.Success(cached.plan);
+
+        GetMealPlanResponse response = new GetMealPlanResponse();
+        Database.openConnection((Connection con) -> {
+            response.entries = getEntries(con, familyOwner, requestBody.start, requestBody.end);
+            response.shortages = getShortages(con, familyOwner, requestBody.start, requestBody.end);
+
+            return null;
+        })
+        .throwIfError()
+        .throwResponse();
+
+        if (ownerPlans.size() >= MAX_CACHED_RANGES_PER_OWNER)
+            ownerPlans.clear();
+
+        ownerPlans.put(rangeKey, new CachedPlan(response, Instant.now()));
+
+        return Response.Success(response);
+    }
+
+    private static List<MealPlanEntry> getEntries(Connection con, UUID owner, LocalDate start, LocalDate end) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(String.format("""
+            SELECT p.id, p.meal_id, m.name, p.plan_date, p.servings FROM %1$s p
+            INNER JOIN %2$s m
+            ON m.id = p.meal_id
+            WHERE p.owner = ? AND p.plan_date BETWEEN ? AND ?
+            ORDER BY p.plan_date, m.name;
+        """, MEAL_PLAN_TABLE, MEALS_TABLE));
+
+        statement.setObject(1, owner);
+        statement.setObject(2, start);
+        statement.setObject(3, end);
+
+        ResultSet result = statement.executeQuery();
+
+        List<MealPlanEntry> entries = new ArrayList<>();
+        while (result.next()) {
+            MealPlanEntry entry = new MealPlanEntry();
+            entry.entryId = (UUID) result.getObject(1);
+            entry.mealId = (UUID) result.getObject(2);
+            entry.mealName = result.getString(3);
+            entry.date = result.getObject(4, LocalDate.class);
+            entry.servings = result.getDouble(5);
+
+            entries.add(entry);
+        }
+
+        return entries;
+    }
+
+    private static List<IngredientShortage> getShortages(Connection con, UUID owner, LocalDate start, LocalDate end) throws SQLException {
+        // Adds up what every planned meal needs per template, then compares it against everything in the pantry.
+        // Uses the same 0.001 slack as cook-meal.
+        PreparedStatement statement = con.prepareStatement(String.format("""
+            WITH required AS (
+                SELECT i.template_id, SUM(i.amount * p.servings) AS required FROM %1$s p
+                INNER JOIN %2$s i
+                ON i.meal_id = p.meal_id
+                WHERE p.owner = ? AND p.plan_date BETWEEN ? AND ?
+                GROUP BY i.template_id
+            )
+            SELECT t.id, t.name, t.unit, r.required, COALESCE(stock.on_hand, 0) AS on_hand FROM required r
+            INNER JOIN %3$s t
+            ON t.id = r.template_id AND t.owner = ?
+            LEFT JOIN LATERAL (
+                SELECT SUM(f.amount) AS on_hand FROM %4$s f
+                WHERE f.template_id = r.template_id
+            ) stock ON true
+            WHERE r.required - COALESCE(stock.on_hand, 0) > 0.001
+            ORDER BY t.name;
+        """, MEAL_PLAN_TABLE, MEAL_INGREDIENTS_TABLE, FOOD_ITEM_TEMPLATES_TABLE, FOOD_ITEMS_TABLE));
+
+        statement.setObject(1, owner);
+        statement.setObject(2, start);
+        statement.setObject(3, end);
+        statement.setObject(4, owner);
+
+        ResultSet result = statement.executeQuery();
+
+        List<IngredientShortage> shortages = new ArrayList<>();
+        while (result.next()) {
+            IngredientShortage shortage = new IngredientShortage();
+            shortage.templateId = (UUID) result.getObject(1);
+            shortage.name = result.getString(2);
+            shortage.unit = result.getString(3);
+            shortage.required = result.getDouble(4);
+            shortage.onHand = result.getDouble(5);
+            shortage.shortage = shortage.required - shortage.onHand;
+
+            shortages.add(shortage);
+        }
+
+        return shortages;
+    }
+}
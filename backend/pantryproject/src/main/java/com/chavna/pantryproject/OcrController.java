@@ -6,33 +6,50 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
 
-import com.chavna.pantryproject.ReceiptParser.Point;
-import com.chavna.pantryproject.ReceiptParser.Word;
+import com.chavna.pantryproject.Authorization.Login;
 import com.chavna.pantryproject.Uploader.Upload;
 
+import jakarta.annotation.Nullable;
 import jakarta.validation.Valid;
 import jakarta.validation.constraints.NotNull;
 import lombok.AllArgsConstructor;
 
-import java.util.ArrayList;
+import java.time.Duration;
 import java.util.List;
 import java.util.UUID;
-
-import software.amazon.awssdk.core.SdkBytes;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.textract.TextractClient;
-import software.amazon.awssdk.services.textract.model.Block;
-import software.amazon.awssdk.services.textract.model.BlockType;
-import software.amazon.awssdk.services.textract.model.DetectDocumentTextRequest;
-import software.amazon.awssdk.services.textract.model.DetectDocumentTextResponse;
-import software.amazon.awssdk.services.textract.model.Document;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 public class OcrController {
-    private static TextractClient textractClient = TextractClient.builder()
-        .region(Region.US_EAST_1)
+    public static final OcrJobQueue ocrQueue = OcrJobQueue.builder()
+        .recognizer(OcrResultCache.builder()
+            .recognizer(ImagePreprocessor.builder()
+                .recognizer(TiledTextRecognizer.builder()
+                    .recognizer(new TextractRecognizer())
+                    .tileAspect(2.5)
+                    .overlapAspect(0.2)
+                    .threads(8)
+                    .maxQueued(32)
+                    .build())
+                .maxWidth(1600)
+                .maxHeight(16000)
+                .jpegQuality(0.85f)
+                .threads(Math.max(Runtime.getRuntime().availableProcessors() - 1, 1))
+                .maxQueued(16)
+                .build())
+            .maxEntries(256)
+            .ttl(Duration.ofDays(7))
+            .persistent(true)
+            .build())
+        .workers(4)
+        .maxQueued(32)
+        .maxPerUser(2)
+        .resultLifetime(Duration.ofMinutes(10))
         .build();
 
+    // Long polls on receipt-scan-status wait at most this long
+    public static final Duration MAX_STATUS_WAIT = Duration.ofSeconds(25);
+
     public static class InitializeReceiptUploadRequest {
         @NotNull
         public Integer fileSize;
@@ -50,10 +67,10 @@ public class OcrController {
         if (requestBody.fileSize <= 0)
             return Response.Error(HttpStatus.BAD_REQUEST, "File size must be > 0.");
 
-        // require login, but don't acutally use creds
-        Authorization.authorize(authorizationHeader);
+        Login login = Authorization.authorize(authorizationHeader);
 
-        Upload upload = UploadController.uploader.initializeUpload(UploadController.UPLOAD_CHUNK_SIZE, requestBody.fileSize);
+        // The user is kept so scans of the upload count against them
+        Upload upload = UploadController.uploader.initializeUpload(UploadController.UPLOAD_CHUNK_SIZE, requestBody.fileSize, login.userId, login.userId);
 
         return Response.Success(new InitializeReceiptUploadResponse(upload.getUploadId(), upload.getChunkCount(), upload.getChunkSize()));
     }
@@ -61,94 +78,148 @@ public class OcrController {
     public static class ScanRequest {
         @NotNull
         public UUID uploadId;
+        @Nullable
+        public Boolean structured; // also read line items off the receipt
+    }
+
+    @AllArgsConstructor
+    public static class StructuredScanResponse {
+        public ReceiptGeometry lines;
+        public List<ReceiptStructure.LineItem> items;
+        public Double total;
     }
 
+    /***
+     * Runs through the job queue like submit-receipt-scan, but answers once the job is done.
+     * The request thread is let go while it waits.
+     */
     @PostMapping("/scan-receipt")
-    @SuppressWarnings("CatchAndPrintStackTrace")
-    public Response scanReceipt(@Valid @RequestBody ScanRequest requestBody) {
+    public CompletableFuture<Response> scanReceipt(@Valid @RequestBody ScanRequest requestBody) {
         Upload upload = UploadController.uploader.getUpload(requestBody.uploadId);
+        if (upload == null || !(upload.getMetadata() instanceof UUID))
+            return CompletableFuture.completedFuture(Response.Fail("Invalid uploadId."));
 
         if (!upload.isComplete())
-            return Response.Fail("Upload incomplete.");
-        
-        SdkBytes bytes = SdkBytes.fromByteArray(upload.finish());
-        Document document = Document.builder().bytes(bytes).build();
-
-        DetectDocumentTextRequest detectRequest = DetectDocumentTextRequest.builder()
-                .document(document)
-                .build();
-        DetectDocumentTextResponse detectResponse = textractClient.detectDocumentText(detectRequest);
-
-        ArrayList<Word> words = new ArrayList<>();
-        float totalAngle = 0;
-        int count = 0;
-        for (Block block : detectResponse.blocks()) {
-            if (block.blockType() == BlockType.WORD) {
-                // Some of this stuff can be null, so i'm not gonna risk it
-                
-                try {
-                    List<software.amazon.awssdk.services.textract.model.Point> polygon = block.geometry().polygon();
-                    var a  = polygon.get(0);
-                    var b = polygon.get(1);
-                    
-                    float angle = (float) Math.atan2(b.y() - a.y(), b.x() - a.x());
-
-                    totalAngle += angle;
-                    count += 1;
-
-                    Point[] points = new Point[polygon.size()];
-                    for (int i = 0; i < polygon.size(); i++) {
-                        var p = polygon.get(i);
-                        points[i] = new Point(p.x(), p.y());
-                    }
-
-                    words.add(new Word(0, 0, 0, 0, points, block.text()));
-                } catch (NullPointerException ex) {
-                    ex.printStackTrace();
-                } 
+            return CompletableFuture.completedFuture(Response.Fail("Upload incomplete."));
+
+        OcrJobQueue.Job job;
+        try {
+            job = ocrQueue.submit((UUID) upload.getMetadata(), () -> ChunkStore.toBytes(upload.finish()), requestBody.structured != null && requestBody.structured);
+        } catch (OcrJobQueue.RejectedException ex) {
+            return CompletableFuture.completedFuture(rejected(ex));
+        }
+
+        return job.whenFinished().thenApply((OcrJobQueue.Job finished) -> {
+            if (finished.isUnreadable())
+                return Response.Fail("Image is blank or unreadable.");
+
+            if (finished.getStatus() == OcrJobQueue.Status.FAILED)
+                return Response.Error(HttpStatus.BAD_GATEWAY, "Could not read receipt.");
+
+            System.out.println("avgAngle: " + finished.getGeometry().getAngle());
+
+            if (finished.isStructured()) {
+                ReceiptStructure structure = finished.getStructure();
+
+                return Response.Success(new StructuredScanResponse(finished.getGeometry(), structure.getItems(), structure.getTotal()));
             }
+
+            return Response.Success(finished.getGeometry());
+        });
+    }
+
+    @AllArgsConstructor
+    public static class SubmitReceiptScanResponse {
+        public UUID jobId;
+    }
+
+    @PostMapping("/submit-receipt-scan")
+    public Response submitReceiptScan(@RequestHeader("Authorization") String authorizationHeader, @Valid @RequestBody ScanRequest requestBody) {
+        Login login = Authorization.authorize(authorizationHeader);
+
+        Upload upload = UploadController.uploader.getUpload(requestBody.uploadId);
+        if (upload == null || !login.userId.equals(upload.getMetadata()))
+            return Response.Fail("Invalid uploadId.");
+
+        if (!upload.isComplete())
+            return Response.Fail("Upload incomplete.");
+
+        OcrJobQueue.Job job;
+        try {
+            job = ocrQueue.submit(login.userId, () -> ChunkStore.toBytes(upload.finish()), requestBody.structured != null && requestBody.structured);
+        } catch (OcrJobQueue.RejectedException ex) {
+            return rejected(ex);
         }
 
-        double avgAngle = totalAngle / count;
+        return Response.Success(new SubmitReceiptScanResponse(job.getJobId()));
+    }
+
+    public static class ReceiptScanStatusRequest {
+        @NotNull
+        public UUID jobId;
+        @Nullable
+        public Integer waitSeconds; // wait up to this long for the job to finish, capped at MAX_STATUS_WAIT
+    }
+
+    public static class ReceiptScanStatusResponse {
+        public OcrJobQueue.Status status;
+        @Nullable
+        public ReceiptGeometry lines; // once DONE
+        @Nullable
+        public List<ReceiptStructure.LineItem> items; // once DONE, if structured
+        @Nullable
+        public Double total;
+        @Nullable
+        public String error; // once FAILED
+    }
 
-        ReceiptParser parser = new ReceiptParser();
-        for (Word w : words) {
-            Point[] polygon = w.getOriginalPolygon();
+    @PostMapping("/receipt-scan-status")
+    public CompletableFuture<Response> receiptScanStatus(@RequestHeader("Authorization") String authorizationHeader, @Valid @RequestBody ReceiptScanStatusRequest requestBody) {
+        Login login = Authorization.authorize(authorizationHeader);
 
-            Float minX = null;
-            Float maxX = null;
-            Float minY = null;
-            Float maxY = null;
+        if (requestBody.waitSeconds != null && requestBody.waitSeconds < 0)
+            return CompletableFuture.completedFuture(Response.Error(HttpStatus.BAD_REQUEST, "waitSeconds must be >= 0."));
 
-            // Rotate all points by -avgAngle to straighten the lines
-            for (int i = 0; i < polygon.length; i++) {
-                Point point = polygon[i];
-                double x = point.x*Math.cos(-avgAngle) - point.y*Math.sin(-avgAngle);
-                double y = point.x*Math.sin(-avgAngle) + point.y*Math.cos(-avgAngle);
+        OcrJobQueue.Job job = ocrQueue.getJob(requestBody.jobId, login.userId);
+        if (job == null)
+            return CompletableFuture.completedFuture(Response.Fail("Job does not exist."));
 
-                if (minX == null || x < minX)
-                    minX = (float) x;
+        if (job.isFinished() || requestBody.waitSeconds == null || requestBody.waitSeconds == 0)
+            return CompletableFuture.completedFuture(Response.Success(statusOf(job)));
 
-                if (maxX == null || x > maxX)
-                    maxX = (float) x;
+        Duration wait = Duration.ofSeconds(requestBody.waitSeconds);
+        if (wait.compareTo(MAX_STATUS_WAIT) > 0)
+            wait = MAX_STATUS_WAIT;
 
-                if (minY == null || y < minY)
-                    minY = (float) y;
+        return job.whenFinished(wait).thenApply((OcrJobQueue.Job current) -> Response.Success(statusOf(current)));
+    }
 
-                if (maxY == null || y > maxY)
-                    maxY = (float) y;
-            }
-            
-            minX = minX != null? minX : 0;
-            minY = minY != null? minY : 0;
-            maxX = maxX != null? maxX : 0;
-            maxY = maxY != null? maxY : 0;
+    private static ReceiptScanStatusResponse statusOf(OcrJobQueue.Job job) {
+        ReceiptScanStatusResponse response = new ReceiptScanStatusResponse();
+        response.status = job.getStatus();
 
-            parser.addWord(new Word(minX, minY, maxX - minX, maxY - minY, polygon, w.getText()));
+        if (job.getStatus() == OcrJobQueue.Status.DONE) {
+            response.lines = job.getGeometry();
+
+            if (job.getStructure() != null) {
+                response.items = job.getStructure().getItems();
+                response.total = job.getStructure().getTotal();
+            }
+        } else if (job.getStatus() == OcrJobQueue.Status.FAILED) {
+            response.error = job.isUnreadable() ? "Image is blank or unreadable." : "Could not read receipt.";
         }
 
-        System.out.println("avgAngle: " + avgAngle);
+        return response;
+    }
+
+    /***
+     * 429 with a Retry-After, like upload rejections (see UploadController.rejected), so clients back off the same way.
+     * A user's own scans are waited out, a full queue only needs a moment for a worker to free up.
+     */
+    private static Response rejected(OcrJobQueue.RejectedException ex) {
+        if (ex.getReason() == OcrJobQueue.RejectReason.USER_LIMIT)
+            return Response.RetryLater("Too many scans in progress.", Duration.ofSeconds(5));
 
-        return Response.Success(parser.getLines());
+        return Response.RetryLater("Scan queue is full, try again later.", Duration.ofSeconds(2));
     }
 }
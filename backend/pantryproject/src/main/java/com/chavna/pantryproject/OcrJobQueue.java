@@ -0,0 +1,261 @@
+package com.chavna.pantryproject;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.Builder;
+import lombok.Getter;
+
+/***
+ * Runs text recognition on a fixed pool of worker threads so request threads don't wait on it.
+ *
+ * At most maxQueued jobs wait for a worker and each user can have at most maxPerUser jobs queued or running, anything
+ * past that is rejected right away. Finished jobs are kept for resultLifetime so clients can come back for them.
+ *
+ * Metrics (Metrics.globalRegistry):
+ * - ocr.jobs.submitted, ocr.jobs.rejected{reason}, ocr.jobs.finished{status}
+ * - ocr.jobs.queued, ocr.jobs.running (gauges)
+ * - ocr.jobs.wait (time spent queued), ocr.jobs.run (time spent recognizing), ocr.jobs.total (submitted to finished)
+ */
+public class OcrJobQueue {
+    public enum Status {
+        QUEUED,
+        RUNNING,
+        DONE,
+        FAILED
+    }
+
+    public enum RejectReason {
+        QUEUE_FULL,
+        USER_LIMIT
+    }
+
+    public static class RejectedException extends RuntimeException {
+        @Getter
+        private final RejectReason reason;
+
+        public RejectedException(RejectReason reason) {
+            super(reason.toString());
+            this.reason = reason;
+        }
+    }
+
+    public static class Job {
+        @Getter
+        private final UUID jobId;
+        @Getter
+        private final UUID owner;
+        @Getter
+        private final boolean structured;
+        @Getter
+        private volatile Status status = Status.QUEUED;
+        @Getter
+        private volatile ReceiptGeometry geometry; // set once DONE
+        @Getter
+        private volatile ReceiptStructure structure; // set once DONE if structured
+        @Getter
+        private volatile String error; // set once FAILED
+        @Getter
+        private volatile boolean unreadable; // FAILED because the image can't be read, not because something broke
+
+        private Supplier<byte[]> image; // dropped once the job starts
+        private final Instant submitted = Instant.now();
+        private volatile Instant finished;
+        private final CompletableFuture<Job> done = new CompletableFuture<>();
+
+        private Job(UUID owner, Supplier<byte[]> image, boolean structured) {
+            this.jobId = UUID.randomUUID();
+            this.owner = owner;
+            this.image = image;
+            this.structured = structured;
+        }
+
+        public boolean isFinished() {
+            return status == Status.DONE || status == Status.FAILED;
+        }
+
+        /***
+         * Completes with the job once it's finished.
+         */
+        public CompletableFuture<Job> whenFinished() {
+            return done.copy();
+        }
+
+        /***
+         * Completes with the job once it's finished, or after timeout with the job as it is then.
+         */
+        public CompletableFuture<Job> whenFinished(Duration timeout) {
+            return done.copy().completeOnTimeout(this, timeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final TextRecognizer recognizer;
+    private final int maxPerUser;
+    private final Duration resultLifetime;
+
+    private final ThreadPoolExecutor workers;
+    private final ConcurrentHashMap<UUID, Job> jobs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UUID, Integer> activePerUser = new ConcurrentHashMap<>();
+    private final AtomicInteger running = new AtomicInteger();
+
+    private final ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor((Runnable runnable) -> {
+        Thread thread = new Thread(runnable, "ocr-job-cleanup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Counter submittedCounter = Metrics.counter("ocr.jobs.submitted");
+    private final Counter queueFullCounter = Metrics.counter("ocr.jobs.rejected", "reason", "queue_full");
+    private final Counter userLimitCounter = Metrics.counter("ocr.jobs.rejected", "reason", "user_limit");
+    private final Counter doneCounter = Metrics.counter("ocr.jobs.finished", "status", "done");
+    private final Counter failedCounter = Metrics.counter("ocr.jobs.finished", "status", "failed");
+    private final Timer waitTimer = Metrics.timer("ocr.jobs.wait");
+    private final Timer runTimer = Metrics.timer("ocr.jobs.run");
+    private final Timer totalTimer = Metrics.timer("ocr.jobs.total");
+
+    @Builder
+    private OcrJobQueue(TextRecognizer recognizer, int workers, int maxQueued, int maxPerUser, Duration resultLifetime) {
+        if (recognizer == null || resultLifetime == null)
+            throw new IllegalArgumentException("recognizer and resultLifetime are required.");
+
+        if (workers <= 0 || maxQueued <= 0 || maxPerUser <= 0)
+            throw new IllegalArgumentException("workers, maxQueued and maxPerUser must be > 0.");
+
+        this.recognizer = recognizer;
+        this.maxPerUser = maxPerUser;
+        this.resultLifetime = resultLifetime;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(maxQueued),
+            (Runnable runnable) -> {
+                Thread thread = new Thread(runnable, "ocr-worker-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+        Metrics.gauge("ocr.jobs.queued", this.workers, (ThreadPoolExecutor executor) -> executor.getQueue().size());
+        Metrics.gauge("ocr.jobs.running", running, AtomicInteger::get);
+
+        long cleanupMinutes = Math.max(resultLifetime.toMinutes() / 2, 1);
+        cleaner.scheduleWithFixedDelay(this::cleanup, cleanupMinutes, cleanupMinutes, TimeUnit.MINUTES);
+    }
+
+    /***
+     * Queues recognition of the image for owner.
+     * @param image - Called once on a worker thread, so a rejected job doesn't use up an upload.
+     * @throws RejectedException If the queue is full or owner already has maxPerUser jobs queued or running.
+     */
+    public Job submit(UUID owner, Supplier<byte[]> image, boolean structured) {
+        if (!acquire(owner)) {
+            userLimitCounter.increment();
+            throw new RejectedException(RejectReason.USER_LIMIT);
+        }
+
+        Job job = new Job(owner, image, structured);
+        jobs.put(job.jobId, job);
+
+        try {
+            workers.execute(() -> run(job));
+        } catch (RejectedExecutionException ex) {
+            jobs.remove(job.jobId);
+            release(owner);
+
+            queueFullCounter.increment();
+            throw new RejectedException(RejectReason.QUEUE_FULL);
+        }
+
+        submittedCounter.increment();
+
+        return job;
+    }
+
+    /***
+     * @return The job, or null if it doesn't exist, has expired or belongs to someone else.
+     */
+    public Job getJob(UUID jobId, UUID owner) {
+        Job job = jobs.get(jobId);
+        if (job == null || !job.owner.equals(owner))
+            return null;
+
+        return job;
+    }
+
+    private void run(Job job) {
+        running.incrementAndGet();
+        waitTimer.record(Duration.between(job.submitted, Instant.now()));
+
+        Supplier<byte[]> image = job.image;
+        job.image = null;
+        job.status = Status.RUNNING;
+
+        long start = System.nanoTime();
+        try {
+            ReceiptGeometry geometry = recognizer.recognize(image.get());
+            geometry.process();
+
+            if (job.structured)
+                job.structure = new ReceiptStructure(geometry);
+
+            job.geometry = geometry;
+            job.status = Status.DONE;
+            doneCounter.increment();
+        } catch (TextRecognizer.UnreadableImageException ex) {
+            job.error = ex.getMessage();
+            job.unreadable = true;
+            job.status = Status.FAILED;
+            failedCounter.increment();
+        } catch (Exception ex) {
+            System.out.println("OCR job " + job.jobId + " failed.");
+            ex.printStackTrace();
+
+            job.error = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+            job.status = Status.FAILED;
+            failedCounter.increment();
+        } finally {
+            runTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            running.decrementAndGet();
+            release(job.owner);
+
+            job.finished = Instant.now();
+            totalTimer.record(Duration.between(job.submitted, job.finished));
+            job.done.complete(job);
+        }
+    }
+
+    private boolean acquire(UUID owner) {
+        boolean[] acquired = {false};
+        activePerUser.compute(owner, (UUID key, Integer count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= maxPerUser)
+                return count;
+
+            acquired[0] = true;
+            return current + 1;
+        });
+
+        return acquired[0];
+    }
+
+    private void release(UUID owner) {
+        activePerUser.computeIfPresent(owner, (UUID key, Integer count) -> count <= 1 ? null : count - 1);
+    }
+
+    private void cleanup() {
+        Instant cutoff = Instant.now().minus(resultLifetime);
+        jobs.values().removeIf((Job job) -> job.finished != null && job.finished.isBefore(cutoff));
+    }
+}
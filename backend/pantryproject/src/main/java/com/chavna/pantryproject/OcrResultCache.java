@@ -0,0 +1,233 @@
+package com.chavna.pantryproject;
+
+import static com.chavna.pantryproject.Database.OCR_CACHE_TABLE;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+
+/***
+ * Remembers what a TextRecognizer found in an image, keyed by the SHA-256 of the image bytes, so rescanning the same
+ * receipt doesn't call Textract again.
+ *
+ * Results are kept in memory (least recently used first out, at most maxEntries) and, if persistent, in the ocr_cache
+ * table so they survive restarts and are shared between servers. Anything older than ttl is ignored and eventually
+ * deleted. If the table can't be reached the cache just acts like a miss.
+ *
+ * Metrics: ocr.cache.lookups{result = memory | database | miss}, ocr.cache.hit.ratio, ocr.cache.memory.entries
+ */
+public class OcrResultCache implements TextRecognizer {
+    @AllArgsConstructor
+    private static class Entry {
+        byte[] result; // ReceiptGeometry.toBytes
+        Instant created;
+    }
+
+    private final TextRecognizer recognizer;
+    private final Duration ttl;
+    private final boolean persistent;
+
+    private final LinkedHashMap<String, Entry> memory;
+
+    private final Counter memoryHits = Metrics.counter("ocr.cache.lookups", "result", "memory");
+    private final Counter databaseHits = Metrics.counter("ocr.cache.lookups", "result", "database");
+    private final Counter misses = Metrics.counter("ocr.cache.lookups", "result", "miss");
+    // Kept here too since the counters don't count if no registry is set up
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder lookups = new LongAdder();
+
+    private final ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor((Runnable runnable) -> {
+        Thread thread = new Thread(runnable, "ocr-cache-cleanup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Builder
+    private OcrResultCache(TextRecognizer recognizer, int maxEntries, Duration ttl, boolean persistent) {
+        if (recognizer == null || ttl == null)
+            throw new IllegalArgumentException("recognizer and ttl are required.");
+
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("maxEntries must be > 0.");
+
+        this.recognizer = recognizer;
+        this.ttl = ttl;
+        this.persistent = persistent;
+
+        this.memory = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+
+        Metrics.gauge("ocr.cache.hit.ratio", this, (OcrResultCache cache) -> cache.hitRatio());
+        Metrics.gauge("ocr.cache.memory.entries", this, (OcrResultCache cache) -> cache.memorySize());
+
+        if (persistent)
+            cleaner.scheduleWithFixedDelay(this::deleteExpired, 1, 1, TimeUnit.HOURS);
+    }
+
+    @Override
+    public ReceiptGeometry recognize(byte[] image) {
+        String hash = sha256(image);
+        lookups.increment();
+
+        byte[] cached = memoryGet(hash);
+        if (cached != null) {
+            memoryHits.increment();
+            hits.increment();
+            return ReceiptGeometry.fromBytes(cached);
+        }
+
+        if (persistent) {
+            Entry stored = databaseGet(hash);
+            if (stored != null) {
+                databaseHits.increment();
+                hits.increment();
+                memoryPut(hash, stored);
+                return ReceiptGeometry.fromBytes(stored.result);
+            }
+        }
+
+        misses.increment();
+
+        ReceiptGeometry geometry = recognizer.recognize(image);
+
+        Entry entry = new Entry(geometry.toBytes(), Instant.now());
+        memoryPut(hash, entry);
+        if (persistent)
+            databasePut(hash, entry);
+
+        return geometry;
+    }
+
+    public double hitRatio() {
+        long total = lookups.sum();
+
+        return total == 0 ? 0 : (double) hits.sum() / total;
+    }
+
+    private synchronized int memorySize() {
+        return memory.size();
+    }
+
+    private synchronized byte[] memoryGet(String hash) {
+        Entry entry = memory.get(hash);
+        if (entry == null)
+            return null;
+
+        if (isExpired(entry)) {
+            memory.remove(hash);
+            return null;
+        }
+
+        return entry.result;
+    }
+
+    private synchronized void memoryPut(String hash, Entry entry) {
+        memory.put(hash, entry);
+    }
+
+    private boolean isExpired(Entry entry) {
+        return entry.created.plus(ttl).isBefore(Instant.now());
+    }
+
+    //                  //
+    //     DATABASE     //
+    //                  //
+
+    private Entry databaseGet(String hash) {
+        Entry[] entry = {null};
+
+        try {
+            Database.openConnection((Connection con) -> {
+                PreparedStatement statement = con.prepareStatement(String.format("""
+                    SELECT result, created FROM %s
+                    WHERE image_hash = ? AND created > now() - ? * INTERVAL '1 second';
+                """, OCR_CACHE_TABLE));
+                statement.setString(1, hash);
+                statement.setLong(2, ttl.toSeconds());
+
+                ResultSet result = statement.executeQuery();
+                if (result.next())
+                    entry[0] = new Entry(result.getBytes(1), result.getTimestamp(2).toInstant());
+
+                return null;
+            })
+            .throwIfError()
+            .ignoreResponse();
+        } catch (Exception ex) {
+            System.out.println("Failed to read OCR cache.");
+            ex.printStackTrace();
+        }
+
+        return entry[0];
+    }
+
+    private void databasePut(String hash, Entry entry) {
+        try {
+            Database.openConnection((Connection con) -> {
+                PreparedStatement statement = con.prepareStatement(String.format("""
+                    INSERT INTO %s (image_hash, result, created)
+                    VALUES (?, ?, now())
+                    ON CONFLICT (image_hash) DO UPDATE SET result = EXCLUDED.result, created = EXCLUDED.created;
+                """, OCR_CACHE_TABLE));
+                statement.setString(1, hash);
+                statement.setBytes(2, entry.result);
+                statement.executeUpdate();
+
+                return null;
+            })
+            .throwIfError()
+            .ignoreResponse();
+        } catch (Exception ex) {
+            System.out.println("Failed to write OCR cache.");
+            ex.printStackTrace();
+        }
+    }
+
+    private void deleteExpired() {
+        try {
+            Database.openConnection((Connection con) -> {
+                PreparedStatement statement = con.prepareStatement(String.format("""
+                    DELETE FROM %s WHERE created < now() - ? * INTERVAL '1 second';
+                """, OCR_CACHE_TABLE));
+                statement.setLong(1, ttl.toSeconds());
+                statement.executeUpdate();
+
+                return null;
+            })
+            .throwIfError()
+            .ignoreResponse();
+        } catch (Exception ex) {
+            System.out.println("Failed to delete expired OCR cache entries.");
+            ex.printStackTrace();
+        }
+    }
+
+    static String sha256(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException ex) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.chavna.pantryproject;
 import static com.chavna.pantryproject.Database.CATEGORIES_TABLE;
 import static com.chavna.pantryproject.Database.FOOD_ITEMS_TABLE;
 import static com.chavna.pantryproject.Database.FOOD_ITEM_TEMPLATES_TABLE;
+import static com.chavna.pantryproject.Database.SCAN_ITEMS_TABLE;
 
 import java.sql.Connection;
 import java.sql.Date;
@@ -11,9 +12,14 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
@@ -84,6 +90,33 @@ public class PantryController {
         return null;
     }
 
+    public static class LookupProductRequest {
+        @NotNull
+        public String text;
+        @Nullable
+        public Integer limit; // defaults to 5
+    }
+
+    @AllArgsConstructor
+    public static class LookupProductResponse {
+        public List<ProductCatalog.Product> products;
+    }
+
+    @PostMapping("/lookup-product")
+    public Response lookupProduct(@RequestHeader("Authorization") String authorizationHeader, @Valid @RequestBody LookupProductRequest requestBody) {
+        Authorization.authorize(authorizationHeader);
+
+        int limit = requestBody.limit != null ? requestBody.limit : 5;
+        if (limit < 1 || limit > 50)
+            return Response.Error(HttpStatus.BAD_REQUEST, "Limit must be between 1 and 50.");
+
+        ProductCatalog catalog = ProductCatalog.get();
+        if (catalog == null)
+            return Response.Fail("Product catalog not available.");
+
+        return Response.Success(new LookupProductResponse(catalog.lookup(requestBody.text, limit)));
+    }
+
     public static class RegisteredFoodItemTemplate {
         public UUID templateId;
         public FoodItemTemplate template;
@@ -241,6 +274,8 @@ public class PantryController {
 
             updateQuery.executeUpdate();
 
+            MealPlanController.invalidateCache(familyOwner);
+
             return Response.Success("Items added: " + updated);
         })
         .throwIfError()
@@ -369,6 +404,8 @@ public class PantryController {
                     return Response.Fail("Food item not updated.");
             }
 
+            MealPlanController.invalidateCache(familyOwner);
+
             return null;
         })
         .throwIfError()
@@ -479,6 +516,8 @@ public class PantryController {
     @AllArgsConstructor
     public static class GetScanKeyResponse {
         public Map<String, UUID> templateIds;
+        public Map<String, List<ScanKeyDictionary.Suggestion>> suggestions; // what other households use, for keys that weren't found
+        public Map<String, List<ProductCatalog.Product>> products; // catalog matches, for keys without any suggestions
     }
 
     @PostMapping("get-scan-keys")
@@ -489,26 +528,21 @@ public class PantryController {
         if (requestBody.keys.length == 0)
             return Response.Fail("No keys provided.");
 
+        String[] normalized = new String[requestBody.keys.length];
+        for (int i = 0; i < normalized.length; i++)
+            normalized[i] = ScanKeys.normalize(requestBody.keys[i]);
+
         HashMap<String, UUID> templateIds = new HashMap<>();
         Database.openConnection((Connection con) -> {
-            String values = "";
-            for (@SuppressWarnings("unused") var __ : requestBody.keys)
-                values += "(?),";
-            values = values.substring(0, values.length() - 1);
             PreparedStatement statement = con.prepareStatement(String.format("""
-                SELECT v.key, template_id FROM scan_items
-                INNER JOIN (
-                    VALUES %s
-                ) as v(key)
-                ON scan_items.scan_text = v.key AND owner = ?;
-            """, values));
+                SELECT k.key, s.template_id FROM unnest(?::text[], ?::text[]) AS k(key, normalized_text)
+                INNER JOIN %s s
+                ON s.owner = ? AND s.normalized_text = k.normalized_text;
+            """, SCAN_ITEMS_TABLE));
 
-            int i = 1;
-            for (String key : requestBody.keys) {
-                statement.setString(i, key);
-                i++;
-            }
-            statement.setObject(i, familyOwner);
+            statement.setArray(1, con.createArrayOf("text", requestBody.keys));
+            statement.setArray(2, con.createArrayOf("text", normalized));
+            statement.setObject(3, familyOwner);
 
             ResultSet result = statement.executeQuery();
 
@@ -520,14 +554,31 @@ public class PantryController {
         .throwIfError()
         .ignoreResponse();
 
-        return Response.Success(new GetScanKeyResponse(templateIds));
+        HashMap<String, List<ScanKeyDictionary.Suggestion>> suggestions = new HashMap<>();
+        HashMap<String, List<ProductCatalog.Product>> products = new HashMap<>();
+        ProductCatalog catalog = ProductCatalog.get();
+        for (int i = 0; i < normalized.length; i++) {
+            if (templateIds.containsKey(requestBody.keys[i]))
+                continue;
+
+            List<ScanKeyDictionary.Suggestion> keySuggestions = ScanKeyDictionary.lookup(normalized[i]);
+            if (!keySuggestions.isEmpty()) {
+                suggestions.put(requestBody.keys[i], keySuggestions);
+            } else if (catalog != null) {
+                List<ProductCatalog.Product> keyProducts = catalog.lookup(normalized[i], 3);
+                if (!keyProducts.isEmpty())
+                    products.put(requestBody.keys[i], keyProducts);
+            }
+        }
+
+        return Response.Success(new GetScanKeyResponse(templateIds, suggestions, products));
     }
 
     public static class SetScanKeyRequest {
         @NotNull
         public String key;
         @Nullable
-        public UUID templateId;
+        public UUID templateId; // removes the key if null
     }
 
     @PostMapping("/set-scan-key")
@@ -535,35 +586,387 @@ public class PantryController {
         Login login = Authorization.authorize(authorizationHeader);
         UUID familyOwner = Authorization.getFamilyOwnerId(login);
 
+        Map<String, UUID> keys = new HashMap<>();
+        keys.put(requestBody.key, requestBody.templateId);
+
         Database.openConnection((Connection con) -> {
-            PreparedStatement deleteStatement = con.prepareStatement("""
-                DELETE FROM scan_items
-                WHERE scan_text = ? AND owner = ?;
-            """);
+            writeScanKeys(con, familyOwner, keys).applyToMatcher(familyOwner);
 
-            deleteStatement.setString(1, requestBody.key);
-            deleteStatement.setObject(2, familyOwner);
+            return null;
+        })
+        .throwIfError()
+        .throwResponse();
 
-            deleteStatement.executeUpdate();
+        return Response.Success("Key added.");
+    }
 
-            if (requestBody.templateId != null) {
-                PreparedStatement statement = con.prepareStatement("""
-                    INSERT INTO scan_items (scan_text, template_id, owner)
-                    VALUES (?, ?, ?)
-                """);
+    public static class SetScanKeysRequest {
+        @NotNull
+        @Valid
+        public List<SetScanKeyRequest> keys;
+    }
 
-                statement.setString(1, requestBody.key);
-                statement.setObject(2, requestBody.templateId);
-                statement.setObject(3, familyOwner);
+    @AllArgsConstructor
+    public static class SetScanKeysResponse {
+        public int updated;
+        public int removed;
+    }
 
-                statement.executeUpdate();
+    @PostMapping("/set-scan-keys")
+    public Response setScanKeys(@RequestHeader("Authorization") String authorizationHeader, @Valid @RequestBody SetScanKeysRequest requestBody) {
+        Login login = Authorization.authorize(authorizationHeader);
+        UUID familyOwner = Authorization.getFamilyOwnerId(login);
+
+        if (requestBody.keys.size() == 0)
+            return Response.Fail("No keys provided.");
+
+        // Later entries win if the same key shows up twice
+        Map<String, UUID> keys = new LinkedHashMap<>();
+        for (SetScanKeyRequest key : requestBody.keys)
+            keys.put(key.key, key.templateId);
+
+        Database.openConnection((Connection con) -> {
+            ScanKeyChanges changes = writeScanKeys(con, familyOwner, keys);
+            changes.applyToMatcher(familyOwner);
+
+            return Response.Success(new SetScanKeysResponse(changes.upserted.size(), changes.removed.size()));
+        })
+        .throwIfError()
+        .throwResponse();
+
+        // This should be unreachable
+        return null;
+    }
+
+    public static class MatchScanKeysRequest {
+        @NotNull
+        public String[] keys;
+        @Nullable
+        public Integer limit; // candidates per key, defaults to 3
+    }
+
+    @AllArgsConstructor
+    public static class MatchScanKeysResponse {
+        public Map<String, List<ScanKeyMatcher.Candidate>> matches;
+    }
+
+    @PostMapping("/match-scan-keys")
+    public Response matchScanKeys(@RequestHeader("Authorization") String authorizationHeader, @Valid @RequestBody MatchScanKeysRequest requestBody) {
+        Login login = Authorization.authorize(authorizationHeader);
+        UUID familyOwner = Authorization.getFamilyOwnerId(login);
+
+        if (requestBody.keys.length == 0)
+            return Response.Fail("No keys provided.");
+
+        int limit = requestBody.limit != null ? requestBody.limit : 3;
+        if (limit < 1 || limit > 20)
+            return Response.Error(HttpStatus.BAD_REQUEST, "Limit must be between 1 and 20.");
+
+        var matches = ScanKeyMatcher.match(familyOwner, List.of(requestBody.keys), limit);
+
+        return Response.Success(new MatchScanKeysResponse(matches));
+    }
+
+    static class ScanKeyChanges {
+        Map<String, ScanKeyMatcher.Candidate> upserted = new HashMap<>(); // by normalized key
+        List<String> removed = new ArrayList<>();
+
+        void applyToMatcher(UUID owner) {
+            ScanKeyMatcher.update(owner, upserted, removed);
+        }
+    }
+
+    /***
+     * Writes scan keys for an owner with one upsert and one delete. Keys mapped to null are removed.
+     * Keys are stored normalized, so keys that normalize to the same thing replace each other.
+     * Keys pointing at a template the owner doesn't have are skipped.
+     * @return What actually changed, to pass on to the fuzzy matcher once it's committed.
+     */
+    static ScanKeyChanges writeScanKeys(Connection con, UUID owner, Map<String, UUID> keys) throws SQLException {
+        Map<String, String> upsertKeys = new LinkedHashMap<>();
+        Map<String, UUID> upsertTemplates = new LinkedHashMap<>();
+        Set<String> removeKeys = new HashSet<>();
+        for (Map.Entry<String, UUID> entry : keys.entrySet()) {
+            String normalized = ScanKeys.normalize(entry.getKey());
+
+            if (entry.getValue() == null) {
+                upsertKeys.remove(normalized);
+                upsertTemplates.remove(normalized);
+                removeKeys.add(normalized);
+            } else {
+                removeKeys.remove(normalized);
+                upsertKeys.put(normalized, entry.getKey());
+                upsertTemplates.put(normalized, entry.getValue());
+            }
+        }
+
+        ScanKeyChanges changes = new ScanKeyChanges();
+
+        if (upsertKeys.size() > 0) {
+            PreparedStatement statement = con.prepareStatement(String.format("""
+                INSERT INTO %s (scan_text, normalized_text, template_id, owner)
+                SELECT s.scan_text, s.normalized_text, s.template_id, t.owner
+                FROM unnest(?::text[], ?::text[], ?::uuid[]) AS s(scan_text, normalized_text, template_id)
+                INNER JOIN %s t
+                ON t.id = s.template_id AND t.owner = ?
+                ON CONFLICT (owner, normalized_text) DO UPDATE
+                SET scan_text = EXCLUDED.scan_text, template_id = EXCLUDED.template_id
+                RETURNING normalized_text, scan_text, template_id;
+            """, SCAN_ITEMS_TABLE, FOOD_ITEM_TEMPLATES_TABLE));
+
+            statement.setArray(1, con.createArrayOf("text", upsertKeys.values().toArray()));
+            statement.setArray(2, con.createArrayOf("text", upsertKeys.keySet().toArray()));
+            statement.setArray(3, con.createArrayOf("uuid", upsertTemplates.values().toArray()));
+            statement.setObject(4, owner);
+
+            ResultSet result = statement.executeQuery();
+
+            while (result.next())
+                changes.upserted.put(result.getString(1), new ScanKeyMatcher.Candidate((UUID) result.getObject(3), result.getString(2), 0));
+        }
+
+        if (removeKeys.size() > 0) {
+            PreparedStatement statement = con.prepareStatement(String.format("""
+                DELETE FROM %s
+                WHERE owner = ? AND normalized_text = ANY(?)
+                RETURNING normalized_text;
+            """, SCAN_ITEMS_TABLE));
+
+            statement.setObject(1, owner);
+            statement.setArray(2, con.createArrayOf("text", removeKeys.toArray()));
+
+            ResultSet result = statement.executeQuery();
+
+            while (result.next())
+                changes.removed.add(result.getString(1));
+        }
+
+        return changes;
+    }
+
+    public static class ReceiptLine {
+        @Nullable
+        public String scanText; // receipt text to map to the template, if any
+        @Nullable
+        public UUID templateId; // existing template
+        @Nullable
+        @Valid
+        public FoodItemTemplate newTemplate; // created when templateId is null
+        @NotNull
+        public Double amount;
+        @NotNull
+        public Double unitPrice;
+    }
+
+    public static class CommitReceiptRequest {
+        @NotNull
+        @Valid
+        public List<ReceiptLine> lines;
+    }
+
+    public static class CommitReceiptResponse {
+        public List<UUID> templateIds; // one per line
+        public List<UUID> foodItemIds; // one per line
+        public List<UUID> createdTemplateIds;
+    }
+
+    @AllArgsConstructor
+    public static class InvalidLinesResponse {
+        public List<Integer> lines; // indices into the request's lines
+    }
+
+    @PostMapping("/commit-receipt")
+    public Response commitReceipt(@RequestHeader("Authorization") String authorizationHeader, @Valid @RequestBody CommitReceiptRequest requestBody) {
+        if (requestBody.lines.size() == 0)
+            return Response.Error(HttpStatus.BAD_REQUEST, "No lines provided.");
+
+        for (ReceiptLine line : requestBody.lines) {
+            if ((line.templateId == null) == (line.newTemplate == null))
+                return Response.Error(HttpStatus.BAD_REQUEST, "Each line needs either a templateId or a newTemplate.");
+        }
+
+        Login login = Authorization.authorize(authorizationHeader);
+        UUID familyOwner = Authorization.getFamilyOwnerId(login);
+
+        List<ReceiptLine> lines = requestBody.lines;
+        int n = lines.size();
+
+        // Ids are picked here so every line can be matched back up with what got inserted.
+        // Lines that create a template with the same name share it.
+        CommitReceiptResponse response = new CommitReceiptResponse();
+        response.templateIds = new ArrayList<>();
+        response.createdTemplateIds = new ArrayList<>();
+        Map<String, UUID> newTemplateIds = new HashMap<>();
+        List<FoodItemTemplate> newTemplates = new ArrayList<>();
+        for (ReceiptLine line : lines) {
+            UUID templateId = line.templateId;
+
+            if (templateId == null) {
+                templateId = newTemplateIds.get(line.newTemplate.name);
+
+                if (templateId == null) {
+                    templateId = UUID.randomUUID();
+                    newTemplateIds.put(line.newTemplate.name, templateId);
+                    newTemplates.add(line.newTemplate);
+                    response.createdTemplateIds.add(templateId);
+                }
+            }
+
+            response.templateIds.add(templateId);
+        }
+
+        UUID[] foodItemIds = new UUID[n];
+        UUID[] lineTemplateIds = new UUID[n];
+        Double[] amounts = new Double[n];
+        Double[] unitPrices = new Double[n];
+        for (int i = 0; i < n; i++) {
+            foodItemIds[i] = UUID.randomUUID();
+            lineTemplateIds[i] = response.templateIds.get(i);
+            amounts[i] = lines.get(i).amount;
+            unitPrices[i] = lines.get(i).unitPrice;
+        }
+
+        Map<String, UUID> scanKeys = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            if (lines.get(i).scanText != null)
+                scanKeys.put(lines.get(i).scanText, lineTemplateIds[i]);
+        }
+
+        Set<UUID> existingTemplateIds = new HashSet<>();
+        for (ReceiptLine line : lines) {
+            if (line.templateId != null)
+                existingTemplateIds.add(line.templateId);
+        }
+
+        Database.openConnection((Connection con) -> {
+            try {
+                con.setAutoCommit(false);
+
+                // Every template the lines point at has to be the household's, otherwise nothing is added. Locked so
+                // they can't be deleted before the items referencing them are in.
+                if (existingTemplateIds.size() > 0) {
+                    PreparedStatement ownedStatement = con.prepareStatement(String.format("""
+                        SELECT id FROM %s
+                        WHERE id = ANY(?) AND owner = ?
+                        FOR KEY SHARE;
+                    """, FOOD_ITEM_TEMPLATES_TABLE));
+                    ownedStatement.setArray(1, con.createArrayOf("uuid", existingTemplateIds.toArray()));
+                    ownedStatement.setObject(2, familyOwner);
+
+                    ResultSet ownedResult = ownedStatement.executeQuery();
+                    Set<UUID> owned = new HashSet<>();
+                    while (ownedResult.next())
+                        owned.add((UUID) ownedResult.getObject(1));
+
+                    List<Integer> invalidLines = new ArrayList<>();
+                    for (int i = 0; i < n; i++) {
+                        UUID templateId = lines.get(i).templateId;
+                        if (templateId != null && !owned.contains(templateId))
+                            invalidLines.add(i);
+                    }
+
+                    if (invalidLines.size() > 0) {
+                        con.rollback();
+
+                        return Response.Fail("Some templates do not exist.", new InvalidLinesResponse(invalidLines));
+                    }
+                }
+
+                if (newTemplates.size() > 0) {
+                    int count = newTemplates.size();
+                    String[] names = new String[count];
+                    Double[] templateAmounts = new Double[count];
+                    String[] units = new String[count];
+                    Integer[] shelfLives = new Integer[count];
+                    String[] categories = new String[count];
+                    for (int i = 0; i < count; i++) {
+                        FoodItemTemplate template = newTemplates.get(i);
+                        names[i] = template.name;
+                        templateAmounts[i] = template.amount;
+                        units[i] = template.unit;
+                        shelfLives[i] = template.shelfLifeDays;
+                        categories[i] = template.category;
+                    }
+
+                    PreparedStatement templateStatement = con.prepareStatement(String.format("""
+                        INSERT INTO %s (id, name, owner, amount, unit, shelf_life_days, category)
+                        SELECT t.id, t.name, ?, t.amount, t.unit, t.shelf_life_days, t.category
+                        FROM unnest(?::uuid[], ?::text[], ?::float8[], ?::text[], ?::int[], ?::text[])
+                        AS t(id, name, amount, unit, shelf_life_days, category);
+                    """, FOOD_ITEM_TEMPLATES_TABLE));
+
+                    templateStatement.setObject(1, familyOwner);
+                    templateStatement.setArray(2, con.createArrayOf("uuid", response.createdTemplateIds.toArray()));
+                    templateStatement.setArray(3, con.createArrayOf("text", names));
+                    templateStatement.setArray(4, con.createArrayOf("float8", templateAmounts));
+                    templateStatement.setArray(5, con.createArrayOf("text", units));
+                    templateStatement.setArray(6, con.createArrayOf("int4", shelfLives));
+                    templateStatement.setArray(7, con.createArrayOf("text", categories));
+
+                    templateStatement.executeUpdate();
+                }
+
+                ScanKeyChanges scanKeyChanges = null;
+                if (scanKeys.size() > 0)
+                    scanKeyChanges = writeScanKeys(con, familyOwner, scanKeys);
+
+                PreparedStatement itemStatement = con.prepareStatement(String.format("""
+                    INSERT INTO %s (id, amount, expiration, unit_price, template_id)
+                    SELECT i.id, i.amount, now()::date + INTERVAL '1 day' * t.shelf_life_days, i.unit_price, i.template_id
+                    FROM unnest(?::uuid[], ?::uuid[], ?::float8[], ?::float8[]) AS i(id, template_id, amount, unit_price)
+                    INNER JOIN %s t
+                    ON t.id = i.template_id AND t.owner = ?;
+                """, FOOD_ITEMS_TABLE, FOOD_ITEM_TEMPLATES_TABLE));
+                itemStatement.setArray(1, con.createArrayOf("uuid", foodItemIds));
+                itemStatement.setArray(2, con.createArrayOf("uuid", lineTemplateIds));
+                itemStatement.setArray(3, con.createArrayOf("float8", amounts));
+                itemStatement.setArray(4, con.createArrayOf("float8", unitPrices));
+                itemStatement.setObject(5, familyOwner);
+
+                itemStatement.executeUpdate();
+
+                // Most recent unit price is the last line on the receipt for each template
+                PreparedStatement priceStatement = con.prepareStatement(String.format("""
+                    UPDATE %1$s
+                    SET most_recent_unit_price = data.unit_price
+                    FROM (
+                        SELECT DISTINCT ON (template_id) template_id, unit_price
+                        FROM unnest(?::uuid[], ?::float8[]) WITH ORDINALITY AS i(template_id, unit_price, ord)
+                        ORDER BY template_id, ord DESC
+                    ) AS data
+                    WHERE %1$s.id = data.template_id AND %1$s.owner = ?;
+                """, FOOD_ITEM_TEMPLATES_TABLE));
+                priceStatement.setArray(1, con.createArrayOf("uuid", lineTemplateIds));
+                priceStatement.setArray(2, con.createArrayOf("float8", unitPrices));
+                priceStatement.setObject(3, familyOwner);
+
+                priceStatement.executeUpdate();
+
+                con.commit();
+
+                if (scanKeyChanges != null)
+                    scanKeyChanges.applyToMatcher(familyOwner);
+
+                response.foodItemIds = List.of(foodItemIds);
+            } catch (SQLException ex) {
+                con.rollback();
+
+                throw ex;
             }
 
+            MealPlanController.invalidateCache(familyOwner);
+
+            return Response.Success(response);
+        }).onSQLError((SQLException ex) -> {
+            if (ex.getSQLState().equals("23503"))
+                return Response.Fail("Category does not exist.");
+
             return null;
         })
         .throwIfError()
         .throwResponse();
 
-        return Response.Success("Key added.");
+        // This should be unreachable
+        return null;
     }
 }
@@ -0,0 +1,668 @@
+package com.chavna.pantryproject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.AllArgsConstructor;
+
+/***
+ * Product catalog built offline from an export like Open Food Facts, used to prefill templates.
+ *
+ * The catalog is a directory with two files:
+ * <pre>
+ * products.bin  product records one after another: name, unit, amount, shelf life (2 GB at most)
+ * tokens.trie   CompactTrie from each normalized name token to the sorted offsets of the products containing it
+ * </pre>
+ * Both are memory mapped, so lookups don't touch the database and only allocate for the products they return.
+ *
+ * Build one with:
+ * <pre>
+ * ./gradlew importProductCatalog -Pinput=products.csv -Poutput=catalog
+ * </pre>
+ * The server loads it from the directory in PRODUCT_CATALOG_DIR.
+ */
+public class ProductCatalog {
+    public static final String PRODUCTS_FILE = "products.bin";
+    public static final String TOKENS_FILE = "tokens.trie";
+
+    // Tokens in more products than this (like "OZ") are cut off since they don't narrow anything down anyway
+    private static final int MAX_POSTINGS = 20_000;
+    private static final int RUN_SIZE = 2_000_000;
+    private static final int DEFAULT_SHELF_LIFE_DAYS = 30;
+
+    @AllArgsConstructor
+    public static class Product {
+        public String name;
+        public String unit;
+        public double amount;
+        public int shelfLifeDays;
+        public int matchedTokens;
+    }
+
+    private final MappedByteBuffer products;
+    private final CompactTrie tokens;
+
+    private ProductCatalog(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve(PRODUCTS_FILE), StandardOpenOption.READ)) {
+            this.products = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        this.tokens = CompactTrie.open(directory.resolve(TOKENS_FILE));
+    }
+
+    /***
+     * @param directory - A directory written by importCatalog.
+     */
+    public static ProductCatalog open(Path directory) throws IOException {
+        return new ProductCatalog(directory);
+    }
+
+    private static volatile ProductCatalog catalog;
+    private static volatile boolean loaded;
+
+    /***
+     * @return The catalog from PRODUCT_CATALOG_DIR, or null if there isn't one.
+     */
+    public static ProductCatalog get() {
+        if (!loaded) {
+            synchronized (ProductCatalog.class) {
+                if (!loaded) {
+                    String directory = System.getenv("PRODUCT_CATALOG_DIR");
+
+                    if (directory != null) {
+                        try {
+                            catalog = open(Path.of(directory));
+                        } catch (IOException ex) {
+                            System.out.println("Failed to open product catalog.");
+                            ex.printStackTrace();
+                        }
+                    }
+
+                    loaded = true;
+                }
+            }
+        }
+
+        return catalog;
+    }
+
+    //          //
+    //  LOOKUP  //
+    //          //
+
+    /***
+     * Finds the products sharing the most name tokens with the text.
+     * @param text - Product name or receipt text.
+     * @param limit - Max products to return.
+     * @return Best matches first.
+     */
+    public List<Product> lookup(String text, int limit) {
+        String[] queryTokens = tokenize(ScanKeys.normalize(text));
+
+        // Each postings list is a view into the mapped trie, read in place
+        ByteBuffer[] postings = new ByteBuffer[queryTokens.length];
+        int[] remaining = new int[queryTokens.length];
+        int[] positions = new int[queryTokens.length];
+        int[] current = new int[queryTokens.length];
+        int lists = 0;
+        for (String token : queryTokens) {
+            ByteBuffer list = tokens.get(token);
+            if (list == null)
+                continue;
+
+            postings[lists] = list;
+            remaining[lists] = readVarint(list, positions, lists);
+            current[lists] = -1;
+            lists++;
+        }
+
+        int[] bestOffsets = new int[limit];
+        int[] bestScores = new int[limit];
+        int bestCount = 0;
+
+        for (int i = 0; i < lists; i++)
+            advance(postings, remaining, positions, current, i);
+
+        // Merge the sorted lists, counting how many contain each product
+        while (true) {
+            int offset = Integer.MAX_VALUE;
+            for (int i = 0; i < lists; i++)
+                offset = Math.min(offset, current[i]);
+
+            if (offset == Integer.MAX_VALUE)
+                break;
+
+            int score = 0;
+            for (int i = 0; i < lists; i++) {
+                if (current[i] == offset) {
+                    score++;
+                    advance(postings, remaining, positions, current, i);
+                }
+            }
+
+            // Insertion into the top list, ties keep the earlier product
+            if (bestCount < limit || score > bestScores[bestCount - 1]) {
+                int index = bestCount < limit ? bestCount++ : bestCount - 1;
+                while (index > 0 && bestScores[index - 1] < score) {
+                    bestScores[index] = bestScores[index - 1];
+                    bestOffsets[index] = bestOffsets[index - 1];
+                    index--;
+                }
+
+                bestScores[index] = score;
+                bestOffsets[index] = offset;
+            }
+        }
+
+        List<Product> results = new ArrayList<>(bestCount);
+        for (int i = 0; i < bestCount; i++)
+            results.add(readProduct(bestOffsets[i], bestScores[i]));
+
+        return results;
+    }
+
+    // Postings are stored as deltas
+    private static void advance(ByteBuffer[] postings, int[] remaining, int[] positions, int[] current, int list) {
+        if (remaining[list] == 0) {
+            current[list] = Integer.MAX_VALUE;
+            return;
+        }
+
+        int delta = readVarint(postings[list], positions, list);
+        current[list] = current[list] < 0 ? delta : current[list] + delta;
+        remaining[list]--;
+    }
+
+    private static int readVarint(ByteBuffer buffer, int[] positions, int list) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = buffer.get(positions[list]++);
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0)
+                return value;
+
+            shift += 7;
+        }
+    }
+
+    private Product readProduct(int offset, int score) {
+        int position = offset;
+
+        int nameLength = products.getShort(position) & 0xFFFF;
+        position += 2;
+        String name = StandardCharsets.UTF_8.decode(products.slice(position, nameLength)).toString();
+        position += nameLength;
+
+        int unitLength = products.get(position) & 0xFF;
+        position += 1;
+        String unit = StandardCharsets.UTF_8.decode(products.slice(position, unitLength)).toString();
+        position += unitLength;
+
+        float amount = products.getFloat(position);
+        int shelfLifeDays = products.getShort(position + 4);
+
+        return new Product(name, unit, amount, shelfLifeDays, score);
+    }
+
+    private static String[] tokenize(String normalized) {
+        LinkedHashSet<String> tokens = new LinkedHashSet<>();
+        for (String token : normalized.split(" ")) {
+            // Numbers and single letters match way too much
+            if (token.length() < 2 || token.chars().allMatch(Character::isDigit))
+                continue;
+
+            tokens.add(token);
+        }
+
+        return tokens.toArray(new String[0]);
+    }
+
+    //          //
+    //  IMPORT  //
+    //          //
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final Pattern QUANTITY = Pattern.compile("(\\d+(?:[.,]\\d+)?)\\s*(kg|g|mg|l|ml|cl|gal|fl oz|oz|lbs?|ct|pcs?)\\b");
+
+    private static class ProductRecord {
+        String name;
+        String quantity;
+        String categories;
+    }
+
+    /***
+     * Reads products one at a time from an Open Food Facts style CSV/TSV (with a header row) or JSONL file.
+     * Only product_name, quantity and categories_tags (or categories) are used.
+     */
+    private static class ProductReader implements Closeable {
+        private final BufferedReader reader;
+        private final boolean json;
+        private char delimiter;
+        private int nameColumn = -1;
+        private int quantityColumn = -1;
+        private int categoriesColumn = -1;
+
+        ProductReader(Path input) throws IOException {
+            this.reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+            this.json = input.toString().endsWith(".jsonl") || input.toString().endsWith(".json");
+
+            if (!json) {
+                reader.mark(1 << 16);
+                String firstLine = reader.readLine();
+                reader.reset();
+
+                if (firstLine == null)
+                    throw new IOException("Input is empty.");
+
+                delimiter = firstLine.indexOf('\t') >= 0 ? '\t' : ',';
+
+                List<String> header = readCsvRecord(reader, delimiter);
+                nameColumn = header.indexOf("product_name");
+                quantityColumn = header.indexOf("quantity");
+                categoriesColumn = header.indexOf("categories_tags");
+                if (categoriesColumn < 0)
+                    categoriesColumn = header.indexOf("categories");
+
+                if (nameColumn < 0)
+                    throw new IOException("Input doesn't have a product_name column.");
+            }
+        }
+
+        ProductRecord next() throws IOException {
+            ProductRecord record = new ProductRecord();
+
+            if (json) {
+                String line;
+                do {
+                    line = reader.readLine();
+                    if (line == null)
+                        return null;
+                } while (line.isBlank());
+
+                JsonNode node = mapper.readTree(line);
+                record.name = node.path("product_name").asText(null);
+                record.quantity = node.path("quantity").asText(null);
+
+                JsonNode categories = node.has("categories_tags") ? node.get("categories_tags") : node.path("categories");
+                record.categories = categories.isArray() ? categories.toString() : categories.asText(null);
+            } else {
+                List<String> fields = readCsvRecord(reader, delimiter);
+                if (fields == null)
+                    return null;
+
+                record.name = field(fields, nameColumn);
+                record.quantity = field(fields, quantityColumn);
+                record.categories = field(fields, categoriesColumn);
+            }
+
+            return record;
+        }
+
+        private static String field(List<String> fields, int column) {
+            return column >= 0 && column < fields.size() ? fields.get(column) : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    // Handles quoted fields, including ones with delimiters and newlines in them
+    private static List<String> readCsvRecord(Reader reader, char delimiter) throws IOException {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean any = false;
+
+        while (true) {
+            int c = reader.read();
+            if (c == -1) {
+                if (!any)
+                    return null;
+
+                fields.add(field.toString());
+                return fields;
+            }
+
+            any = true;
+
+            if (quoted) {
+                if (c == '"') {
+                    reader.mark(1);
+                    if (reader.read() == '"') {
+                        field.append('"');
+                    } else {
+                        reader.reset();
+                        quoted = false;
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (c == delimiter) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n') {
+                fields.add(field.toString());
+                return fields;
+            } else if (c != '\r') {
+                field.append((char) c);
+            }
+        }
+    }
+
+    private static String guessUnit(Matcher quantity) {
+        switch (quantity.group(2)) {
+            case "kg": return "kg";
+            case "g": case "mg": return "g";
+            case "l": return "L";
+            case "ml": case "cl": return "mL";
+            case "gal": return "gal";
+            case "fl oz": return "fl oz";
+            case "oz": return "oz";
+            case "lb": case "lbs": return "lb";
+            default: return "count";
+        }
+    }
+
+    private static double guessAmount(Matcher quantity) {
+        double amount = Double.parseDouble(quantity.group(1).replace(',', '.'));
+
+        switch (quantity.group(2)) {
+            case "mg": return amount / 1000;
+            case "cl": return amount * 10;
+            default: return amount;
+        }
+    }
+
+    private static int guessShelfLife(String categories) {
+        if (categories == null)
+            return DEFAULT_SHELF_LIFE_DAYS;
+
+        String lower = categories.toLowerCase(Locale.ROOT);
+        if (lower.contains("frozen"))
+            return 180;
+        if (lower.contains("canned") || lower.contains("conserve"))
+            return 730;
+        if (lower.contains("meat") || lower.contains("poultr") || lower.contains("fish") || lower.contains("seafood"))
+            return 3;
+        if (lower.contains("chees"))
+            return 30;
+        if (lower.contains("dair") || lower.contains("milk") || lower.contains("yogurt"))
+            return 10;
+        if (lower.contains("bread") || lower.contains("baker"))
+            return 5;
+        if (lower.contains("fruit") || lower.contains("vegetable"))
+            return 7;
+        if (lower.contains("egg"))
+            return 28;
+        if (lower.contains("cereal") || lower.contains("pasta") || lower.contains("rice") || lower.contains("snack"))
+            return 365;
+
+        return DEFAULT_SHELF_LIFE_DAYS;
+    }
+
+    // Returns how many bytes were written
+    private static int writeProduct(DataOutputStream out, String name, String unit, double amount, int shelfLifeDays) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 0xFFFF)
+            nameBytes = Arrays.copyOf(nameBytes, 0xFFFF);
+
+        byte[] unitBytes = unit.getBytes(StandardCharsets.UTF_8);
+
+        out.writeShort(nameBytes.length);
+        out.write(nameBytes);
+        out.writeByte(unitBytes.length);
+        out.write(unitBytes);
+        out.writeFloat((float) amount);
+        out.writeShort(shelfLifeDays);
+
+        return 2 + nameBytes.length + 1 + unitBytes.length + 4 + 2;
+    }
+
+    // (token, product offset) pairs, sorted in memory and spilled to disk once the arrays are full
+    private static class Postings {
+        final String[] tokens;
+        final int[] offsets;
+        final Integer[] order;
+        int size;
+
+        Postings(int runSize) {
+            tokens = new String[runSize];
+            offsets = new int[runSize];
+            order = new Integer[runSize];
+        }
+
+        void spill(Path run) throws IOException {
+            for (int i = 0; i < size; i++)
+                order[i] = i;
+
+            Arrays.sort(order, 0, size, (Integer a, Integer b) -> {
+                int compare = tokens[a].compareTo(tokens[b]);
+                return compare != 0 ? compare : Integer.compare(offsets[a], offsets[b]);
+            });
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 1 << 16))) {
+                for (int i = 0; i < size; i++) {
+                    out.writeUTF(tokens[order[i]]);
+                    out.writeInt(offsets[order[i]]);
+                }
+            }
+
+            Arrays.fill(tokens, 0, size, null);
+            size = 0;
+        }
+    }
+
+    private static class RunReader implements Closeable {
+        final DataInputStream in;
+        String token;
+        int offset;
+
+        RunReader(Path run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), 1 << 16));
+        }
+
+        boolean next() throws IOException {
+            try {
+                token = in.readUTF();
+                offset = in.readInt();
+                return true;
+            } catch (EOFException ex) {
+                token = null;
+                return false;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /***
+     * Builds a catalog directory from an export. Streams the input, so file size is only limited by disk space.
+     */
+    public static void importCatalog(Path input, Path output) throws IOException {
+        importCatalog(input, output, RUN_SIZE);
+    }
+
+    // Tests use a small runSize to get several runs to merge
+    static void importCatalog(Path input, Path output, int runSize) throws IOException {
+        Files.createDirectories(output);
+        Path runDirectory = Files.createTempDirectory(output, "runs");
+        List<Path> runs = new ArrayList<>();
+
+        long count = 0;
+        // DataOutputStream.size() stops at Integer.MAX_VALUE instead of going past it, so this is counted here
+        long written = 0;
+        Postings postings = new Postings(runSize);
+        try (
+            ProductReader reader = new ProductReader(input);
+            DataOutputStream products = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(output.resolve(PRODUCTS_FILE)), 1 << 16))
+        ) {
+            ProductRecord record;
+            while ((record = reader.next()) != null) {
+                if (record.name == null || record.name.isBlank())
+                    continue;
+
+                String name = record.name.strip();
+                String unit = "count";
+                double amount = 1;
+                if (record.quantity != null) {
+                    Matcher quantity = QUANTITY.matcher(record.quantity.toLowerCase(Locale.ROOT));
+                    if (quantity.find()) {
+                        unit = guessUnit(quantity);
+                        amount = guessAmount(quantity);
+                    }
+                }
+
+                int offset = (int) written;
+                written += writeProduct(products, name, unit, amount, guessShelfLife(record.categories));
+
+                // The file is mapped in one piece, and offsets are ints with Integer.MAX_VALUE marking the end of a
+                // postings list in lookup, so every offset stays below it
+                if (written > Integer.MAX_VALUE)
+                    throw new IOException("Products file is too big, it can be at most 2 GB.");
+
+                for (String token : tokenize(ScanKeys.normalize(name))) {
+                    postings.tokens[postings.size] = token;
+                    postings.offsets[postings.size] = offset;
+                    postings.size++;
+
+                    if (postings.size == postings.tokens.length) {
+                        Path run = runDirectory.resolve("run-" + runs.size());
+                        postings.spill(run);
+                        runs.add(run);
+                    }
+                }
+
+                count++;
+                if (count % 1_000_000 == 0)
+                    System.out.println("Read " + count + " products.");
+            }
+        }
+
+        if (postings.size > 0) {
+            Path run = runDirectory.resolve("run-" + runs.size());
+            postings.spill(run);
+            runs.add(run);
+        }
+
+        System.out.println("Read " + count + " products. Merging " + runs.size() + " runs.");
+
+        mergeRuns(runs, output.resolve(TOKENS_FILE));
+
+        for (Path run : runs)
+            Files.delete(run);
+        Files.delete(runDirectory);
+    }
+
+    private static void mergeRuns(List<Path> runs, Path trie) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>((RunReader a, RunReader b) -> {
+            int compare = a.token.compareTo(b.token);
+            return compare != 0 ? compare : Integer.compare(a.offset, b.offset);
+        });
+
+        List<RunReader> readers = new ArrayList<>();
+        try (CompactTrie.Writer writer = new CompactTrie.Writer(trie)) {
+            for (Path run : runs) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+
+                if (reader.next())
+                    queue.add(reader);
+            }
+
+            String token = null;
+            int[] offsets = new int[MAX_POSTINGS];
+            int size = 0;
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+
+                // Normalized tokens are ASCII, so String order is the same as the trie's byte order
+                if (!reader.token.equals(token)) {
+                    if (token != null)
+                        writer.add(token, encodePostings(offsets, size));
+
+                    token = reader.token;
+                    size = 0;
+                }
+
+                // The same token can show up twice in a name
+                if (size < MAX_POSTINGS && (size == 0 || offsets[size - 1] != reader.offset))
+                    offsets[size++] = reader.offset;
+
+                if (reader.next())
+                    queue.add(reader);
+            }
+
+            if (token != null)
+                writer.add(token, encodePostings(offsets, size));
+        } finally {
+            for (RunReader reader : readers)
+                reader.close();
+        }
+    }
+
+    // varint count, then varint deltas between the sorted offsets
+    private static byte[] encodePostings(int[] offsets, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(5 * (size + 1));
+        writeVarint(buffer, size);
+
+        int previous = 0;
+        for (int i = 0; i < size; i++) {
+            writeVarint(buffer, offsets[i] - previous);
+            previous = offsets[i];
+        }
+
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static void writeVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        buffer.put((byte) value);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: ProductCatalog <input .csv/.tsv/.jsonl> <output directory>");
+            System.exit(1);
+        }
+
+        importCatalog(Path.of(args[0]), Path.of(args[1]));
+    }
+}
@@ -0,0 +1,431 @@
+package com.chavna.pantryproject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+/***
+ * OCR words stored as parallel primitive arrays instead of Word/Point objects. Straightens the receipt, computes word
+ * boxes and groups words into lines the same way ReceiptParser does, and serializes to the same JSON as ReceiptParser's
+ * LineBlock[] without building any of those objects.
+ *
+ * Add words with addWord/addPoint, then call process() once.
+ */
+@JsonSerialize(using = ReceiptGeometry.Serializer.class)
+public class ReceiptGeometry {
+    private int wordCount;
+    private String[] text;
+    private int[] pointStart; // points of word i are pointStart[i] until pointStart[i + 1]
+
+    private int pointCount;
+    private float[] pointX;
+    private float[] pointY;
+
+    // Straightened box of each word
+    private float[] minX;
+    private float[] minY;
+    private float[] maxX;
+    private float[] maxY;
+
+    private float angle;
+    private boolean processed;
+
+    // Words of line i are lineWords[lineStart[i]] until lineWords[lineStart[i + 1]], left to right
+    private int lineCount;
+    private int[] lineStart;
+    private int[] lineWords;
+
+    public ReceiptGeometry(int expectedWords) {
+        text = new String[Math.max(expectedWords, 1)];
+        pointStart = new int[text.length + 1];
+        pointX = new float[text.length * 4];
+        pointY = new float[text.length * 4];
+    }
+
+    /***
+     * Starts a new word. Its polygon points are added with addPoint.
+     */
+    public void addWord(String wordText) {
+        if (wordCount == text.length) {
+            text = Arrays.copyOf(text, text.length * 2);
+            pointStart = Arrays.copyOf(pointStart, text.length + 1);
+        }
+
+        text[wordCount] = wordText;
+        wordCount++;
+        pointStart[wordCount] = pointCount;
+    }
+
+    public void addPoint(float x, float y) {
+        if (pointCount == pointX.length) {
+            pointX = Arrays.copyOf(pointX, pointX.length * 2);
+            pointY = Arrays.copyOf(pointY, pointY.length * 2);
+        }
+
+        pointX[pointCount] = x;
+        pointY[pointCount] = y;
+        pointCount++;
+        pointStart[wordCount] = pointCount;
+    }
+
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    public float getAngle() {
+        return angle;
+    }
+
+    String text(int word) {
+        return text[word];
+    }
+
+    // Points as they were added, only valid before process(). Points of word i are pointStart(i) until pointStart(i + 1)
+
+    int pointStart(int word) {
+        return pointStart[word];
+    }
+
+    float pointX(int point) {
+        return pointX[point];
+    }
+
+    float pointY(int point) {
+        return pointY[point];
+    }
+
+    // Only valid after process()
+
+    float minX(int word) {
+        return minX[word];
+    }
+
+    float minY(int word) {
+        return minY[word];
+    }
+
+    float maxX(int word) {
+        return maxX[word];
+    }
+
+    float maxY(int word) {
+        return maxY[word];
+    }
+
+    int lineStart(int line) {
+        return lineStart[line];
+    }
+
+    // Word at position n of the lines, lines are lineStart(line) until lineStart(line + 1)
+    int lineWord(int n) {
+        return lineWords[n];
+    }
+
+    public void process() {
+        processed = true;
+
+        dropWordsWithoutAngle();
+        averageAngle();
+        straighten();
+        groupLines();
+    }
+
+    // The angle comes from the first two points, so words with less than that can't be used
+    private void dropWordsWithoutAngle() {
+        int kept = 0;
+        int keptPoints = 0;
+        for (int i = 0; i < wordCount; i++) {
+            int start = pointStart[i];
+            int end = pointStart[i + 1];
+            if (end - start < 2)
+                continue;
+
+            System.arraycopy(pointX, start, pointX, keptPoints, end - start);
+            System.arraycopy(pointY, start, pointY, keptPoints, end - start);
+            text[kept] = text[i];
+            pointStart[kept] = keptPoints;
+            keptPoints += end - start;
+            kept++;
+        }
+
+        wordCount = kept;
+        pointCount = keptPoints;
+        pointStart[kept] = keptPoints;
+    }
+
+    /***
+     * Average angle of the top edge of every word.
+     */
+    void averageAngle() {
+        float total = 0;
+        for (int i = 0; i < wordCount; i++) {
+            int a = pointStart[i];
+            int b = a + 1;
+
+            total += (float) Math.atan2(pointY[b] - pointY[a], pointX[b] - pointX[a]);
+        }
+
+        angle = wordCount > 0 ? total / wordCount : 0;
+    }
+
+    /***
+     * Rotates every point by -angle and keeps the bounds of each word. The points themselves are left as they were.
+     */
+    void straighten() {
+        minX = new float[wordCount];
+        minY = new float[wordCount];
+        maxX = new float[wordCount];
+        maxY = new float[wordCount];
+
+        double cos = Math.cos(-(double) angle);
+        double sin = Math.sin(-(double) angle);
+
+        for (int i = 0; i < wordCount; i++) {
+            float wordMinX = Float.POSITIVE_INFINITY;
+            float wordMinY = Float.POSITIVE_INFINITY;
+            float wordMaxX = Float.NEGATIVE_INFINITY;
+            float wordMaxY = Float.NEGATIVE_INFINITY;
+
+            for (int p = pointStart[i]; p < pointStart[i + 1]; p++) {
+                float x = (float) (pointX[p] * cos - pointY[p] * sin);
+                float y = (float) (pointX[p] * sin + pointY[p] * cos);
+
+                wordMinX = Math.min(wordMinX, x);
+                wordMinY = Math.min(wordMinY, y);
+                wordMaxX = Math.max(wordMaxX, x);
+                wordMaxY = Math.max(wordMaxY, y);
+            }
+
+            minX[i] = wordMinX;
+            minY[i] = wordMinY;
+            maxX[i] = wordMaxX;
+            maxY[i] = wordMaxY;
+        }
+    }
+
+    /***
+     * Same sweep as ReceiptParser.getLines, sorting packed primitive keys instead of Word objects.
+     */
+    void groupLines() {
+        lineStart = new int[wordCount + 1];
+        lineWords = new int[wordCount];
+        lineCount = 0;
+
+        if (wordCount == 0)
+            return;
+
+        // Sort by center, ties by x, then by insertion order
+        long[] keys = new long[wordCount];
+        for (int i = 0; i < wordCount; i++)
+            keys[i] = packKey(centerY(i), i);
+
+        sortWithTies(keys, (int word) -> minX[word]);
+
+        float top = 0;
+        float bottom = 0;
+        for (int n = 0; n < wordCount; n++) {
+            int word = (int) keys[n];
+            float center = centerY(word);
+            float lineCenter = (top + bottom) / 2;
+            float height = maxY[word] - minY[word];
+
+            boolean sameLine = n > 0
+                && ((center >= top && center <= bottom) || (lineCenter >= minY[word] && lineCenter <= minY[word] + height));
+
+            if (sameLine) {
+                top = Math.min(top, minY[word]);
+                bottom = Math.max(bottom, minY[word] + height);
+            } else {
+                if (n > 0)
+                    finishLine(keys, n);
+
+                top = minY[word];
+                bottom = minY[word] + height;
+            }
+        }
+
+        finishLine(keys, wordCount);
+    }
+
+    // Sorts the words of the line ending at end (in sweep order) by x, ties keep the sweep order
+    private void finishLine(long[] sweepKeys, int end) {
+        int start = lineStart[lineCount];
+
+        long[] keys = new long[end - start];
+        for (int n = start; n < end; n++)
+            keys[n - start] = packKey(minX[(int) sweepKeys[n]], n);
+
+        Arrays.sort(keys);
+
+        for (int n = 0; n < keys.length; n++)
+            lineWords[start + n] = (int) sweepKeys[(int) keys[n]];
+
+        lineCount++;
+        lineStart[lineCount] = end;
+    }
+
+    private interface WordKey {
+        float get(int word);
+    }
+
+    // Sorts keys packed with packKey, then re-sorts runs with equal floats by the second key
+    private static void sortWithTies(long[] keys, WordKey tieBreak) {
+        Arrays.sort(keys);
+
+        int runStart = 0;
+        for (int n = 1; n <= keys.length; n++) {
+            if (n < keys.length && keys[n] >>> 32 == keys[runStart] >>> 32)
+                continue;
+
+            if (n - runStart > 1) {
+                long[] run = new long[n - runStart];
+                for (int k = runStart; k < n; k++)
+                    run[k - runStart] = packKey(tieBreak.get((int) keys[k]), (int) keys[k]);
+
+                // Equal floats keep index order, same as a stable sort
+                Arrays.sort(run);
+
+                for (int k = runStart; k < n; k++)
+                    keys[k] = (keys[k] & 0xFFFFFFFF00000000L) | (run[k - runStart] & 0xFFFFFFFFL);
+            }
+
+            runStart = n;
+        }
+    }
+
+    /***
+     * Float in the top half so sorting the longs sorts by the float, index in the bottom half.
+     */
+    private static long packKey(float value, int index) {
+        int bits = Float.floatToIntBits(value);
+        bits ^= (bits >> 31) & 0x7FFFFFFF;
+
+        return ((long) bits << 32) | (index & 0xFFFFFFFFL);
+    }
+
+    private float centerY(int word) {
+        return minY[word] + (maxY[word] - minY[word]) / 2;
+    }
+
+    /***
+     * The words and points as they were added, so recognition results can be cached. Only works before process().
+     */
+    byte[] toBytes() {
+        if (processed)
+            throw new IllegalStateException("Geometry has already been processed.");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + wordCount * 8 + pointCount * 8);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(wordCount);
+            for (int i = 0; i < wordCount; i++) {
+                out.writeUTF(text[i]);
+                out.writeInt(pointStart[i + 1] - pointStart[i]);
+
+                for (int p = pointStart[i]; p < pointStart[i + 1]; p++) {
+                    out.writeFloat(pointX[p]);
+                    out.writeFloat(pointY[p]);
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    static ReceiptGeometry fromBytes(byte[] bytes) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            int words = in.readInt();
+
+            ReceiptGeometry geometry = new ReceiptGeometry(words);
+            for (int i = 0; i < words; i++) {
+                geometry.addWord(in.readUTF());
+
+                int points = in.readInt();
+                for (int p = 0; p < points; p++)
+                    geometry.addPoint(in.readFloat(), in.readFloat());
+            }
+
+            return geometry;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    //                  //
+    //  SERIALIZATION   //
+    //                  //
+
+    /***
+     * Writes the lines in the same shape as ReceiptParser.LineBlock[]:
+     * [{x, y, width, height, words: [{originalPolygon: [{x, y}], text, characterWidth}]}]
+     */
+    public static class Serializer extends JsonSerializer<ReceiptGeometry> {
+        @Override
+        public void serialize(ReceiptGeometry geometry, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+            gen.writeStartArray();
+
+            for (int line = 0; line < geometry.lineCount; line++) {
+                float lineMinX = Float.POSITIVE_INFINITY;
+                float lineMinY = Float.POSITIVE_INFINITY;
+                float lineMaxX = Float.NEGATIVE_INFINITY;
+                float lineMaxY = Float.NEGATIVE_INFINITY;
+                for (int n = geometry.lineStart[line]; n < geometry.lineStart[line + 1]; n++) {
+                    int word = geometry.lineWords[n];
+                    float width = geometry.maxX[word] - geometry.minX[word];
+                    float height = geometry.maxY[word] - geometry.minY[word];
+
+                    lineMinX = Math.min(lineMinX, geometry.minX[word]);
+                    lineMinY = Math.min(lineMinY, geometry.minY[word]);
+                    lineMaxX = Math.max(lineMaxX, geometry.minX[word] + width);
+                    lineMaxY = Math.max(lineMaxY, geometry.minY[word] + height);
+                }
+
+                gen.writeStartObject();
+                gen.writeNumberField("x", lineMinX);
+                gen.writeNumberField("y", lineMinY);
+                gen.writeNumberField("width", lineMaxX - lineMinX);
+                gen.writeNumberField("height", lineMaxY - lineMinY);
+
+                gen.writeArrayFieldStart("words");
+                for (int n = geometry.lineStart[line]; n < geometry.lineStart[line + 1]; n++) {
+                    int word = geometry.lineWords[n];
+
+                    gen.writeStartObject();
+
+                    gen.writeArrayFieldStart("originalPolygon");
+                    for (int p = geometry.pointStart[word]; p < geometry.pointStart[word + 1]; p++) {
+                        gen.writeStartObject();
+                        gen.writeNumberField("x", geometry.pointX[p]);
+                        gen.writeNumberField("y", geometry.pointY[p]);
+                        gen.writeEndObject();
+                    }
+                    gen.writeEndArray();
+
+                    gen.writeStringField("text", geometry.text[word]);
+                    gen.writeNumberField("characterWidth", (geometry.maxX[word] - geometry.minX[word]) / geometry.text[word].length());
+
+                    gen.writeEndObject();
+                }
+                gen.writeEndArray();
+
+                gen.writeEndObject();
+            }
+
+            gen.writeEndArray();
+        }
+    }
+}
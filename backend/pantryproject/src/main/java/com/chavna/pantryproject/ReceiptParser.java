@@ -1,6 +1,8 @@
 package com.chavna.pantryproject;
 
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 
 import lombok.AllArgsConstructor;
 import lombok.Getter;
@@ -14,10 +16,10 @@ public class ReceiptParser {
 
     @AllArgsConstructor
     public static class Word implements Cloneable, Comparable<Word> {
-        private float x;
-        private float y;
-        private float width;
-        private float height;
+        float x;
+        float y;
+        float width;
+        float height;
         @Getter
         private Point[] originalPolygon;
         @Getter
@@ -27,6 +29,10 @@ public class ReceiptParser {
             return width / text.length();
         }
 
+        float centerY() {
+            return y + height / 2;
+        }
+
         @Override
         public Word clone() {
             Point[] points = new Point[originalPolygon.length];
@@ -43,7 +49,7 @@ public class ReceiptParser {
         }
     }
 
-    public static class LineBlock implements Comparable<LineBlock> {
+    public static class LineBlock {
         @Getter
         private float x;
         @Getter
@@ -54,55 +60,33 @@ public class ReceiptParser {
         private float height;
         private Word[] words;
 
-        private LineBlock(Word[] words) {
+        LineBlock(Word[] words) {
             this.words = words;
 
-            Float x = null;
-            for (Word w : words) {
-                if (x == null || w.x < x)
-                    x = w.x;
-            }
-            this.x = x != null? x : 0;
+            if (words.length == 0)
+                return;
 
-            Float y = null;
+            float minX = Float.POSITIVE_INFINITY;
+            float minY = Float.POSITIVE_INFINITY;
+            float maxX = Float.NEGATIVE_INFINITY;
+            float maxY = Float.NEGATIVE_INFINITY;
             for (Word w : words) {
-                if (y == null || w.y < y)
-                    y = w.y;
+                minX = Math.min(minX, w.x);
+                minY = Math.min(minY, w.y);
+                maxX = Math.max(maxX, w.x + w.width);
+                maxY = Math.max(maxY, w.y + w.height);
             }
-            this.y = y != null? y : 0;
 
-            Float xMax = null;
-            for (Word w : words) {
-                if (xMax == null || w.x + w.width > xMax)
-                    xMax = w.x + w.width;
-            }
-            width = (xMax != null? xMax : 0) - this.x;
-
-            Float yMax = null;
-            for (Word w : words) {
-                if (yMax == null || w.y + w.height > yMax)
-                    yMax = w.y + w.height;
-            }
-            height = (yMax != null? yMax : 0) - this.y;
+            this.x = minX;
+            this.y = minY;
+            this.width = maxX - minX;
+            this.height = maxY - minY;
         }
 
         public LineBlock(Word word) {
             this(new Word[] {word});
         }
 
-        @Override
-        public int compareTo(LineBlock other) {
-            float aCenter = centerY();
-            float bCenter = other.centerY();
-
-            // If either block's y center is within the other's y bounds, they are considered on the same line.
-            if ((bCenter <= y + height && bCenter >= y) || (aCenter <= other.y + other.height && aCenter >= other.y))
-                return 0;
-
-            // Otherwise compare the y position of their centers
-            return Float.compare(aCenter, bCenter);
-        }
-
         public float centerY() {
             return getY() + getHeight() / 2;
         }
@@ -115,49 +99,64 @@ public class ReceiptParser {
 
             return out;
         }
-
-        public static LineBlock combine(LineBlock a, LineBlock b) {
-            TreeSet<Word> wordSet = new TreeSet<>();
-
-            for (Word w : a.words)
-                wordSet.add(w);
-
-            for (Word w : b.words)
-                wordSet.add(w);
-
-            Word[] words = new Word[wordSet.size()];
-            wordSet.toArray(words);
-
-            return new LineBlock(words);
-        }
     }
 
-    private TreeSet<LineBlock> blocks;
+    private static final Comparator<Word> BY_CENTER_Y = Comparator.comparingDouble(Word::centerY);
+    private static final Comparator<Word> BY_X = Comparator.comparingDouble((Word w) -> w.x);
+
+    private ArrayList<Word> words;
 
     public ReceiptParser() {
-        blocks = new TreeSet<>();
+        words = new ArrayList<>();
     }
 
     public void addWord(Word word) {
-        LineBlock textBlock = new LineBlock(word);
+        words.add(word);
+    }
 
-        LineBlock existing = blocks.ceiling(textBlock);
+    /***
+     * Groups the words into lines. Words are swept top to bottom by their center, and a word joins the current line
+     * if its center is within the line's vertical span or the line's center is within the word's.
+     * Lines come out top to bottom with their words left to right.
+     */
+    public LineBlock[] getLines() {
+        Word[] sorted = words.toArray(new Word[0]);
+        Arrays.sort(sorted, BY_CENTER_Y.thenComparing(BY_X));
+
+        if (sorted.length == 0)
+            return new LineBlock[0];
+
+        ArrayList<LineBlock> lines = new ArrayList<>();
+        int start = 0;
+        float top = sorted[0].y;
+        float bottom = sorted[0].y + sorted[0].height;
+        for (int i = 1; i < sorted.length; i++) {
+            Word w = sorted[i];
+            float center = w.centerY();
+            float lineCenter = (top + bottom) / 2;
+
+            if ((center >= top && center <= bottom) || (lineCenter >= w.y && lineCenter <= w.y + w.height)) {
+                top = Math.min(top, w.y);
+                bottom = Math.max(bottom, w.y + w.height);
+                continue;
+            }
 
-        if (existing != null && existing.compareTo(textBlock) != 0)
-            existing = null;
+            lines.add(createLine(sorted, start, i));
 
-        if (existing != null) {
-            blocks.remove(existing);
-            textBlock = LineBlock.combine(existing, textBlock);
+            start = i;
+            top = w.y;
+            bottom = w.y + w.height;
         }
 
-        blocks.add(textBlock);
+        lines.add(createLine(sorted, start, sorted.length));
+
+        return lines.toArray(new LineBlock[0]);
     }
 
-    public LineBlock[] getLines() {
-        LineBlock[] out = new LineBlock[blocks.size()];
-        blocks.toArray(out);
+    private static LineBlock createLine(Word[] sorted, int start, int end) {
+        Word[] line = Arrays.copyOfRange(sorted, start, end);
+        Arrays.sort(line, BY_X);
 
-        return out;
+        return new LineBlock(line);
     }
 }
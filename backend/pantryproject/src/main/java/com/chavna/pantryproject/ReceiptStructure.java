@@ -0,0 +1,475 @@
+package com.chavna.pantryproject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lombok.Getter;
+
+/***
+ * Turns the lines of a processed ReceiptGeometry into line items.
+ *
+ * Word boxes go into a uniform grid. The price column is the grid column where the most prices end (prices are right
+ * aligned), and the quantity column is where the most lines start with a bare number. Every line is then read as
+ * [quantity] description [price]. On top of that:
+ * - A price the sweep put on its own line is matched back up with the description line it sits next to.
+ * - A description line without a price followed right below by a priced line is a wrapped description.
+ * - "2 @ 1.99" and "1.25 LB @ 0.99/LB" give the quantity and unit price, either on the item's line or on the line after.
+ * - A price between the description and the price column is the unit price.
+ * - A negative price is a discount on the item above.
+ * - Nothing after the total is an item.
+ *
+ * Everything is a constant number of passes over the words and lines.
+ */
+public class ReceiptStructure {
+    private static final int MIN_COLUMN_ROWS = 2;
+    private static final int MAX_CELLS_PER_WORD = 16;
+
+    private static final Pattern PRICE = Pattern.compile("^(-)?\\$?(\\d{0,5})[.,](\\d{2})(-)?[A-Z*]{0,2}$");
+    private static final Pattern QUANTITY = Pattern.compile("^\\d{1,3}$");
+    private static final Pattern QUANTITY_AT = Pattern.compile(
+        "(?:^|\\s)(?:(\\d+(?:\\.\\d+)?)\\s*(?:LBS?|KG|OZ|EA)?\\s*)?@\\s*\\$?(\\d*[.,]\\d{2})(?:\\s*/\\s*(?:LBS?|KG|OZ|EA))?(?=\\s|$)");
+
+    private static final Set<String> SUMMARY_WORDS = Set.of(
+        "TOTAL", "SUBTOTAL", "TAX", "BALANCE", "CHANGE", "CASH", "DEBIT", "CREDIT", "VISA", "MASTERCARD", "AMEX",
+        "TEND", "TENDER", "SAVINGS", "DUE", "PAYMENT"
+    );
+    // Lines with TOTAL and one of these aren't the receipt total
+    private static final Set<String> NOT_TOTAL_WORDS = Set.of("SUBTOTAL", "SUB", "SAVINGS", "TAX", "ITEMS");
+
+    public static class LineItem {
+        public String description;
+        public Double quantity; // null if the receipt doesn't say
+        public Double unitPrice; // null if the receipt doesn't say
+        public double price;
+        public int line; // index of the line the price is on, or of the description's line if the price was split off
+    }
+
+    @Getter
+    private List<LineItem> items = new ArrayList<>();
+    @Getter
+    private Double total;
+
+    private final ReceiptGeometry geometry;
+    private WordGrid grid;
+
+    private int[] lineOf;
+    private double[] priceValue; // NaN if the word isn't a price
+    private boolean[] claimed; // prices taken by a line other than their own
+
+    // Grid columns, -1 if not found
+    private int priceColumn = -1;
+    private int quantityColumn = -1;
+
+    public ReceiptStructure(ReceiptGeometry geometry) {
+        this.geometry = geometry;
+
+        int wordCount = geometry.getWordCount();
+        if (geometry.getLineCount() == 0)
+            return;
+
+        lineOf = new int[wordCount];
+        priceValue = new double[wordCount];
+        claimed = new boolean[wordCount];
+
+        for (int line = 0; line < geometry.getLineCount(); line++) {
+            for (int n = geometry.lineStart(line); n < geometry.lineStart(line + 1); n++)
+                lineOf[geometry.lineWord(n)] = line;
+        }
+
+        for (int word = 0; word < wordCount; word++)
+            priceValue[word] = parsePrice(geometry.text(word));
+
+        grid = new WordGrid(geometry);
+        findColumns();
+
+        // Without prices there's nothing to make items from
+        if (priceColumn < 0)
+            return;
+
+        int[] linePrice = new int[geometry.getLineCount()];
+        for (int line = 0; line < geometry.getLineCount(); line++)
+            linePrice[line] = columnPrice(line);
+
+        for (int line = 0; line < geometry.getLineCount(); line++) {
+            if (linePrice[line] < 0 && hasDescription(line))
+                linePrice[line] = splitPrice(line);
+        }
+
+        readItems(linePrice);
+    }
+
+    //                  //
+    //     COLUMNS      //
+    //                  //
+
+    private void findColumns() {
+        int[] priceEnds = new int[grid.columns];
+        int[] quantityStarts = new int[grid.columns];
+
+        for (int word = 0; word < geometry.getWordCount(); word++) {
+            if (!Double.isNaN(priceValue[word]))
+                priceEnds[grid.column(geometry.maxX(word))]++;
+        }
+
+        for (int line = 0; line < geometry.getLineCount(); line++) {
+            int first = geometry.lineWord(geometry.lineStart(line));
+            if (QUANTITY.matcher(geometry.text(first)).matches())
+                quantityStarts[grid.column(geometry.minX(first))]++;
+        }
+
+        priceColumn = densestColumn(priceEnds);
+        quantityColumn = densestColumn(quantityStarts);
+
+        if (priceColumn >= 0 && quantityColumn >= priceColumn - 1)
+            quantityColumn = -1;
+    }
+
+    // Start of the two neighbouring grid columns with the highest count, -1 if that's below MIN_COLUMN_ROWS
+    private static int densestColumn(int[] counts) {
+        int best = -1;
+        int bestCount = MIN_COLUMN_ROWS - 1;
+        for (int column = 0; column < counts.length; column++) {
+            int count = counts[column] + (column + 1 < counts.length ? counts[column + 1] : 0);
+            if (count > bestCount) {
+                best = column;
+                bestCount = count;
+            }
+        }
+
+        return best;
+    }
+
+    private boolean inPriceColumn(int word) {
+        int column = grid.column(geometry.maxX(word));
+        return column >= priceColumn - 1 && column <= priceColumn + 2;
+    }
+
+    private boolean inQuantityColumn(int word) {
+        int column = grid.column(geometry.minX(word));
+        return quantityColumn >= 0 && column >= quantityColumn - 1 && column <= quantityColumn + 2;
+    }
+
+    private boolean leftOfPriceColumn(int word) {
+        return grid.column(geometry.maxX(word)) < priceColumn - 1;
+    }
+
+    //                  //
+    //      PRICES      //
+    //                  //
+
+    // Rightmost price of the line that's in the price column, -1 if none
+    private int columnPrice(int line) {
+        for (int n = geometry.lineStart(line + 1) - 1; n >= geometry.lineStart(line); n--) {
+            int word = geometry.lineWord(n);
+            if (!Double.isNaN(priceValue[word]) && inPriceColumn(word))
+                return word;
+        }
+
+        return -1;
+    }
+
+    private boolean hasDescription(int line) {
+        for (int n = geometry.lineStart(line); n < geometry.lineStart(line + 1); n++) {
+            if (leftOfPriceColumn(geometry.lineWord(n)))
+                return true;
+        }
+
+        return false;
+    }
+
+    /***
+     * Finds a price in the price column next to the line that the sweep put on a line of its own, because the receipt
+     * bends or the price is printed a bit higher or lower. Only looks at the grid cells the line covers.
+     */
+    private int splitPrice(int line) {
+        float top = Float.POSITIVE_INFINITY;
+        float bottom = Float.NEGATIVE_INFINITY;
+        for (int n = geometry.lineStart(line); n < geometry.lineStart(line + 1); n++) {
+            int word = geometry.lineWord(n);
+            top = Math.min(top, geometry.minY(word));
+            bottom = Math.max(bottom, geometry.maxY(word));
+        }
+
+        int firstColumn = Math.max(priceColumn - 1, 0);
+        int lastColumn = Math.min(priceColumn + 2, grid.columns - 1);
+
+        int found = -1;
+        for (int row = grid.row(top); row <= grid.row(bottom); row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int cell = row * grid.columns + column;
+                for (int k = grid.cellStart[cell]; k < grid.cellStart[cell + 1]; k++) {
+                    int word = grid.cellWords[k];
+                    float center = (geometry.minY(word) + geometry.maxY(word)) / 2;
+
+                    if (lineOf[word] == line || claimed[word] || Double.isNaN(priceValue[word]) || !inPriceColumn(word))
+                        continue;
+
+                    if (center < top || center > bottom || hasDescription(lineOf[word]))
+                        continue;
+
+                    if (found < 0 || geometry.maxX(word) > geometry.maxX(found))
+                        found = word;
+                }
+            }
+        }
+
+        if (found >= 0)
+            claimed[found] = true;
+
+        return found;
+    }
+
+    static double parsePrice(String text) {
+        Matcher matcher = PRICE.matcher(text.toUpperCase());
+        if (!matcher.matches())
+            return Double.NaN;
+
+        double value = (matcher.group(2).isEmpty() ? 0 : Integer.parseInt(matcher.group(2))) + Integer.parseInt(matcher.group(3)) / 100.0;
+
+        return matcher.group(1) != null || matcher.group(4) != null ? -value : value;
+    }
+
+    //                  //
+    //      ITEMS       //
+    //                  //
+
+    private void readItems(int[] linePrice) {
+        String pending = null; // description line waiting for its price
+        int pendingLine = -1;
+        float pendingLeft = 0;
+        LineItem previous = null;
+
+        for (int line = 0; line < geometry.getLineCount(); line++) {
+            int price = linePrice[line];
+
+            // Price that was matched up with another line
+            if (price < 0 && !hasDescription(line) && isClaimedPriceLine(line))
+                continue;
+
+            Double quantity = null;
+            float left = Float.NaN;
+            StringBuilder description = new StringBuilder();
+            ArrayList<String> words = new ArrayList<>();
+            for (int n = geometry.lineStart(line); n < geometry.lineStart(line + 1); n++) {
+                int word = geometry.lineWord(n);
+                if (word == price || !leftOfPriceColumn(word))
+                    continue;
+
+                if (n == geometry.lineStart(line) && inQuantityColumn(word) && QUANTITY.matcher(geometry.text(word)).matches()) {
+                    quantity = Double.valueOf(geometry.text(word));
+                    continue;
+                }
+
+                if (Float.isNaN(left))
+                    left = geometry.minX(word);
+
+                words.add(geometry.text(word).toUpperCase());
+                if (description.length() > 0)
+                    description.append(' ');
+                description.append(geometry.text(word));
+            }
+
+            if (isSummary(words)) {
+                if (price >= 0 && total == null && isTotal(words))
+                    total = priceValue[price];
+
+                // Whatever comes after the total is payment info
+                if (total != null)
+                    return;
+
+                pending = null;
+                continue;
+            }
+
+            Double unitPrice = null;
+            String text = description.toString();
+            Matcher at = QUANTITY_AT.matcher(text.toUpperCase());
+            if (at.find()) {
+                // The number before the @ may already have been read from the quantity column
+                if (at.group(1) != null)
+                    quantity = Double.valueOf(at.group(1));
+                unitPrice = Double.valueOf(at.group(2).replace(',', '.'));
+                text = (text.substring(0, at.start()) + " " + text.substring(at.end())).trim();
+            }
+
+            // Receipts laid out as a table have a unit price column before the amount
+            int lastSpace = text.lastIndexOf(' ');
+            if (unitPrice == null && price >= 0 && lastSpace > 0) {
+                double lastPrice = parsePrice(text.substring(lastSpace + 1));
+                if (lastPrice > 0) {
+                    unitPrice = lastPrice;
+                    text = text.substring(0, lastSpace);
+                }
+            }
+
+            if (price < 0) {
+                // Quantity line under an item
+                if (text.isEmpty() && unitPrice != null && previous != null && previous.unitPrice == null && previous.line == line - 1) {
+                    previous.quantity = quantity;
+                    previous.unitPrice = unitPrice;
+                } else if (!text.isEmpty()) {
+                    pending = text;
+                    pendingLine = line;
+                    pendingLeft = left;
+                }
+
+                continue;
+            }
+
+            double value = priceValue[price];
+
+            if (value < 0) {
+                if (previous != null)
+                    previous.price += value;
+
+                continue;
+            }
+
+            // A wrapped description starts where the rest of it does, headers above the first item usually don't
+            if (pending != null && pendingLine == line - 1) {
+                if (text.isEmpty())
+                    text = pending;
+                else if (Math.abs(left - pendingLeft) <= grid.cellWidth)
+                    text = pending + " " + text;
+            }
+            pending = null;
+
+            // Stray price
+            if (text.isEmpty())
+                continue;
+
+            LineItem item = new LineItem();
+            item.description = text;
+            item.quantity = quantity;
+            item.unitPrice = unitPrice;
+            if (unitPrice == null && quantity != null)
+                item.unitPrice = value / quantity;
+            item.price = value;
+            item.line = line;
+
+            items.add(item);
+            previous = item;
+        }
+    }
+
+    private boolean isClaimedPriceLine(int line) {
+        for (int n = geometry.lineStart(line); n < geometry.lineStart(line + 1); n++) {
+            if (claimed[geometry.lineWord(n)])
+                return true;
+        }
+
+        return false;
+    }
+
+    private static boolean isSummary(List<String> words) {
+        for (String word : words) {
+            if (SUMMARY_WORDS.contains(word))
+                return true;
+        }
+
+        return false;
+    }
+
+    private static boolean isTotal(List<String> words) {
+        boolean total = false;
+        for (String word : words) {
+            if (NOT_TOTAL_WORDS.contains(word))
+                return false;
+
+            total |= word.equals("TOTAL");
+        }
+
+        return total;
+    }
+
+    //                  //
+    //       GRID       //
+    //                  //
+
+    /***
+     * Uniform grid over the word boxes. Cells are about two characters wide and a word tall, and each cell lists the
+     * words whose box overlaps it (cellWords[cellStart[cell]] until cellWords[cellStart[cell + 1]]).
+     */
+    static class WordGrid {
+        final float originX;
+        final float originY;
+        final float cellWidth;
+        final float cellHeight;
+        final int columns;
+        final int rows;
+        final int[] cellStart;
+        final int[] cellWords;
+
+        WordGrid(ReceiptGeometry geometry) {
+            int wordCount = geometry.getWordCount();
+
+            float minX = Float.POSITIVE_INFINITY;
+            float minY = Float.POSITIVE_INFINITY;
+            float maxX = Float.NEGATIVE_INFINITY;
+            float maxY = Float.NEGATIVE_INFINITY;
+            double totalWidth = 0;
+            double totalHeight = 0;
+            long totalCharacters = 0;
+            for (int word = 0; word < wordCount; word++) {
+                minX = Math.min(minX, geometry.minX(word));
+                minY = Math.min(minY, geometry.minY(word));
+                maxX = Math.max(maxX, geometry.maxX(word));
+                maxY = Math.max(maxY, geometry.maxY(word));
+                totalWidth += geometry.maxX(word) - geometry.minX(word);
+                totalHeight += geometry.maxY(word) - geometry.minY(word);
+                totalCharacters += Math.max(geometry.text(word).length(), 1);
+            }
+
+            float width = Math.max(maxX - minX, Float.MIN_NORMAL);
+            float height = Math.max(maxY - minY, Float.MIN_NORMAL);
+
+            float cellWidth = (float) Math.max(2 * totalWidth / totalCharacters, width / 1024);
+            float cellHeight = (float) Math.max(totalHeight / wordCount, height / (4 * wordCount));
+
+            // Keep the grid linear in the number of words
+            while ((long) Math.ceil(width / cellWidth) * (long) Math.ceil(height / cellHeight) > (long) MAX_CELLS_PER_WORD * wordCount + 64)
+                cellWidth *= 2;
+
+            this.originX = minX;
+            this.originY = minY;
+            this.cellWidth = cellWidth;
+            this.cellHeight = cellHeight;
+            this.columns = Math.max((int) Math.ceil(width / cellWidth), 1);
+            this.rows = Math.max((int) Math.ceil(height / cellHeight), 1);
+
+            // Counting sort of the words into their cells
+            cellStart = new int[columns * rows + 1];
+            for (int word = 0; word < wordCount; word++) {
+                for (int row = row(geometry.minY(word)); row <= row(geometry.maxY(word)); row++) {
+                    for (int column = column(geometry.minX(word)); column <= column(geometry.maxX(word)); column++)
+                        cellStart[row * columns + column + 1]++;
+                }
+            }
+
+            for (int cell = 0; cell < columns * rows; cell++)
+                cellStart[cell + 1] += cellStart[cell];
+
+            cellWords = new int[cellStart[columns * rows]];
+            int[] next = new int[columns * rows];
+            for (int word = 0; word < wordCount; word++) {
+                for (int row = row(geometry.minY(word)); row <= row(geometry.maxY(word)); row++) {
+                    for (int column = column(geometry.minX(word)); column <= column(geometry.maxX(word)); column++) {
+                        int cell = row * columns + column;
+                        cellWords[cellStart[cell] + next[cell]++] = word;
+                    }
+                }
+            }
+        }
+
+        int column(float x) {
+            return Math.min(Math.max((int) ((x - originX) / cellWidth), 0), columns - 1);
+        }
+
+        int row(float y) {
+            return Math.min(Math.max((int) ((y - originY) / cellHeight), 0), rows - 1);
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package com.chavna.pantryproject;
 
+import java.time.Duration;
+
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.HttpStatusCode;
 import org.springframework.http.ResponseEntity;
@@ -36,6 +39,12 @@ public class Response extends ResponseEntity<Response.ResponseBody> {
         body.status = status.value();
     }
 
+    private Response(ResponseBody body, HttpHeaders headers, HttpStatusCode status) {
+        super(body, headers, status);
+
+        body.status = status.value();
+    }
+
     public static Response Success() {
         return new Response(new ResponseBody("success", null, null), HttpStatus.OK);
     }
@@ -79,4 +88,14 @@ public class Response extends ResponseEntity<Response.ResponseBody> {
     public static Response Error(HttpStatusCode statusCode, String message, Object payload) {
         return new Response(new ResponseBody("error", payload, message), statusCode);
     }
+
+    /***
+     * 429 with a Retry-After header, for when the server is too busy rather than the request being wrong.
+     */
+    public static Response RetryLater(String message, Duration retryAfter) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(retryAfter.toSeconds(), 1)));
+
+        return new Response(new ResponseBody("error", null, message), headers, HttpStatus.TOO_MANY_REQUESTS);
+    }
 }
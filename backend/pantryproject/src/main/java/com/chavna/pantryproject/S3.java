@@ -3,25 +3,50 @@ package com.chavna.pantryproject;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
 import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 
+import static com.chavna.pantryproject.Database.IMAGE_REFS_TABLE;
 import static com.chavna.pantryproject.Env.CHAVNA_URL;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.Base64;
+import java.util.HexFormat;
 import java.util.UUID;
 
 import javax.imageio.ImageIO;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 
+/***
+ * Images are stored once, under the SHA-256 of their content (sha256-<hash>.jpg), and keys like meal-<id>.jpg point at
+ * them through the image_refs table. The same picture uploaded again, for another meal or by another user, isn't
+ * decoded, encoded or written to S3 a second time. Images from before image_refs are still under their own key until
+ * that key gets a new picture.
+ *
+ * A content object is deleted once the last ref to it is overwritten or deleted. Writing or deleting one and changing
+ * refs to it happen under an advisory lock on its content key, so a delete never removes an object a ref was just
+ * pointed at.
+ *
+ * Metrics (Metrics.globalRegistry):
+ * - images.stored{result = new | duplicate}
+ * - images.deleted
+ */
 public class S3 {
     private static S3Client s3Client = S3Client.builder()
         .region(Region.US_EAST_1)
@@ -29,6 +54,13 @@ public class S3 {
     
     public static final String PICTURES_BUCKET = "chavna-pictures";
 
+    private static final Counter newImagesCounter = Metrics.counter("images.stored", "result", "new");
+    private static final Counter duplicateImagesCounter = Metrics.counter("images.stored", "result", "duplicate");
+    private static final Counter deletedImagesCounter = Metrics.counter("images.deleted");
+
+    // First key of the content advisory locks, the second is hashtext(content key)
+    private static final int CONTENT_LOCK = 0x696d6773; // "imgs"
+
     @AllArgsConstructor
     public static abstract class AbstractS3Upload {
         @Getter
@@ -47,12 +79,110 @@ public class S3 {
 
     }
 
-    public static void uploadImage(BufferedImage image, String key) {
-        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-            .bucket(PICTURES_BUCKET)
-            .key(key)
-            .build();
+    /***
+     * Stores the file as the client sent it under the hash of its bytes, and points key at it. Bytes that were stored
+     * before are only pointed at. The picture key pointed at before is deleted if nothing else uses it.
+     * @param source The file, in any format ImageIO reads. Left as it is.
+     * @return False if the image couldn't be decoded.
+     */
+    public static boolean uploadImage(ByteBuffer source, String key) {
+        String contentKey = getContentKey(sha256(source));
+
+        // Decoded before taking the lock, and only the first time these bytes are seen
+        byte[] jpg = null;
+        if (!objectExists(contentKey)) {
+            jpg = toJpg(source);
+            if (jpg == null)
+                return false;
+        }
+
+        final byte[] encoded = jpg;
+        String[] previous = {null};
+        Database.openConnection((Connection con) -> {
+            try {
+                con.setAutoCommit(false);
+                lockContent(con, contentKey);
+
+                byte[] put = encoded;
+                // The last ref to it went away since it was checked, and it was deleted
+                if (put == null && !objectExists(contentKey))
+                    put = toJpg(source);
+
+                if (put != null) {
+                    putObject(contentKey, put);
+                    newImagesCounter.increment();
+                } else {
+                    duplicateImagesCounter.increment();
+                }
+
+                previous[0] = setRef(con, key, contentKey);
+
+                con.commit();
+            } catch (SQLException | RuntimeException ex) {
+                con.rollback();
+
+                throw ex;
+            }
+
+            return null;
+        })
+        .throwIfError()
+        .ignoreResponse();
+
+        // The picture is stored either way, what it replaced is only cleaned up
+        try {
+            if (previous[0] == null)
+                deleteObject(key); // from before image_refs, if there is one
+            else if (!previous[0].equals(contentKey))
+                deleteIfUnreferenced(previous[0]);
+        } catch (RuntimeException ex) {
+            System.out.println("Failed to delete the image " + key + " used to point at.");
+            ex.printStackTrace();
+        }
+
+        return true;
+    }
 
+    /***
+     * Deletes key's picture. Its content object is deleted too if nothing else uses it.
+     */
+    public static void deleteImage(String key) {
+        String[] contentKey = {null};
+
+        Database.openConnection((Connection con) -> {
+            PreparedStatement statement = con.prepareStatement(String.format("""
+                DELETE FROM %s
+                WHERE key = ?
+                RETURNING content_key;
+            """, IMAGE_REFS_TABLE));
+            statement.setString(1, key);
+
+            ResultSet result = statement.executeQuery();
+            if (result.next())
+                contentKey[0] = result.getString(1);
+
+            return null;
+        })
+        .throwIfError()
+        .ignoreResponse();
+
+        if (contentKey[0] != null)
+            deleteIfUnreferenced(contentKey[0]);
+        else
+            deleteObject(key); // from before image_refs, if there is one
+    }
+
+    // Null if ImageIO can't read it
+    private static byte[] toJpg(ByteBuffer source) {
+        BufferedImage image = null;
+        try {
+            image = ImageIO.read(ChunkStore.inputStream(source));
+        } catch (IOException ex) {}
+
+        return image == null ? null : encodeJpg(image);
+    }
+
+    private static byte[] encodeJpg(BufferedImage image) {
         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
         try {
             ImageIO.write(image, "JPG", bytes);
@@ -61,13 +191,32 @@ public class S3 {
             throw new IllegalStateException(ex);
         }
 
-        s3Client.putObject(putObjectRequest, RequestBody.fromBytes(bytes.toByteArray()));
+        return bytes.toByteArray();
+    }
+
+    private static void putObject(String key, byte[] bytes) {
+        PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+            .bucket(PICTURES_BUCKET)
+            .key(key)
+            .build();
+
+        s3Client.putObject(putObjectRequest, RequestBody.fromBytes(bytes));
+    }
+
+    // Deleting a key that doesn't exist isn't an error
+    private static void deleteObject(String key) {
+        DeleteObjectRequest request = DeleteObjectRequest.builder()
+            .bucket(PICTURES_BUCKET)
+            .key(key)
+            .build();
+
+        s3Client.deleteObject(request);
     }
 
     public static byte[] getImage(String key) {
         GetObjectRequest getObjectRequest = GetObjectRequest.builder()
             .bucket(PICTURES_BUCKET)
-            .key(key)
+            .key(resolveKey(key))
             .build();
 
         var response = s3Client.getObject(getObjectRequest);
@@ -83,6 +232,15 @@ public class S3 {
     }
 
     public static boolean imageExists(String key) {
+        // Keys with a ref are never their own object
+        if (!resolveKey(key).equals(key))
+            return true;
+
+        return objectExists(key);
+    }
+
+    // Only the object under key itself, refs aren't followed
+    static boolean objectExists(String key) {
         try {
             HeadObjectRequest request = HeadObjectRequest.builder()
                 .bucket(PICTURES_BUCKET)
@@ -101,21 +259,123 @@ public class S3 {
         return prefix + "-" + id.toString() + ".jpg";
     }
 
+    private static String getContentKey(String hash) {
+        return "sha256-" + hash + ".jpg";
+    }
+
+    private static String sha256(ByteBuffer bytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(bytes.duplicate());
+
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException ex) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    //                  //
+    //       REFS       //
+    //                  //
+
+    private static void lockContent(Connection con, String contentKey) throws SQLException {
+        PreparedStatement lock = con.prepareStatement("SELECT pg_advisory_xact_lock(?, hashtext(?));");
+        lock.setInt(1, CONTENT_LOCK);
+        lock.setString(2, contentKey);
+        lock.execute();
+    }
+
+    // Returns the content key it pointed at before, null if it didn't have a ref
+    private static String setRef(Connection con, String key, String contentKey) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(String.format("""
+            WITH previous AS (
+                SELECT content_key FROM %1$s
+                WHERE key = ?
+                FOR UPDATE
+            )
+            INSERT INTO %1$s (key, content_key)
+            VALUES (?, ?)
+            ON CONFLICT (key) DO UPDATE SET content_key = EXCLUDED.content_key, updated = now()
+            RETURNING (SELECT content_key FROM previous);
+        """, IMAGE_REFS_TABLE));
+        statement.setString(1, key);
+        statement.setString(2, key);
+        statement.setString(3, contentKey);
+
+        ResultSet result = statement.executeQuery();
+        result.next();
+
+        return result.getString(1);
+    }
+
+    private static void deleteIfUnreferenced(String contentKey) {
+        Database.openConnection((Connection con) -> {
+            try {
+                con.setAutoCommit(false);
+                lockContent(con, contentKey);
+
+                PreparedStatement statement = con.prepareStatement(String.format("""
+                    SELECT 1 FROM %s
+                    WHERE content_key = ?
+                    LIMIT 1;
+                """, IMAGE_REFS_TABLE));
+                statement.setString(1, contentKey);
+
+                if (!statement.executeQuery().next()) {
+                    deleteObject(contentKey);
+                    deletedImagesCounter.increment();
+                }
+
+                con.commit();
+            } catch (SQLException | RuntimeException ex) {
+                con.rollback();
+
+                throw ex;
+            }
+
+            return null;
+        })
+        .throwIfError()
+        .ignoreResponse();
+    }
+
+    // Where key's image is stored, keys without a ref are from before image_refs and are their own object
+    private static String resolveKey(String key) {
+        String[] contentKey = {key};
+
+        Database.openConnection((Connection con) -> {
+            PreparedStatement statement = con.prepareStatement(String.format("""
+                SELECT content_key FROM %s
+                WHERE key = ?;
+            """, IMAGE_REFS_TABLE));
+            statement.setString(1, key);
+
+            ResultSet result = statement.executeQuery();
+            if (result.next())
+                contentKey[0] = result.getString(1);
+
+            return null;
+        })
+        .throwIfError()
+        .ignoreResponse();
+
+        return contentKey[0];
+    }
+
     public static String getImageURL(String key) {
         return CHAVNA_URL + "images/" + key;
     }
 
-    public static BufferedImage decodeBase64Image(String image) throws IOException {
-        // I blatanly copy pasted this from Gemini
-
+    /***
+     * @return The decoded bytes, for uploadImage.
+     * @throws IllegalArgumentException If it isn't valid base64.
+     */
+    public static byte[] decodeBase64(String image) {
         // Remove the "data:image/png;base64," prefix if present
         if (image.startsWith("data:image"))
             image = image.substring(image.indexOf(",") + 1);
-        
-        // Decode the Base64 string to a byte array
-        byte[] decodedBytes = Base64.getDecoder().decode(image);
-        ByteArrayInputStream bytes = new ByteArrayInputStream(decodedBytes);
 
-        return ImageIO.read(bytes);
+        return Base64.getDecoder().decode(image);
     }
 }
@@ -0,0 +1,137 @@
+package com.chavna.pantryproject;
+
+import static com.chavna.pantryproject.Database.SCAN_ITEMS_TABLE;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import lombok.AllArgsConstructor;
+
+/***
+ * Fills in scan_items.normalized_text with ScanKeys.normalize, the same function lookups use, so every existing key
+ * keeps matching. See "Normalized scan keys" in Database.md for when to run it.
+ *
+ * Rows of a household that now normalize to the same text can't all stay, the unique index allows one. The one kept is
+ * decided the same way every run:
+ * 1. a row that already has that normalized_text (written by the backend, so it's the latest mapping)
+ * 2. otherwise the row whose scan_text is already in normalized form
+ * 3. otherwise the smallest scan_text (String.compareTo)
+ *
+ * Everything happens in one transaction, and running it again changes nothing.
+ * ./gradlew backfillScanKeys
+ */
+public class ScanKeyBackfill {
+    private static final int FETCH_SIZE = 1000;
+    private static final int BATCH_SIZE = 1000;
+
+    @AllArgsConstructor
+    private static class Row {
+        private String ctid;
+        private String scanText;
+        private String normalizedText; // what's in the table now, null if not set yet
+    }
+
+    // The rule above for rows that normalize to normalized, the one to keep first
+    private static Comparator<Row> keepFirst(String normalized) {
+        return Comparator
+            .comparing((Row row) -> !normalized.equals(row.normalizedText))
+            .thenComparing((Row row) -> !normalized.equals(row.scanText))
+            .thenComparing((Row row) -> row.scanText);
+    }
+
+    public static void backfill() {
+        Database.openConnection((Connection con) -> {
+            try {
+                con.setAutoCommit(false);
+
+                // owner -> normalized text -> rows
+                Map<UUID, Map<String, List<Row>>> households = new HashMap<>();
+
+                PreparedStatement select = con.prepareStatement(String.format("""
+                    SELECT ctid::text, owner, scan_text, normalized_text FROM %s;
+                """, SCAN_ITEMS_TABLE));
+                select.setFetchSize(FETCH_SIZE);
+
+                ResultSet result = select.executeQuery();
+                while (result.next()) {
+                    Row row = new Row(result.getString(1), result.getString(3), result.getString(4));
+
+                    households.computeIfAbsent((UUID) result.getObject(2), (UUID owner) -> new HashMap<>())
+                        .computeIfAbsent(ScanKeys.normalize(row.scanText), (String normalized) -> new ArrayList<>())
+                        .add(row);
+                }
+
+                List<String> deleteCtids = new ArrayList<>();
+                List<String> updateCtids = new ArrayList<>();
+                List<String> updateTexts = new ArrayList<>();
+                for (var household : households.entrySet()) {
+                    for (var group : household.getValue().entrySet()) {
+                        String normalized = group.getKey();
+                        List<Row> rows = group.getValue();
+                        rows.sort(keepFirst(normalized));
+
+                        Row kept = rows.get(0);
+                        if (!normalized.equals(kept.normalizedText)) {
+                            updateCtids.add(kept.ctid);
+                            updateTexts.add(normalized);
+                        }
+
+                        for (Row row : rows.subList(1, rows.size())) {
+                            System.out.println("Dropping scan key \"" + row.scanText + "\", it collides with \"" + kept.scanText + "\" for " + household.getKey());
+                            deleteCtids.add(row.ctid);
+                        }
+                    }
+                }
+
+                // Deletes first, a kept row can only take a normalized_text once the others with it are gone
+                for (int start = 0; start < deleteCtids.size(); start += BATCH_SIZE) {
+                    PreparedStatement delete = con.prepareStatement(String.format("""
+                        DELETE FROM %s
+                        WHERE ctid = ANY(?::tid[]);
+                    """, SCAN_ITEMS_TABLE));
+                    delete.setArray(1, con.createArrayOf("text", deleteCtids.subList(start, Math.min(start + BATCH_SIZE, deleteCtids.size())).toArray()));
+                    delete.executeUpdate();
+                }
+
+                for (int start = 0; start < updateCtids.size(); start += BATCH_SIZE) {
+                    int end = Math.min(start + BATCH_SIZE, updateCtids.size());
+
+                    PreparedStatement update = con.prepareStatement(String.format("""
+                        UPDATE %s s
+                        SET normalized_text = d.normalized_text
+                        FROM unnest(?::tid[], ?::text[]) AS d(row_id, normalized_text)
+                        WHERE s.ctid = d.row_id;
+                    """, SCAN_ITEMS_TABLE));
+                    update.setArray(1, con.createArrayOf("text", updateCtids.subList(start, end).toArray()));
+                    update.setArray(2, con.createArrayOf("text", updateTexts.subList(start, end).toArray()));
+                    update.executeUpdate();
+                }
+
+                con.commit();
+
+                System.out.println("Scan keys normalized: " + updateCtids.size() + ", dropped: " + deleteCtids.size());
+            } catch (SQLException | RuntimeException ex) {
+                con.rollback();
+
+                throw ex;
+            }
+
+            return null;
+        })
+        .throwIfError()
+        .ignoreResponse();
+    }
+
+    public static void main(String[] args) {
+        backfill();
+        System.exit(0);
+    }
+}
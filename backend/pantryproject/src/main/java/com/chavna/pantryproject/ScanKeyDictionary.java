@@ -0,0 +1,199 @@
+package com.chavna.pantryproject;
+
+import static com.chavna.pantryproject.Database.FOOD_ITEM_TEMPLATES_TABLE;
+import static com.chavna.pantryproject.Database.SCAN_ITEMS_TABLE;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import lombok.AllArgsConstructor;
+
+/***
+ * Suggestions for receipt text a household hasn't mapped yet, based on how other households mapped it.
+ * Only template names, units, categories and how many households agree are kept, and only for text mapped by at
+ * least MIN_HOUSEHOLDS households.
+ *
+ * The dictionary is rebuilt in the background into a CompactTrie file and swapped in once it's done.
+ */
+public class ScanKeyDictionary {
+    private static final Duration REBUILD_INTERVAL = Duration.ofHours(6);
+    private static final int MIN_HOUSEHOLDS = 3;
+    private static final int MAX_SUGGESTIONS = 3;
+    private static final int FETCH_SIZE = 1000;
+
+    @AllArgsConstructor
+    public static class Suggestion {
+        public String name;
+        public String unit;
+        public String category;
+        public int households; // how many households mapped the text to this
+    }
+
+    private static volatile CompactTrie dictionary;
+    private static Path dictionaryPath;
+
+    private static final ScheduledExecutorService rebuilder = Executors.newSingleThreadScheduledExecutor((Runnable runnable) -> {
+        Thread thread = new Thread(runnable, "scan-key-dictionary");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        rebuilder.scheduleWithFixedDelay(ScanKeyDictionary::rebuild, 0, REBUILD_INTERVAL.toMinutes(), TimeUnit.MINUTES);
+    }
+
+    /***
+     * @param normalizedKey - Key from ScanKeys.normalize.
+     * @return Suggestions, most popular first. Empty if there aren't any or the dictionary hasn't been built yet.
+     */
+    public static List<Suggestion> lookup(String normalizedKey) {
+        CompactTrie current = dictionary;
+        if (current == null)
+            return List.of();
+
+        ByteBuffer value = current.get(normalizedKey);
+        if (value == null)
+            return List.of();
+
+        return decode(value);
+    }
+
+    private static void rebuild() {
+        Path path = null;
+        try {
+            path = Files.createTempFile("scan-key-dictionary", ".trie");
+            write(path);
+
+            CompactTrie rebuilt = CompactTrie.open(path);
+            Path old = dictionaryPath;
+
+            dictionary = rebuilt;
+            dictionaryPath = path;
+
+            // Anything still reading the old map keeps working, the space is freed once it's unmapped
+            if (old != null)
+                Files.deleteIfExists(old);
+        } catch (Exception ex) {
+            System.out.println("Failed to rebuild scan key dictionary.");
+            ex.printStackTrace();
+
+            try {
+                if (path != null)
+                    Files.deleteIfExists(path);
+            } catch (IOException deleteEx) {
+                deleteEx.printStackTrace();
+            }
+        }
+    }
+
+    private static void write(Path path) throws IOException {
+        try (CompactTrie.Writer writer = new CompactTrie.Writer(path)) {
+            Database.openConnection((Connection con) -> {
+                // Needed for the driver to use a cursor instead of pulling every row at once
+                con.setAutoCommit(false);
+
+                // Sorted in byte order since that's what the trie needs
+                PreparedStatement statement = con.prepareStatement(String.format("""
+                    SELECT s.normalized_text, mode() WITHIN GROUP (ORDER BY t.name), t.unit,
+                        mode() WITHIN GROUP (ORDER BY t.category), COUNT(DISTINCT s.owner) AS households
+                    FROM %s s
+                    INNER JOIN %s t
+                    ON t.id = s.template_id
+                    GROUP BY s.normalized_text, lower(t.name), t.unit
+                    HAVING COUNT(DISTINCT s.owner) >= ?
+                    ORDER BY s.normalized_text COLLATE "C", households DESC;
+                """, SCAN_ITEMS_TABLE, FOOD_ITEM_TEMPLATES_TABLE));
+                statement.setFetchSize(FETCH_SIZE);
+                statement.setInt(1, MIN_HOUSEHOLDS);
+
+                ResultSet result = statement.executeQuery();
+
+                try {
+                    String key = null;
+                    List<Suggestion> suggestions = new ArrayList<>();
+                    while (result.next()) {
+                        String rowKey = result.getString(1);
+
+                        if (!rowKey.equals(key)) {
+                            if (key != null)
+                                writer.add(key, encode(suggestions));
+
+                            key = rowKey;
+                            suggestions.clear();
+                        }
+
+                        if (suggestions.size() < MAX_SUGGESTIONS)
+                            suggestions.add(new Suggestion(result.getString(2), result.getString(3), result.getString(4), result.getInt(5)));
+                    }
+
+                    if (key != null)
+                        writer.add(key, encode(suggestions));
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+
+                con.commit();
+
+                return null;
+            })
+            .throwIfError()
+            .ignoreResponse();
+        }
+    }
+
+    // count, then {name, unit, category, households} per suggestion
+    private static byte[] encode(List<Suggestion> suggestions) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeByte(suggestions.size());
+        for (Suggestion suggestion : suggestions) {
+            writeString(out, suggestion.name);
+            writeString(out, suggestion.unit);
+            writeString(out, suggestion.category);
+            out.writeInt(suggestion.households);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static List<Suggestion> decode(ByteBuffer value) {
+        int count = value.get();
+
+        List<Suggestion> suggestions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            suggestions.add(new Suggestion(readString(value), readString(value), readString(value), value.getInt()));
+
+        return suggestions;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = (string == null ? "" : string).getBytes(StandardCharsets.UTF_8);
+
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer value) {
+        int length = value.getShort() & 0xFFFF;
+        String string = StandardCharsets.UTF_8.decode(value.slice(value.position(), length)).toString();
+        value.position(value.position() + length);
+
+        return string;
+    }
+}
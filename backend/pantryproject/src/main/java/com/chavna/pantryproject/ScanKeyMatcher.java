@@ -0,0 +1,294 @@
+package com.chavna.pantryproject;
+
+import static com.chavna.pantryproject.Database.SCAN_ITEMS_TABLE;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import lombok.AllArgsConstructor;
+
+/***
+ * Approximate scan key matching for OCR noise ("B4NANAS" vs "BANANAS").
+ * Each household gets a deletion index over its normalized scan keys. It's built from the database the first time it's needed,
+ * kept up to date by set-scan-key(s) and dropped after sitting idle.
+ */
+public class ScanKeyMatcher {
+    private static final Duration IDLE_TIMEOUT = Duration.ofMinutes(15);
+    private static final int MAX_DISTANCE = 2;
+    private static final int PREFIX_LENGTH = 7;
+
+    @AllArgsConstructor
+    public static class Candidate {
+        public UUID templateId;
+        public String scanText;
+        public int distance;
+    }
+
+    //                    //
+    //  DELETION INDEX    //
+    //                    //
+
+    private static class Entry {
+        final String key; // normalized
+        final String compact; // normalized without spaces, which is what gets compared
+        String scanText;
+        UUID templateId; // null once the key has been removed
+        int lastQuery; // stops an entry from being checked twice for the same query
+
+        Entry(String key, String scanText, UUID templateId) {
+            this.key = key;
+            this.compact = key.replace(" ", "");
+            this.scanText = scanText;
+            this.templateId = templateId;
+        }
+    }
+
+    // SymSpell style: every key is stored under all the ways of deleting up to MAX_DISTANCE characters from it.
+    // A query generates its own deletions and only the keys sharing one of them get a real distance check.
+    // Only the start of each key is used so long keys don't blow up the number of deletions.
+    static class DeletionIndex {
+        final HashMap<String, Entry> entries = new HashMap<>();
+        final HashMap<String, ArrayList<Entry>> deletions = new HashMap<>();
+        int queryCount;
+
+        void put(String key, String scanText, UUID templateId) {
+            Entry existing = entries.get(key);
+            if (existing != null) {
+                // Removed keys stay in the index, so they can just be brought back
+                existing.scanText = scanText;
+                existing.templateId = templateId;
+                return;
+            }
+
+            Entry entry = new Entry(key, scanText, templateId);
+            entries.put(key, entry);
+
+            for (String deletion : deletionsOf(entry.compact))
+                deletions.computeIfAbsent(deletion, (String d) -> new ArrayList<>(1)).add(entry);
+        }
+
+        void remove(String key) {
+            Entry entry = entries.get(key);
+            if (entry != null)
+                entry.templateId = null;
+        }
+
+        void search(String compact, int maxDistance, List<Candidate> out) {
+            if (compact.isEmpty())
+                return;
+
+            int query = ++queryCount;
+            for (String deletion : deletionsOf(compact)) {
+                ArrayList<Entry> matches = deletions.get(deletion);
+                if (matches == null)
+                    continue;
+
+                for (Entry entry : matches) {
+                    if (entry.lastQuery == query || entry.templateId == null)
+                        continue;
+
+                    entry.lastQuery = query;
+
+                    int distance = distance(entry.compact, compact, maxDistance);
+                    if (distance <= maxDistance)
+                        out.add(new Candidate(entry.templateId, entry.scanText, distance));
+                }
+            }
+        }
+    }
+
+    private static HashSet<String> deletionsOf(String compact) {
+        String prefix = compact.length() > PREFIX_LENGTH ? compact.substring(0, PREFIX_LENGTH) : compact;
+
+        HashSet<String> deletions = new HashSet<>();
+        deletions.add(prefix);
+        addDeletions(prefix, MAX_DISTANCE, deletions);
+
+        return deletions;
+    }
+
+    private static void addDeletions(String word, int remaining, HashSet<String> deletions) {
+        if (remaining == 0 || word.length() <= 1)
+            return;
+
+        for (int i = 0; i < word.length(); i++) {
+            String deletion = word.substring(0, i) + word.substring(i + 1);
+
+            if (deletions.add(deletion))
+                addDeletions(deletion, remaining - 1, deletions);
+        }
+    }
+
+    /***
+     * Levenshtein distance. Gives up and returns bound + 1 once the distance is known to be over bound.
+     */
+    static int distance(String a, String b, int bound) {
+        if (Math.abs(a.length() - b.length()) > bound)
+            return bound + 1;
+
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++)
+            previous[j] = j;
+
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            char ca = a.charAt(i - 1);
+
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = ca == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+
+            if (rowMin > bound)
+                return bound + 1;
+
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        return previous[b.length()];
+    }
+
+    /***
+     * How far off a key is allowed to be. Short keys get less room since a couple of edits is most of the key.
+     */
+    static int maxDistanceFor(String compact) {
+        return compact.length() >= 10 ? MAX_DISTANCE : 1;
+    }
+
+    //                //
+    //  OWNER INDEXES //
+    //                //
+
+    private static class OwnerIndex {
+        DeletionIndex keys; // null until loaded
+        volatile long lastUsed = System.nanoTime();
+    }
+
+    private static final ConcurrentHashMap<UUID, OwnerIndex> indexes = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor((Runnable runnable) -> {
+        Thread thread = new Thread(runnable, "scan-key-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        evictor.scheduleWithFixedDelay(ScanKeyMatcher::evictIdle, 1, 1, TimeUnit.MINUTES);
+    }
+
+    private static void evictIdle() {
+        long cutoff = System.nanoTime() - IDLE_TIMEOUT.toNanos();
+        indexes.values().removeIf((OwnerIndex index) -> index.lastUsed - cutoff < 0);
+    }
+
+    private static DeletionIndex load(UUID owner) {
+        DeletionIndex keys = new DeletionIndex();
+
+        Database.openConnection((Connection con) -> {
+            PreparedStatement statement = con.prepareStatement(String.format("""
+                SELECT normalized_text, scan_text, template_id FROM %s
+                WHERE owner = ?;
+            """, SCAN_ITEMS_TABLE));
+
+            statement.setObject(1, owner);
+
+            ResultSet result = statement.executeQuery();
+
+            while (result.next())
+                keys.put(result.getString(1), result.getString(2), (UUID) result.getObject(3));
+
+            return null;
+        })
+        .throwIfError()
+        .ignoreResponse();
+
+        return keys;
+    }
+
+    /***
+     * Finds the closest scan keys for each key.
+     * @param keys - Raw receipt text. Normalized before matching.
+     * @param limit - Max candidates per key.
+     * @return Candidates for each key that had any, closest first.
+     */
+    public static Map<String, List<Candidate>> match(UUID owner, Collection<String> keys, int limit) {
+        OwnerIndex index = indexes.computeIfAbsent(owner, (UUID id) -> new OwnerIndex());
+        index.lastUsed = System.nanoTime();
+
+        Map<String, List<Candidate>> matches = new HashMap<>();
+        synchronized (index) {
+            // Loading while holding the lock means updates that come in meanwhile get applied on top of it
+            if (index.keys == null)
+                index.keys = load(owner);
+
+            ArrayList<Candidate> candidates = new ArrayList<>();
+            for (String key : keys) {
+                List<Candidate> keyMatches = matchKey(index.keys, key, limit, candidates);
+                if (keyMatches != null)
+                    matches.put(key, keyMatches);
+            }
+        }
+
+        return matches;
+    }
+
+    /***
+     * Candidates for one raw key, closest first, or null if there aren't any.
+     * @param candidates - Scratch list, reused between keys.
+     */
+    static List<Candidate> matchKey(DeletionIndex keys, String key, int limit, ArrayList<Candidate> candidates) {
+        String compact = ScanKeys.normalize(key).replace(" ", "");
+
+        candidates.clear();
+        keys.search(compact, maxDistanceFor(compact), candidates);
+
+        if (candidates.isEmpty())
+            return null;
+
+        candidates.sort(Comparator.comparingInt((Candidate candidate) -> candidate.distance)
+            .thenComparing((Candidate candidate) -> candidate.scanText));
+
+        return new ArrayList<>(candidates.subList(0, Math.min(limit, candidates.size())));
+    }
+
+    /***
+     * Applies scan key changes that have been written to the database. Does nothing if the owner's index isn't loaded.
+     * @param upserted - normalized key -> {scan text, template id}
+     * @param removed - normalized keys
+     */
+    public static void update(UUID owner, Map<String, Candidate> upserted, Collection<String> removed) {
+        OwnerIndex index = indexes.get(owner);
+        if (index == null)
+            return;
+
+        synchronized (index) {
+            if (index.keys == null)
+                return;
+
+            for (Map.Entry<String, Candidate> entry : upserted.entrySet())
+                index.keys.put(entry.getKey(), entry.getValue().scanText, entry.getValue().templateId);
+
+            for (String key : removed)
+                index.keys.remove(key);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.chavna.pantryproject;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+public class ScanKeys {
+    private static final Pattern LETTER_DIGIT = Pattern.compile("(?<=\\p{Alpha})(?=\\d)|(?<=\\d)(?=\\p{Alpha})");
+    private static final Pattern SEPARATORS = Pattern.compile("[^A-Z0-9.]+");
+    // Dots only mean something inside a number
+    private static final Pattern LOOSE_DOTS = Pattern.compile("(?<!\\d)\\.|\\.(?!\\d)");
+    private static final Pattern SPACES = Pattern.compile(" +");
+
+    // Different receipts spell the same unit differently. Only applied right after a number so "POUND CAKE" stays as is.
+    private static final Map<String, String> UNIT_ALIASES = Map.of(
+        "LBS", "LB",
+        "POUND", "LB",
+        "POUNDS", "LB",
+        "OUNCE", "OZ",
+        "OUNCES", "OZ",
+        "PACK", "PK"
+    );
+
+    /***
+     * Normalizes text read from a receipt so small differences in case, spacing and punctuation
+     * map to the same key, e.g. "chkn brst 2lbs" and "CHKN  BRST 2 LB" both become "CHKN BRST 2 LB".
+     */
+    public static String normalize(String text) {
+        String key = text.toUpperCase(Locale.ROOT);
+        key = LETTER_DIGIT.matcher(key).replaceAll(" ");
+        key = SEPARATORS.matcher(key).replaceAll(" ");
+        key = LOOSE_DOTS.matcher(key).replaceAll(" ");
+        key = SPACES.matcher(key).replaceAll(" ").trim();
+
+        StringBuilder builder = new StringBuilder(key.length());
+        String previous = "";
+        for (String token : key.split(" ")) {
+            if (builder.length() > 0)
+                builder.append(' ');
+
+            if (!previous.isEmpty() && Character.isDigit(previous.charAt(previous.length() - 1)))
+                builder.append(UNIT_ALIASES.getOrDefault(token, token));
+            else
+                builder.append(token);
+
+            previous = token;
+        }
+
+        return builder.toString();
+    }
+}
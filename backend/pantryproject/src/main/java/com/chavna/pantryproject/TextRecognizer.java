@@ -0,0 +1,22 @@
+package com.chavna.pantryproject;
+
+/***
+ * Finds the words in a receipt image. Textract in production, tests use a stand-in that reads saved responses.
+ */
+public interface TextRecognizer {
+    /***
+     * The image can't be decoded or has nothing on it, trying again won't help.
+     */
+    public static class UnreadableImageException extends RuntimeException {
+        public UnreadableImageException(String message) {
+            super(message);
+        }
+    }
+
+    /***
+     * @param image - Encoded image, as uploaded.
+     * @return Words with their polygons, process() hasn't been called yet.
+     * @throws UnreadableImageException If there's no point sending the image anywhere.
+     */
+    ReceiptGeometry recognize(byte[] image);
+}
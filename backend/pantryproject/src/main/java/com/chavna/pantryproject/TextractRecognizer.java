@@ -0,0 +1,54 @@
+package com.chavna.pantryproject;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.textract.TextractClient;
+import software.amazon.awssdk.services.textract.model.BadDocumentException;
+import software.amazon.awssdk.services.textract.model.Block;
+import software.amazon.awssdk.services.textract.model.BlockType;
+import software.amazon.awssdk.services.textract.model.DetectDocumentTextRequest;
+import software.amazon.awssdk.services.textract.model.DetectDocumentTextResponse;
+import software.amazon.awssdk.services.textract.model.Document;
+import software.amazon.awssdk.services.textract.model.UnsupportedDocumentException;
+
+public class TextractRecognizer implements TextRecognizer {
+    private final TextractClient textractClient = TextractClient.builder()
+        .region(Region.US_EAST_1)
+        .build();
+
+    @Override
+    public ReceiptGeometry recognize(byte[] image) {
+        Document document = Document.builder().bytes(SdkBytes.fromByteArray(image)).build();
+
+        DetectDocumentTextRequest detectRequest = DetectDocumentTextRequest.builder()
+                .document(document)
+                .build();
+        DetectDocumentTextResponse detectResponse;
+        try {
+            detectResponse = textractClient.detectDocumentText(detectRequest);
+        } catch (UnsupportedDocumentException | BadDocumentException ex) {
+            throw new UnreadableImageException("Textract could not read the image.");
+        }
+
+        return toGeometry(detectResponse);
+    }
+
+    public static ReceiptGeometry toGeometry(DetectDocumentTextResponse detectResponse) {
+        ReceiptGeometry geometry = new ReceiptGeometry(detectResponse.blocks().size());
+
+        for (Block block : detectResponse.blocks()) {
+            if (block.blockType() != BlockType.WORD)
+                continue;
+
+            // Some of this stuff can be null, so i'm not gonna risk it
+            if (block.text() == null || block.geometry() == null || block.geometry().polygon() == null)
+                continue;
+
+            geometry.addWord(block.text());
+            for (var point : block.geometry().polygon())
+                geometry.addPoint(point.x(), point.y());
+        }
+
+        return geometry;
+    }
+}
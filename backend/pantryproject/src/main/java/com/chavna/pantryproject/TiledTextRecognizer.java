@@ -0,0 +1,304 @@
+package com.chavna.pantryproject;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+
+/***
+ * Splits tall images (long pharmacy and warehouse receipts) into overlapping horizontal tiles and recognizes them in
+ * parallel, so a long receipt takes about as long as its slowest tile instead of one huge request.
+ *
+ * Tiles are tileAspect times as tall as the image is wide and overlap by overlapAspect times the width, which has to be
+ * more than a line of text so every word is whole in at least one tile. A word seen by two tiles is kept by the tile
+ * that owns its center: the boundary between two tiles is the middle of their overlap (see merge).
+ *
+ * Images that fit in one tile, or that ImageIO can't read, go to the recognizer as they are.
+ *
+ * Metrics: ocr.tiles (tiles per tiled image)
+ */
+public class TiledTextRecognizer implements TextRecognizer {
+    @AllArgsConstructor
+    private static class ImageInfo {
+        int width;
+        int height;
+        String format;
+    }
+
+    private final TextRecognizer recognizer;
+    private final double tileAspect;
+    private final double overlapAspect;
+
+    private final ThreadPoolExecutor tileWorkers;
+
+    private final DistributionSummary tileCounts = Metrics.summary("ocr.tiles");
+
+    /***
+     * @param threads - Most tiles recognized at once, across all images.
+     * @param maxQueued - Tiles waiting for a thread. Past that, the thread recognizing the image does the tile itself.
+     */
+    @Builder
+    private TiledTextRecognizer(TextRecognizer recognizer, double tileAspect, double overlapAspect, int threads, int maxQueued) {
+        if (recognizer == null)
+            throw new IllegalArgumentException("recognizer is required.");
+
+        if (tileAspect <= 0 || overlapAspect <= 0 || overlapAspect >= tileAspect)
+            throw new IllegalArgumentException("tileAspect and overlapAspect must be > 0, and overlapAspect < tileAspect.");
+
+        if (threads <= 0 || maxQueued <= 0)
+            throw new IllegalArgumentException("threads and maxQueued must be > 0.");
+
+        this.recognizer = recognizer;
+        this.tileAspect = tileAspect;
+        this.overlapAspect = overlapAspect;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.tileWorkers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(maxQueued),
+            (Runnable runnable) -> {
+                Thread thread = new Thread(runnable, "ocr-tile-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @Override
+    public ReceiptGeometry recognize(byte[] image) {
+        ImageInfo info = imageInfo(image);
+        if (info == null)
+            return recognizer.recognize(image);
+
+        int[] tops = tileTops(info.width, info.height);
+        if (tops.length == 1)
+            return recognizer.recognize(image);
+
+        BufferedImage decoded;
+        try {
+            decoded = ImageIO.read(new ByteArrayInputStream(image));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+
+        if (decoded == null)
+            return recognizer.recognize(image);
+
+        int width = decoded.getWidth();
+        int height = decoded.getHeight();
+        int tileHeight = Math.min(tileHeight(width), height);
+
+        tileCounts.record(tops.length);
+
+        // Textract only takes PNG and JPEG, PNGs stay PNGs so nothing gets blurrier
+        String format = info.format.equalsIgnoreCase("png") ? "PNG" : "JPG";
+
+        List<CompletableFuture<ReceiptGeometry>> tiles = new ArrayList<>(tops.length);
+        for (int top : tops) {
+            BufferedImage tile = decoded.getSubimage(0, top, width, tileHeight);
+            tiles.add(CompletableFuture.supplyAsync(() -> recognizer.recognize(encode(tile, format)), tileWorkers));
+        }
+
+        List<ReceiptGeometry> results = new ArrayList<>(tiles.size());
+        try {
+            for (CompletableFuture<ReceiptGeometry> tile : tiles)
+                results.add(tile.join());
+        } catch (CompletionException ex) {
+            for (CompletableFuture<ReceiptGeometry> tile : tiles)
+                tile.cancel(false);
+
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+
+            throw ex;
+        }
+
+        return merge(results, tops, tileHeight, height);
+    }
+
+    int tileHeight(int width) {
+        return Math.max((int) Math.round(width * tileAspect), 1);
+    }
+
+    /***
+     * Top edge of each tile in pixels. Tiles are evenly spaced and the last one ends at the bottom of the image.
+     */
+    int[] tileTops(int width, int height) {
+        int tileHeight = tileHeight(width);
+        if (height <= tileHeight)
+            return new int[] {0};
+
+        int overlap = Math.max((int) Math.round(width * overlapAspect), 1);
+        int step = tileHeight - overlap;
+        int count = (int) Math.ceil((double) (height - overlap) / step);
+
+        int[] tops = new int[count];
+        for (int i = 0; i < count; i++)
+            tops[i] = Math.min(i * step, height - tileHeight);
+
+        return tops;
+    }
+
+    /***
+     * Puts the words of each tile back into the coordinates of the whole image, each word once.
+     *
+     * Two tiles don't see a word in exactly the same place, so a word right on the boundary could end up in both or
+     * neither. Each tile keeps words a bit past its boundary, and a word near the boundary with the same text as one
+     * the tile above kept there, overlapping it, is the same word.
+     * @param tiles - What the recognizer found in each tile, coordinates are fractions of the tile like Textract's.
+     */
+    static ReceiptGeometry merge(List<ReceiptGeometry> tiles, int[] tops, int tileHeight, int imageHeight) {
+        int words = 0;
+        for (ReceiptGeometry tile : tiles)
+            words += tile.getWordCount();
+
+        ReceiptGeometry merged = new ReceiptGeometry(words);
+
+        // Words the tile above kept near its lower boundary, box is {minX, minY, maxX, maxY} with y in image pixels
+        List<String> seamTexts = new ArrayList<>();
+        List<float[]> seamBoxes = new ArrayList<>();
+        List<String> nextSeamTexts = new ArrayList<>();
+        List<float[]> nextSeamBoxes = new ArrayList<>();
+
+        for (int t = 0; t < tiles.size(); t++) {
+            ReceiptGeometry tile = tiles.get(t);
+            int top = tops[t];
+
+            // This tile owns centers from the middle of its overlap with the tile above to the middle of its overlap with
+            // the one below, give or take a quarter of the overlap
+            double ownedFrom = Double.NEGATIVE_INFINITY;
+            double slackAbove = 0;
+            if (t > 0) {
+                ownedFrom = (top + tops[t - 1] + tileHeight) / 2.0;
+                slackAbove = (tops[t - 1] + tileHeight - top) / 4.0;
+            }
+
+            double ownedTo = Double.POSITIVE_INFINITY;
+            double slackBelow = 0;
+            if (t < tiles.size() - 1) {
+                ownedTo = (tops[t + 1] + top + tileHeight) / 2.0;
+                slackBelow = (top + tileHeight - tops[t + 1]) / 4.0;
+            }
+
+            for (int w = 0; w < tile.getWordCount(); w++) {
+                int start = tile.pointStart(w);
+                int end = tile.pointStart(w + 1);
+                if (start == end)
+                    continue;
+
+                float[] box = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+                double centerY = 0;
+                for (int p = start; p < end; p++) {
+                    float x = tile.pointX(p);
+                    float y = top + tile.pointY(p) * tileHeight;
+
+                    box[0] = Math.min(box[0], x);
+                    box[1] = Math.min(box[1], y);
+                    box[2] = Math.max(box[2], x);
+                    box[3] = Math.max(box[3], y);
+                    centerY += y;
+                }
+                centerY /= end - start;
+
+                if (centerY < ownedFrom - slackAbove || centerY >= ownedTo + slackBelow)
+                    continue;
+
+                if (centerY < ownedFrom + slackAbove && isOnSeam(tile.text(w), box, seamTexts, seamBoxes))
+                    continue;
+
+                if (centerY >= ownedTo - slackBelow) {
+                    nextSeamTexts.add(tile.text(w));
+                    nextSeamBoxes.add(box);
+                }
+
+                merged.addWord(tile.text(w));
+                for (int p = start; p < end; p++)
+                    merged.addPoint(tile.pointX(p), (top + tile.pointY(p) * tileHeight) / imageHeight);
+            }
+
+            List<String> texts = seamTexts;
+            seamTexts = nextSeamTexts;
+            nextSeamTexts = texts;
+            nextSeamTexts.clear();
+
+            List<float[]> boxes = seamBoxes;
+            seamBoxes = nextSeamBoxes;
+            nextSeamBoxes = boxes;
+            nextSeamBoxes.clear();
+        }
+
+        return merged;
+    }
+
+    private static boolean isOnSeam(String text, float[] box, List<String> seamTexts, List<float[]> seamBoxes) {
+        for (int i = 0; i < seamTexts.size(); i++) {
+            float[] other = seamBoxes.get(i);
+            if (seamTexts.get(i).equals(text) && box[0] < other[2] && other[0] < box[2] && box[1] < other[3] && other[1] < box[3])
+                return true;
+        }
+
+        return false;
+    }
+
+    /***
+     * Size and format from the image header, without decoding it. Null if ImageIO can't read it.
+     */
+    private static ImageInfo imageInfo(byte[] image) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(image))) {
+            if (in == null)
+                return null;
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext())
+                return null;
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new ImageInfo(reader.getWidth(0), reader.getHeight(0), reader.getFormatName());
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private static byte[] encode(BufferedImage tile, String format) {
+        // The JPEG writer can't do transparency
+        BufferedImage rgb = tile;
+        if (format.equals("JPG") && tile.getType() != BufferedImage.TYPE_INT_RGB && tile.getType() != BufferedImage.TYPE_3BYTE_BGR && tile.getType() != BufferedImage.TYPE_BYTE_GRAY) {
+            rgb = new BufferedImage(tile.getWidth(), tile.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = rgb.createGraphics();
+            graphics.drawImage(tile, 0, 0, null);
+            graphics.dispose();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(rgb, format, bytes);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+
+        return bytes.toByteArray();
+    }
+}
@@ -1,32 +1,87 @@
 package com.chavna.pantryproject;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.time.Duration;
 import java.util.Base64;
 import java.util.UUID;
 
-import javax.imageio.ImageIO;
-
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.chavna.pantryproject.MealController.MealPictureUpload;
+import com.chavna.pantryproject.S3.AbstractS3Upload;
 import com.chavna.pantryproject.S3.S3Upload;
 import com.chavna.pantryproject.Uploader.Upload;
 
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.validation.Valid;
 import jakarta.validation.constraints.NotNull;
+import lombok.AllArgsConstructor;
 
 @RestController
 public class UploadController {
+    /***
+     * Writes what an upload is for into the uploads table, so whichever server finishes it knows what to do with it.
+     */
+    private static final Uploader.MetadataCodec METADATA_CODEC = new Uploader.MetadataCodec() {
+        @Override
+        public String encode(Object metadata) {
+            if (metadata == null)
+                return null;
+
+            // Receipts, see OcrController
+            if (metadata instanceof UUID)
+                return "user:" + metadata;
+
+            if (metadata instanceof MealPictureUpload)
+                return "meal-picture:" + ((MealPictureUpload) metadata).getMealId();
+
+            if (metadata instanceof S3Upload)
+                return "s3:" + ((S3Upload) metadata).getKey();
+
+            throw new IllegalArgumentException("Can't store upload metadata " + metadata.getClass().getName());
+        }
+
+        @Override
+        public Object decode(String encoded) {
+            if (encoded == null)
+                return null;
+
+            String type = encoded.substring(0, encoded.indexOf(':'));
+            String value = encoded.substring(encoded.indexOf(':') + 1);
+
+            switch (type) {
+                case "user":
+                    return UUID.fromString(value);
+                case "meal-picture":
+                    return new MealPictureUpload(UUID.fromString(value));
+                case "s3":
+                    return new S3Upload(value);
+                default:
+                    throw new IllegalArgumentException("Unknown upload metadata " + encoded);
+            }
+        }
+    };
+
     public static final Uploader uploader = Uploader.builder()
-        .cleanupInterval(Duration.ofSeconds(30))
-        .maxLifetime(Duration.ofMinutes(1))
+        .idleTimeout(Duration.ofMinutes(1))
+        .maxLifetime(Duration.ofMinutes(30))
+        .shared(true)
+        .metadataCodec(METADATA_CODEC)
+        // Finished uploads are put together in direct buffers, which come out of the same amount of memory as the heap
+        .maxBytes(Runtime.getRuntime().maxMemory() / 4)
+        .maxBytesPerUser(64 * 1024 * 1024)
+        .maxReceivingBytes(32 * 1024 * 1024)
         .build();
     
     public static final int UPLOAD_CHUNK_SIZE = 50 * 1024;
+    // Largest file the upload endpoint takes in one request
+    public static final int MAX_SINGLE_REQUEST_SIZE = 8 * 1024 * 1024;
 
     public static class UploadChunkRequest {
         @NotNull
@@ -34,6 +89,8 @@ public class UploadController {
         public int index;
         @NotNull
         public String base64Data;
+        // Of the decoded chunk, optional
+        public Long crc32c;
     }
 
     @PostMapping("/upload-chunk")
@@ -57,30 +114,136 @@ public class UploadController {
             return Response.Fail("Invalid base64 string.");
         }
 
-        upload.uploadChunk(requestBody.index, decodedBytes);
+        if (requestBody.index < 0 || requestBody.index >= upload.getChunkCount())
+            return Response.Fail("Invalid chunk index.");
 
-        if (upload.isComplete()) {
-            System.out.println("Upload " + requestBody.uploadId.toString() + " complete.");
-            if (upload.getMetadata() instanceof S3Upload) {
-                S3Upload s3Upload = (S3Upload) upload.getMetadata();
-
-                byte[] bytes = upload.finish();
-                ByteArrayInputStream byteStream = new ByteArrayInputStream(bytes);
+        // Only the request with the last chunk handles the finished upload, chunks come in in parallel
+        try {
+            if (upload.uploadChunk(requestBody.index, decodedBytes, requestBody.crc32c))
+                return complete(upload);
+        } catch (IllegalArgumentException | IllegalStateException ex) {
+            return Response.Fail(ex.getMessage());
+        }
 
-                BufferedImage image = null;
-                try {
-                    image = ImageIO.read(byteStream);
-                } catch (IOException ex) {}
+        return Response.Success("Chunk uploaded successfully.");
+    }
 
-                if (image == null)
-                    return Response.Fail("Could not decode image.");
+    /***
+     * The chunk is the raw request body, streamed straight into the upload without decoding or buffering it. The
+     * optional Chunk-CRC32C header holds the chunk's CRC32C as an unsigned decimal number.
+     */
+    @PostMapping(value = "/upload-chunk/{uploadId}/{index}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public Response uploadBinaryChunk(@PathVariable UUID uploadId, @PathVariable int index,
+                                      @RequestHeader(value = "Chunk-CRC32C", required = false) String crc32cHeader,
+                                      HttpServletRequest request) throws IOException {
+        Upload upload = uploader.getUpload(uploadId);
+        if (upload == null)
+            return Response.Fail("Invalid uploadId.");
 
-                S3.uploadImage(image, s3Upload.getKey());
+        Long crc32c = null;
+        if (crc32cHeader != null) {
+            try {
+                crc32c = Long.parseLong(crc32cHeader.trim());
+            } catch (NumberFormatException ex) {
+                return Response.Fail("Invalid checksum.");
             }
+        }
+
+        if (index < 0 || index >= upload.getChunkCount())
+            return Response.Fail("Invalid chunk index.");
 
-            return Response.Success("Upload complete.");
+        // Turned away before anything is read when the client says up front that it's the wrong size
+        long contentLength = request.getContentLengthLong();
+        if (contentLength != -1 && contentLength != upload.getChunkLength(index))
+            return Response.Fail("Incorrect chunk size. Expected: " + upload.getChunkLength(index) + " Given: " + contentLength);
+
+        try {
+            if (upload.uploadChunk(index, request.getInputStream(), crc32c))
+                return complete(upload);
+        } catch (IllegalArgumentException | IllegalStateException ex) {
+            return Response.Fail(ex.getMessage());
         }
 
         return Response.Success("Chunk uploaded successfully.");
     }
+
+    /***
+     * The whole file in one request, as the raw request body. For files up to MAX_SINGLE_REQUEST_SIZE, bigger ones are
+     * quicker sent as chunks in parallel.
+     */
+    @PostMapping(value = "/upload/{uploadId}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public Response uploadFile(@PathVariable UUID uploadId, HttpServletRequest request) throws IOException {
+        Upload upload = uploader.getUpload(uploadId);
+        if (upload == null)
+            return Response.Fail("Invalid uploadId.");
+
+        if (upload.getTotalSize() > MAX_SINGLE_REQUEST_SIZE)
+            return Response.Fail("File is too large for a single request, upload it in chunks.");
+
+        long contentLength = request.getContentLengthLong();
+        if (contentLength != -1 && contentLength != upload.getTotalSize())
+            return Response.Fail("Incorrect file size. Expected: " + upload.getTotalSize() + " Given: " + contentLength);
+
+        try {
+            if (upload.uploadAll(request.getInputStream()))
+                return complete(upload);
+        } catch (IllegalArgumentException | IllegalStateException ex) {
+            return Response.Fail(ex.getMessage());
+        }
+
+        return Response.Success("Upload complete.");
+    }
+
+    @AllArgsConstructor
+    public static class UploadStatusResponse {
+        public int chunkCount;
+        public int chunkSize;
+        public int[] missingChunks;
+    }
+
+    /***
+     * Which chunks still have to be sent, for picking an upload back up after losing track of it.
+     */
+    @GetMapping("/upload-status/{uploadId}")
+    public Response uploadStatus(@PathVariable UUID uploadId) {
+        Upload upload = uploader.getUpload(uploadId);
+        if (upload == null)
+            return Response.Fail("Invalid uploadId.");
+
+        try {
+            return Response.Success(new UploadStatusResponse(upload.getChunkCount(), upload.getChunkSize(), upload.getMissingChunks()));
+        } catch (IllegalStateException ex) {
+            return Response.Fail("Invalid uploadId.");
+        }
+    }
+
+    /***
+     * Tells the client to back off, see Uploader.RejectedException. Chunks are turned away for a moment, whole uploads
+     * for about as long as others take to finish.
+     */
+    public static Response rejected(Uploader.RejectedException ex) {
+        switch (ex.getReason()) {
+            case USER_BUDGET_FULL:
+                return Response.RetryLater("Too many uploads in progress.", Duration.ofSeconds(10));
+            case BUDGET_FULL:
+                return Response.RetryLater("Server is busy, try again later.", Duration.ofSeconds(10));
+            default:
+                return Response.RetryLater("Server is busy, try again later.", Duration.ofSeconds(1));
+        }
+    }
+
+    private static Response complete(Upload upload) {
+        System.out.println("Upload " + upload.getUploadId().toString() + " complete.");
+        if (upload.getMetadata() instanceof AbstractS3Upload) {
+            AbstractS3Upload s3Upload = (AbstractS3Upload) upload.getMetadata();
+
+            // Only decoded if these bytes haven't been stored before
+            if (!S3.uploadImage(upload.finish(), s3Upload.getKey()))
+                return Response.Fail("Could not decode image.");
+
+            s3Upload.uploadPostProcess();
+        }
+
+        return Response.Success("Upload complete.");
+    }
 }
@@ -1,34 +1,118 @@
 package com.chavna.pantryproject;
 
+import static com.chavna.pantryproject.Database.UPLOADS_TABLE;
+import static com.chavna.pantryproject.Database.UPLOAD_CHUNKS_TABLE;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.time.Duration;
-import java.time.Instant;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tag;
 import lombok.Builder;
 import lombok.Getter;
-import lombok.Setter;
 import lombok.Builder.Default;
 
+/***
+ * Collects files sent in chunks, which clients send in parallel.
+ *
+ * Each upload writes its chunks straight to their place in a ChunkStore of the full size (off the heap, see
+ * chunkStores), and keeps which chunks it has in a bitset of AtomicLongs, so chunks can arrive on any number of threads
+ * at once without locking and finish() doesn't copy.
+ *
+ * An upload is thrown away once no chunk has come in for idleTimeout, or once it's been going for maxLifetime. Complete
+ * uploads are only held to maxLifetime, whoever finishes them (a scan waiting in the OCR queue) can take a while. Each
+ * upload has one entry in a DelayQueue for its deadline. Chunks only note the time, the cleanup thread wakes when the
+ * earliest entry is due and puts it back further on if chunks came in since, so it only ever looks at uploads that are
+ * due and never at the whole map.
+ *
+ * If shared, uploads live in the uploads and upload_chunks tables instead, so any server can take chunks for any
+ * upload, finish it, or say which chunks are missing, and uploads survive restarts. Each chunk is a row, claimed and
+ * counted in one transaction, and finish() puts them together into a ChunkStore. Metadata is written with
+ * metadataCodec. Expired rows are deleted every minute.
+ *
+ * Uploads have to fit in a budget. Starting an upload reserves its full size against maxBytes and its owner's
+ * maxBytesPerUser until it's finished or expires, and at most maxReceivingBytes of chunks are read at once. Anything
+ * past that is turned away with a RejectedException, so a burst of big uploads waits instead of filling memory. Shared
+ * uploads count everything in the uploads table, on every server, against the same budgets, and are started one at a
+ * time under an advisory lock so uploads started together on different servers can't all fit.
+ *
+ * Chunks can come with a CRC32C, checked before the chunk counts. One that doesn't match is given back straight away
+ * like a chunk that was cut short, so the client can send it again instead of finding out when the file won't decode.
+ *
+ * Metrics (Metrics.globalRegistry):
+ * - uploads.expired, uploads.rejected{reason}, uploads.chunks.corrupt
+ * - uploads.active (gauge)
+ * - uploads.bytes{state = reserved | filled | receiving} (gauges)
+ * Shared uploads' active, reserved and filled are read from the uploads table every SHARED_STATS_INTERVAL, filled to
+ * within a chunk per upload. receiving is always this server's.
+ */
 @Builder
 public class Uploader implements Runnable {
-    public class Upload {
+    /***
+     * Turns upload metadata into text and back, for shared uploads.
+     */
+    public interface MetadataCodec {
+        String encode(Object metadata);
+
+        Object decode(String encoded);
+    }
+
+    public enum RejectReason {
+        BUDGET_FULL,
+        USER_BUDGET_FULL,
+        TOO_MANY_CHUNKS
+    }
+
+    public static class RejectedException extends RuntimeException {
         @Getter
-        private UUID uploadId;
+        private final RejectReason reason;
+
+        public RejectedException(RejectReason reason) {
+            super(reason.toString());
+            this.reason = reason;
+        }
+    }
+
+    public abstract class Upload {
         @Getter
-        private int chunkSize;
+        protected UUID uploadId;
         @Getter
-        private int chunkCount;
+        protected UUID owner; // whose budget it counts against, if anyone's
         @Getter
-        private int totalSize;
+        protected int chunkSize;
         @Getter
-        private Object metadata;
-        private Instant created;
-
-        private HashMap<Integer, byte[]> chunks;
+        protected int chunkCount;
+        @Getter
+        protected int totalSize;
+        @Getter
+        protected Object metadata;
 
-        private Upload(UUID uploadId, int chunkSize, int totalSize, Object metadata) {
+        private Upload(UUID uploadId, int chunkSize, int totalSize, UUID owner, Object metadata) {
             this.uploadId = uploadId;
+            this.owner = owner;
             this.chunkSize = chunkSize;
             this.totalSize = totalSize;
 
@@ -39,110 +123,944 @@ public class Uploader implements Runnable {
                 chunkCount++;
 
             this.metadata = metadata;
+        }
+
+        /***
+         * The size chunk index has to be, only the last one can be short.
+         */
+        public int getChunkLength(int index) {
+            int overflow = totalSize % chunkSize;
+
+            if (overflow > 0 && index == chunkCount - 1)
+                return overflow;
+
+            return chunkSize;
+        }
+
+        /***
+         * Safe to call from many threads at once, each chunk is accepted once.
+         * @return True for the call that completed the upload.
+         */
+        public abstract boolean uploadChunk(int index, byte[] chunk);
+
+        /***
+         * Only accepts the chunk if its CRC32C matches, null to skip the check.
+         * @throws IllegalArgumentException If it doesn't match, the chunk can be sent again.
+         */
+        public boolean uploadChunk(int index, byte[] chunk, Long crc32c) {
+            checkChunk(index, chunk.length);
 
-            this.chunks = new HashMap<>();
+            if (crc32c != null)
+                checkCrc32c(crc32c(chunk), crc32c);
 
-            created = Instant.now();
+            return uploadChunk(index, chunk);
         }
 
-        public void uploadChunk(int index, byte[] chunk) {
-            if (chunks == null)
-                throw new IllegalStateException("Upload has already been finished.");
+        /***
+         * Reads chunk index from the stream into the upload, the stream has to end right after it. If the stream is cut
+         * short the chunk is given back so it can be sent again.
+         * @return True for the call that completed the upload.
+         */
+        public boolean uploadChunk(int index, InputStream in) throws IOException {
+            return uploadChunk(index, in, null);
+        }
+
+        /***
+         * Same, and the chunk is given back as well if its CRC32C doesn't match. Null to skip the check.
+         */
+        public abstract boolean uploadChunk(int index, InputStream in, Long crc32c) throws IOException;
+
+        /***
+         * Reads the whole file from the stream, chunk after chunk, for files small enough to send in one request. Chunks
+         * that are already in the upload, from an earlier try that was cut off, are read past, so sending the file
+         * again picks up where that one stopped.
+         * @return True if the upload is complete after this, also when an earlier try already got every chunk in, so
+         * the caller finishes it either way.
+         */
+        public abstract boolean uploadAll(InputStream in) throws IOException;
 
+        public abstract boolean isComplete();
+
+        /***
+         * Indices of the chunks that haven't been received yet, in order, so a client can resume.
+         */
+        public abstract int[] getMissingChunks();
+
+        /***
+         * Hands over the file and forgets the upload. Only one caller gets it.
+         * @return The file, read-only and not on the heap. See ChunkStore.inputStream and ChunkStore.toBytes.
+         */
+        public abstract ByteBuffer finish();
+
+        protected void checkChunk(int index, int length) {
             if (index < 0 || index >= chunkCount)
                 throw new IndexOutOfBoundsException();
 
-            int expectedSize = chunkSize;
-            int overflow = totalSize % chunkSize;
+            int expectedSize = getChunkLength(index);
+            if (length != expectedSize)
+                throw new IllegalArgumentException("Incorrect chunk size. Expected: " + expectedSize + " Given: " + length);
+        }
 
-            if (overflow > 0 && index == chunkCount - 1)
-                expectedSize = overflow;
+        // For chunks uploadAll already has
+        protected void skipChunk(InputStream in, int index, boolean last) throws IOException {
+            int expectedSize = getChunkLength(index);
+
+            try {
+                in.skipNBytes(expectedSize);
+            } catch (EOFException ex) {
+                throw new IllegalArgumentException("Chunk ended early. Expected: " + expectedSize + " bytes.");
+            }
 
-            if (chunk.length != expectedSize)
-                throw new IllegalArgumentException("Incorrect chunk size. Expected: " + expectedSize + " Given: " + chunk.length);
+            if (last && in.read() != -1)
+                throw new IllegalArgumentException("Chunk is too long. Expected: " + expectedSize + " bytes.");
+        }
 
-            if (chunks.containsKey(index))
-                throw new IllegalArgumentException("Chunk with that index has already been uploaded.");
+        protected void checkCrc32c(long actual, long expected) {
+            if (actual != expected) {
+                corruptCounter.increment();
+                throw new IllegalArgumentException("Chunk checksum doesn't match.");
+            }
+        }
+    }
 
-            chunks.put(index, chunk);
+    private class LocalUpload extends Upload {
+        private final long created = System.nanoTime();
+        private volatile long lastActivity = created;
+        private volatile Expiry expiry; // its current entry in expiries, older ones are skipped
+
+        private final ChunkStore store;
+        private final AtomicLongArray receivedChunks; // bit i is set once chunk i has been claimed
+        private final AtomicInteger receivedCount = new AtomicInteger(); // chunks that are fully written
+        private final AtomicLong filled = new AtomicLong(); // bytes in those chunks
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        private LocalUpload(UUID uploadId, int chunkSize, int totalSize, UUID owner, Object metadata) {
+            super(uploadId, chunkSize, totalSize, owner, metadata);
+
+            this.store = chunkStores.create(totalSize);
+            this.receivedChunks = new AtomicLongArray((chunkCount + 63) / 64);
         }
 
-        public boolean isComplete() {
-            if (chunks == null)
-                throw new IllegalStateException("Upload has already been finished.");
+        @Override
+        public boolean uploadChunk(int index, byte[] chunk) {
+            checkFinished();
+            checkChunk(index, chunk.length);
+
+            startReceiving(chunk.length);
+            try {
+                claim(index);
+                lastActivity = System.nanoTime();
+
+                // Chunks can't be finished before they're all counted, so the store is still open unless the upload expired
+                store.write(index * chunkSize, chunk);
+
+                return received(chunk.length);
+            } finally {
+                doneReceiving(chunk.length);
+            }
+        }
+
+        // Straight from the stream into the store, the chunk is never held in one piece
+        @Override
+        public boolean uploadChunk(int index, InputStream in, Long crc32c) throws IOException {
+            checkFinished();
+            if (index < 0 || index >= chunkCount)
+                throw new IndexOutOfBoundsException();
+
+            return receive(index, in, true, crc32c);
+        }
+
+        @Override
+        public boolean uploadAll(InputStream in) throws IOException {
+            checkFinished();
+
+            boolean completed = false;
+            for (int index = 0; index < chunkCount; index++) {
+                if (isClaimed(index))
+                    skipChunk(in, index, index == chunkCount - 1);
+                else
+                    completed = receive(index, in, index == chunkCount - 1, null);
+            }
+
+            return completed || isComplete();
+        }
 
-            return chunks.size() == chunkCount;
+        private boolean receive(int index, InputStream in, boolean last, Long crc32c) throws IOException {
+            int expectedSize = getChunkLength(index);
+
+            startReceiving(expectedSize);
+            try {
+                claim(index);
+
+                lastActivity = System.nanoTime();
+
+                try {
+                    // Summed on the way through, the bytes are only in the store after this
+                    CheckedInputStream checked = crc32c == null ? null : new CheckedInputStream(in, new CRC32C());
+                    store.write(index * chunkSize, checked == null ? in : checked, expectedSize);
+
+                    if (last && in.read() != -1)
+                        throw new IllegalArgumentException("Chunk is too long. Expected: " + expectedSize + " bytes.");
+
+                    if (checked != null)
+                        checkCrc32c(checked.getChecksum().getValue(), crc32c);
+                } catch (EOFException ex) {
+                    release(index);
+                    throw new IllegalArgumentException("Chunk ended early. Expected: " + expectedSize + " bytes.");
+                } catch (IOException | RuntimeException ex) {
+                    release(index);
+                    throw ex;
+                }
+
+                return received(expectedSize);
+            } finally {
+                doneReceiving(expectedSize);
+            }
         }
 
-        public byte[] finish() {
-            if (chunks == null)
+        private void checkFinished() {
+            if (finished.get())
                 throw new IllegalStateException("Upload has already been finished.");
+        }
+
+        private void claim(int index) {
+            int word = index >>> 6;
+            long bit = 1L << (index & 63);
+            long current;
+            do {
+                current = receivedChunks.get(word);
+                if ((current & bit) != 0)
+                    throw new IllegalArgumentException("Chunk with that index has already been uploaded.");
+            } while (!receivedChunks.compareAndSet(word, current, current | bit));
+        }
+
+        private boolean isClaimed(int index) {
+            return (receivedChunks.get(index >>> 6) & (1L << (index & 63))) != 0;
+        }
+
+        // For chunks that were claimed but never fully written
+        private void release(int index) {
+            int word = index >>> 6;
+            long bit = 1L << (index & 63);
+            long current;
+            do {
+                current = receivedChunks.get(word);
+            } while (!receivedChunks.compareAndSet(word, current, current & ~bit));
+        }
+
+        private boolean received(int length) {
+            // Slow chunks count as activity once they're in, not only when they start
+            lastActivity = System.nanoTime();
+            filled.addAndGet(length);
+
+            // Counted after the copy so whoever sees the upload complete also sees every chunk's bytes
+            return receivedCount.incrementAndGet() == chunkCount;
+        }
+
+        @Override
+        public boolean isComplete() {
+            checkFinished();
+
+            return receivedCount.get() == chunkCount;
+        }
+
+        // Chunks still being written count as received
+        @Override
+        public int[] getMissingChunks() {
+            checkFinished();
+
+            BitSet missing = new BitSet(chunkCount);
+            for (int index = 0; index < chunkCount; index++) {
+                if (!isClaimed(index))
+                    missing.set(index);
+            }
+
+            return missing.stream().toArray();
+        }
+
+        @Override
+        public ByteBuffer finish() {
+            if (receivedCount.get() < chunkCount) {
+                if (finished.get())
+                    throw new IllegalStateException("Upload has already been finished.");
 
-            if (chunks.size() < chunkCount)
                 throw new IllegalStateException("Upload not completed.");
+            }
+
+            if (!finished.compareAndSet(false, true))
+                throw new IllegalStateException("Upload has already been finished.");
+
+            uploads.remove(uploadId, this);
+            unreserve(owner, totalSize);
+            // So the upload isn't kept around until its deadline
+            expiries.remove(expiry);
+
+            return store.finish();
+        }
 
-            byte[] bytes = new byte[totalSize];
+        private long deadline() {
+            long lifetime = created + maxLifetime.toNanos();
+            if (receivedCount.get() == chunkCount)
+                return lifetime;
 
-            for (var entry : chunks.entrySet()) {
-                int index = entry.getKey();
-                byte[] chunk = entry.getValue();
+            return Math.min(lastActivity + idleTimeout.toNanos(), lifetime);
+        }
+
+        /***
+         * @return False if the upload was finished first.
+         */
+        private boolean cancel() {
+            if (!finished.compareAndSet(false, true))
+                return false;
+
+            unreserve(owner, totalSize);
+            store.close();
+
+            return true;
+        }
+    }
+
+    private class SharedUpload extends Upload {
+        private SharedUpload(UUID uploadId, int chunkSize, int totalSize, UUID owner, Object metadata) {
+            super(uploadId, chunkSize, totalSize, owner, metadata);
+        }
 
-                System.arraycopy(chunk, 0, bytes, index * chunkSize, chunk.length);
+        @Override
+        public boolean uploadChunk(int index, byte[] chunk) {
+            checkChunk(index, chunk.length);
+
+            startReceiving(chunk.length);
+            try {
+                return insertChunk(index, chunk);
+            } finally {
+                doneReceiving(chunk.length);
             }
+        }
+
+        private boolean insertChunk(int index, byte[] chunk) {
+            boolean[] completed = {false};
+
+            Database.openConnection((Connection con) -> {
+                try {
+                    con.setAutoCommit(false);
+
+                    PreparedStatement insert = con.prepareStatement(String.format("""
+                        INSERT INTO %s (upload_id, chunk_index, data)
+                        VALUES (?, ?, ?)
+                        ON CONFLICT DO NOTHING;
+                    """, UPLOAD_CHUNKS_TABLE));
+                    insert.setObject(1, uploadId);
+                    insert.setInt(2, index);
+                    insert.setBytes(3, chunk);
+
+                    if (insert.executeUpdate() == 0)
+                        throw new IllegalArgumentException("Chunk with that index has already been uploaded.");
+
+                    // The row lock makes the counts line up, exactly one chunk sees the upload complete
+                    PreparedStatement count = con.prepareStatement(String.format("""
+                        UPDATE %s SET received = received + 1, last_activity = now()
+                        WHERE id = ?
+                        RETURNING received = chunk_count;
+                    """, UPLOADS_TABLE));
+                    count.setObject(1, uploadId);
+
+                    ResultSet result = count.executeQuery();
+                    result.next();
+                    completed[0] = result.getBoolean(1);
 
-            this.chunks = null;
-            uploads.remove(uploadId);
+                    con.commit();
+                } catch (SQLException | RuntimeException ex) {
+                    con.rollback();
+
+                    throw ex;
+                }
+
+                return null;
+            }).onSQLError((SQLException ex) -> {
+                // The upload row is gone
+                if (ex.getSQLState().equals("23503"))
+                    throw new IllegalStateException("Upload has already been finished.");
+
+                return null;
+            })
+            .throwIfError()
+            .ignoreResponse();
+
+            return completed[0];
+        }
+
+        // Chunks go into one row each, so they're read whole (at most chunkSize) rather than streamed
+        @Override
+        public boolean uploadChunk(int index, InputStream in, Long crc32c) throws IOException {
+            if (index < 0 || index >= chunkCount)
+                throw new IndexOutOfBoundsException();
 
-            return bytes;
+            return receive(index, in, true, crc32c);
+        }
+
+        @Override
+        public boolean uploadAll(InputStream in) throws IOException {
+            BitSet missing = new BitSet(chunkCount);
+            for (int index : getMissingChunks())
+                missing.set(index);
+
+            boolean completed = false;
+            for (int index = 0; index < chunkCount; index++) {
+                if (missing.get(index))
+                    completed = receive(index, in, index == chunkCount - 1, null);
+                else
+                    skipChunk(in, index, index == chunkCount - 1);
+            }
+
+            return completed || isComplete();
+        }
+
+        private boolean receive(int index, InputStream in, boolean last, Long crc32c) throws IOException {
+            int expectedSize = getChunkLength(index);
+
+            startReceiving(expectedSize);
+            try {
+                byte[] chunk = in.readNBytes(expectedSize);
+                if (chunk.length < expectedSize)
+                    throw new IllegalArgumentException("Chunk ended early. Expected: " + expectedSize + " bytes.");
+
+                if (last && in.read() != -1)
+                    throw new IllegalArgumentException("Chunk is too long. Expected: " + expectedSize + " bytes.");
+
+                if (crc32c != null)
+                    checkCrc32c(crc32c(chunk), crc32c);
+
+                return insertChunk(index, chunk);
+            } finally {
+                doneReceiving(expectedSize);
+            }
+        }
+
+        @Override
+        public boolean isComplete() {
+            boolean[] complete = {false};
+
+            Database.openConnection((Connection con) -> {
+                PreparedStatement statement = con.prepareStatement(String.format("""
+                    SELECT received = chunk_count FROM %s
+                    WHERE id = ?;
+                """, UPLOADS_TABLE));
+                statement.setObject(1, uploadId);
+
+                ResultSet result = statement.executeQuery();
+                if (!result.next())
+                    throw new IllegalStateException("Upload has already been finished.");
+
+                complete[0] = result.getBoolean(1);
+
+                return null;
+            })
+            .throwIfError()
+            .ignoreResponse();
+
+            return complete[0];
+        }
+
+        @Override
+        public int[] getMissingChunks() {
+            BitSet missing = new BitSet(chunkCount);
+            missing.set(0, chunkCount);
+
+            Database.openConnection((Connection con) -> {
+                PreparedStatement statement = con.prepareStatement(String.format("""
+                    SELECT chunk_index FROM %s
+                    RIGHT JOIN %s ON upload_id = id
+                    WHERE id = ?;
+                """, UPLOAD_CHUNKS_TABLE, UPLOADS_TABLE));
+                statement.setObject(1, uploadId);
+
+                ResultSet result = statement.executeQuery();
+                boolean exists = false;
+                while (result.next()) {
+                    exists = true;
+
+                    int index = result.getInt(1);
+                    if (!result.wasNull())
+                        missing.clear(index);
+                }
+
+                if (!exists)
+                    throw new IllegalStateException("Upload has already been finished.");
+
+                return null;
+            })
+            .throwIfError()
+            .ignoreResponse();
+
+            return missing.stream().toArray();
+        }
+
+        @Override
+        public ByteBuffer finish() {
+            ChunkStore store = chunkStores.create(totalSize);
+
+            try {
+                Database.openConnection((Connection con) -> {
+                    try {
+                        con.setAutoCommit(false);
+
+                        // Locked so only one server finishes it
+                        PreparedStatement lock = con.prepareStatement(String.format("""
+                            SELECT received, chunk_count FROM %s
+                            WHERE id = ?
+                            FOR UPDATE;
+                        """, UPLOADS_TABLE));
+                        lock.setObject(1, uploadId);
+
+                        ResultSet upload = lock.executeQuery();
+                        if (!upload.next())
+                            throw new IllegalStateException("Upload has already been finished.");
+
+                        if (upload.getInt(1) < upload.getInt(2))
+                            throw new IllegalStateException("Upload not completed.");
+
+                        PreparedStatement chunks = con.prepareStatement(String.format("""
+                            SELECT chunk_index, data FROM %s
+                            WHERE upload_id = ?;
+                        """, UPLOAD_CHUNKS_TABLE));
+                        chunks.setObject(1, uploadId);
+                        // A few chunks at a time rather than the whole file at once
+                        chunks.setFetchSize(16);
+
+                        ResultSet result = chunks.executeQuery();
+                        while (result.next())
+                            store.write(result.getInt(1) * chunkSize, result.getBytes(2));
+
+                        // Takes the chunks with it
+                        PreparedStatement delete = con.prepareStatement(String.format("""
+                            DELETE FROM %s
+                            WHERE id = ?;
+                        """, UPLOADS_TABLE));
+                        delete.setObject(1, uploadId);
+                        delete.executeUpdate();
+
+                        con.commit();
+                    } catch (SQLException | RuntimeException ex) {
+                        con.rollback();
+
+                        throw ex;
+                    }
+
+                    return null;
+                })
+                .throwIfError()
+                .ignoreResponse();
+            } catch (RuntimeException ex) {
+                store.close();
+
+                throw ex;
+            }
+
+            return store.finish();
         }
     }
 
-    private final HashMap<UUID, Upload> uploads = new HashMap<>();
+    private static class Expiry implements Delayed {
+        private final LocalUpload upload;
+        private final long deadline; // System.nanoTime
+
+        private Expiry(LocalUpload upload, long deadline) {
+            this.upload = upload;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(deadline - ((Expiry) other).deadline, 0);
+        }
+    }
+
+    // Taken by every shared upload start, see initializeShared
+    private static final long SHARED_BUDGET_LOCK = 0x75706c6f616473L; // "uploads"
+    private static final Duration SHARED_STATS_INTERVAL = Duration.ofSeconds(15);
+
+    private final ConcurrentHashMap<UUID, LocalUpload> uploads = new ConcurrentHashMap<>();
+    private final DelayQueue<Expiry> expiries = new DelayQueue<>();
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final ConcurrentHashMap<UUID, Long> reservedByUser = new ConcurrentHashMap<>();
+    private final AtomicLong receivingBytes = new AtomicLong();
+    // Totals for every server's shared uploads, as of the last refreshSharedStats
+    private final AtomicLong sharedActive = new AtomicLong();
+    private final AtomicLong sharedReservedBytes = new AtomicLong();
+    private final AtomicLong sharedFilledBytes = new AtomicLong();
     private final Thread cleanupThread = new Thread(this);
+    private final ScheduledExecutorService sharedCleanup = Executors.newSingleThreadScheduledExecutor((Runnable runnable) -> {
+        Thread thread = new Thread(runnable, "shared-upload-cleanup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Counter expiredCounter = Metrics.counter("uploads.expired");
+    private final Counter corruptCounter = Metrics.counter("uploads.chunks.corrupt");
 
+    // How long an upload can go without a chunk coming in
     @Getter @Default
-    private Duration cleanupInterval = Duration.ofSeconds(30);
-    @Getter @Setter @Default
-    private Duration maxLifetime = Duration.ofMinutes(10);
+    private volatile Duration idleTimeout = Duration.ofMinutes(2);
+    // How long an upload can take altogether, however steadily its chunks come in
+    @Getter @Default
+    private volatile Duration maxLifetime = Duration.ofHours(1);
+    @Default
+    private ChunkStore.Factory chunkStores = ChunkStore::forSize;
+    // Keep uploads in the database so every server sees them
+    private boolean shared;
+    private MetadataCodec metadataCodec;
+    // Bytes all uploads in progress can add up to
+    @Default
+    private long maxBytes = Long.MAX_VALUE;
+    // Bytes one user's uploads in progress can add up to
+    @Default
+    private long maxBytesPerUser = Long.MAX_VALUE;
+    // Bytes of chunks that can be on their way in at once
+    @Default
+    private long maxReceivingBytes = Long.MAX_VALUE;
+
+    private Uploader(Duration idleTimeout, Duration maxLifetime, ChunkStore.Factory chunkStores, boolean shared, MetadataCodec metadataCodec,
+                     long maxBytes, long maxBytesPerUser, long maxReceivingBytes) {
+        if (shared && metadataCodec == null)
+            throw new IllegalArgumentException("Shared uploads need a metadataCodec.");
 
-    private Uploader(Duration cleanupInterval, Duration maxLifetime) {
-        this.cleanupInterval = cleanupInterval;
+        if (maxBytes <= 0 || maxBytesPerUser <= 0 || maxReceivingBytes <= 0)
+            throw new IllegalArgumentException("Budgets must be > 0.");
+
+        this.idleTimeout = idleTimeout;
         this.maxLifetime = maxLifetime;
+        this.chunkStores = chunkStores;
+        this.shared = shared;
+        this.metadataCodec = metadataCodec;
+        this.maxBytes = maxBytes;
+        this.maxBytesPerUser = maxBytesPerUser;
+        this.maxReceivingBytes = maxReceivingBytes;
+
+        Metrics.gauge("uploads.active", this, Uploader::getActiveUploads);
+        Metrics.gauge("uploads.bytes", List.of(Tag.of("state", "reserved")), this, Uploader::getReservedBytes);
+        Metrics.gauge("uploads.bytes", List.of(Tag.of("state", "filled")), this, Uploader::getFilledBytes);
+        Metrics.gauge("uploads.bytes", List.of(Tag.of("state", "receiving")), receivingBytes, AtomicLong::get);
 
+        this.cleanupThread.setName("upload-cleanup");
+        this.cleanupThread.setDaemon(true);
         this.cleanupThread.start();
+
+        if (shared) {
+            sharedCleanup.scheduleWithFixedDelay(this::deleteExpiredShared, 1, 1, TimeUnit.MINUTES);
+            sharedCleanup.scheduleWithFixedDelay(this::refreshSharedStats, 0, SHARED_STATS_INTERVAL.toSeconds(), TimeUnit.SECONDS);
+        }
     }
 
-    public Upload initializeUpload(int chunkSize, int totalSize, Object metadata) {
+    /***
+     * @param owner Whose budget the upload counts against, null for just the global one.
+     * @throws RejectedException If the upload doesn't fit in the budget right now.
+     */
+    public Upload initializeUpload(int chunkSize, int totalSize, UUID owner, Object metadata) {
         UUID id = UUID.randomUUID();
-        Upload upload = new Upload(id, chunkSize, totalSize, metadata);
+
+        if (shared)
+            return initializeShared(id, chunkSize, totalSize, owner, metadata);
+
+        reserve(owner, totalSize);
+
+        LocalUpload upload;
+        try {
+            upload = new LocalUpload(id, chunkSize, totalSize, owner, metadata);
+        } catch (RuntimeException ex) {
+            unreserve(owner, totalSize);
+            throw ex;
+        }
+
         uploads.put(id, upload);
+        schedule(upload);
 
         return upload;
     }
 
+    public Upload initializeUpload(int chunkSize, int totalSize, Object metadata) {
+        return initializeUpload(chunkSize, totalSize, null, metadata);
+    }
+
     public Upload initializeUpload(int chunkSize, int totalSize) {
         return initializeUpload(chunkSize, totalSize, null);
     }
 
     public Upload getUpload(UUID uploadId) {
+        if (shared)
+            return getShared(uploadId);
+
         return uploads.get(uploadId);
     }
 
-    public void setCleanupInterval(Duration interval) {
-        cleanupInterval = interval;
+    public long getActiveUploads() {
+        if (shared)
+            return sharedActive.get();
+
+        return uploads.size();
+    }
+
+    public long getReservedBytes() {
+        if (shared)
+            return sharedReservedBytes.get();
+
+        return reservedBytes.get();
+    }
+
+    public long getFilledBytes() {
+        if (shared)
+            return sharedFilledBytes.get();
+
+        long filled = 0;
+        for (LocalUpload upload : uploads.values())
+            filled += upload.filled.get();
+
+        return filled;
+    }
+
+    //                  //
+    //      BUDGET      //
+    //                  //
+
+    private void reserve(UUID owner, long size) {
+        // The owner's budget first, so users over theirs are told so even when everything is full
+        if (owner != null) {
+            reservedByUser.compute(owner, (UUID key, Long used) -> {
+                long total = (used == null ? 0 : used) + size;
+                if (total > maxBytesPerUser)
+                    throw reject(RejectReason.USER_BUDGET_FULL);
+
+                return total;
+            });
+        }
+
+        long current;
+        do {
+            current = reservedBytes.get();
+            if (current + size > maxBytes) {
+                if (owner != null)
+                    unreserveUser(owner, size);
+
+                throw reject(RejectReason.BUDGET_FULL);
+            }
+        } while (!reservedBytes.compareAndSet(current, current + size));
+    }
+
+    private void unreserve(UUID owner, long size) {
+        reservedBytes.addAndGet(-size);
+
+        if (owner != null)
+            unreserveUser(owner, size);
+    }
+
+    private void unreserveUser(UUID owner, long size) {
+        // Users without uploads in progress don't keep an entry
+        reservedByUser.computeIfPresent(owner, (UUID key, Long used) -> used == size ? null : used - size);
+    }
+
+    private void startReceiving(int length) {
+        long current;
+        do {
+            current = receivingBytes.get();
+            if (current + length > maxReceivingBytes)
+                throw reject(RejectReason.TOO_MANY_CHUNKS);
+        } while (!receivingBytes.compareAndSet(current, current + length));
+    }
+
+    private void doneReceiving(int length) {
+        receivingBytes.addAndGet(-length);
+    }
+
+    private static long crc32c(byte[] bytes) {
+        CRC32C checksum = new CRC32C();
+        checksum.update(bytes);
+
+        return checksum.getValue();
+    }
+
+    private RejectedException reject(RejectReason reason) {
+        Metrics.counter("uploads.rejected", "reason", reason.toString().toLowerCase()).increment();
 
-        cleanupThread.interrupt();
+        return new RejectedException(reason);
     }
 
-    private void cleanup() {
-        var iterator = uploads.values().iterator();
-        while (iterator.hasNext()) {
-            Upload upload = iterator.next();
+    public void setIdleTimeout(Duration idleTimeout) {
+        this.idleTimeout = idleTimeout;
+
+        rescheduleAll();
+    }
+
+    public void setMaxLifetime(Duration maxLifetime) {
+        this.maxLifetime = maxLifetime;
+
+        rescheduleAll();
+    }
+
+    private void schedule(LocalUpload upload) {
+        Expiry expiry = new Expiry(upload, upload.deadline());
+        upload.expiry = expiry;
+        expiries.add(expiry);
+    }
 
-            if (Duration.between(upload.created, Instant.now()).compareTo(maxLifetime) >= 0) {
-                System.out.println("Upload canceled: " + upload.uploadId);
-                iterator.remove();
+    // Deadlines can move earlier when the timeouts change, entries already queued would be too late
+    private void rescheduleAll() {
+        for (LocalUpload upload : uploads.values())
+            schedule(upload);
+    }
+
+    private void expire(Expiry expiry) {
+        LocalUpload upload = expiry.upload;
+
+        // Finished, or superseded by a newer entry
+        if (upload.finished.get() || upload.expiry != expiry)
+            return;
+
+        // Chunks came in since it was queued
+        if (upload.deadline() - System.nanoTime() > 0) {
+            schedule(upload);
+            return;
+        }
+
+        if (uploads.remove(upload.uploadId, upload) && upload.cancel()) {
+            System.out.println("Upload canceled: " + upload.uploadId);
+            expiredCounter.increment();
+        }
+    }
+
+    //                  //
+    //      SHARED      //
+    //                  //
+
+    private Upload initializeShared(UUID id, int chunkSize, int totalSize, UUID owner, Object metadata) {
+        SharedUpload upload = new SharedUpload(id, chunkSize, totalSize, owner, metadata);
+
+        Database.openConnection((Connection con) -> {
+            try {
+                con.setAutoCommit(false);
+
+                // Starts wait for each other on every server until commit, otherwise uploads started at the same moment
+                // could each see room for themselves and all go in together
+                PreparedStatement lock = con.prepareStatement("SELECT pg_advisory_xact_lock(?);");
+                lock.setLong(1, SHARED_BUDGET_LOCK);
+                lock.executeQuery();
+
+                PreparedStatement budget = con.prepareStatement(String.format("""
+                    SELECT coalesce(sum(total_size), 0), coalesce(sum(total_size) FILTER (WHERE owner = ?), 0) FROM %s;
+                """, UPLOADS_TABLE));
+                budget.setObject(1, owner);
+
+                ResultSet used = budget.executeQuery();
+                used.next();
+
+                if (owner != null && used.getLong(2) + totalSize > maxBytesPerUser)
+                    throw reject(RejectReason.USER_BUDGET_FULL);
+
+                if (used.getLong(1) + totalSize > maxBytes)
+                    throw reject(RejectReason.BUDGET_FULL);
+
+                PreparedStatement statement = con.prepareStatement(String.format("""
+                    INSERT INTO %s (id, chunk_size, total_size, chunk_count, owner, metadata)
+                    VALUES (?, ?, ?, ?, ?, ?);
+                """, UPLOADS_TABLE));
+                statement.setObject(1, id);
+                statement.setInt(2, chunkSize);
+                statement.setInt(3, totalSize);
+                statement.setInt(4, upload.getChunkCount());
+                statement.setObject(5, owner);
+                statement.setString(6, metadataCodec.encode(metadata));
+                statement.executeUpdate();
+
+                con.commit();
+            } catch (SQLException | RuntimeException ex) {
+                con.rollback();
+
+                throw ex;
             }
+
+            return null;
+        })
+        .throwIfError()
+        .ignoreResponse();
+
+        return upload;
+    }
+
+    private Upload getShared(UUID uploadId) {
+        Upload[] upload = {null};
+
+        Database.openConnection((Connection con) -> {
+            PreparedStatement statement = con.prepareStatement(String.format("""
+                SELECT chunk_size, total_size, owner, metadata FROM %s
+                WHERE id = ?;
+            """, UPLOADS_TABLE));
+            statement.setObject(1, uploadId);
+
+            ResultSet result = statement.executeQuery();
+            if (result.next())
+                upload[0] = new SharedUpload(uploadId, result.getInt(1), result.getInt(2), (UUID) result.getObject(3), metadataCodec.decode(result.getString(4)));
+
+            return null;
+        })
+        .throwIfError()
+        .ignoreResponse();
+
+        return upload[0];
+    }
+
+    private void deleteExpiredShared() {
+        try {
+            Database.openConnection((Connection con) -> {
+                PreparedStatement statement = con.prepareStatement(String.format("""
+                    DELETE FROM %s
+                    WHERE (received < chunk_count AND last_activity < now() - ? * INTERVAL '1 millisecond')
+                    OR created < now() - ? * INTERVAL '1 millisecond';
+                """, UPLOADS_TABLE));
+                statement.setLong(1, idleTimeout.toMillis());
+                statement.setLong(2, maxLifetime.toMillis());
+
+                int deleted = statement.executeUpdate();
+                if (deleted > 0) {
+                    System.out.println("Shared uploads canceled: " + deleted);
+                    expiredCounter.increment(deleted);
+                }
+
+                return null;
+            })
+            .throwIfError()
+            .ignoreResponse();
+        } catch (Exception ex) {
+            System.out.println("Failed to delete expired uploads.");
+            ex.printStackTrace();
+        }
+    }
+
+    private void refreshSharedStats() {
+        try {
+            Database.openConnection((Connection con) -> {
+                // Whole chunks received, the short last one can make it a little over, never past the file
+                PreparedStatement statement = con.prepareStatement(String.format("""
+                    SELECT count(*), coalesce(sum(total_size), 0), coalesce(sum(least(received::bigint * chunk_size, total_size)), 0)
+                    FROM %s;
+                """, UPLOADS_TABLE));
+
+                ResultSet result = statement.executeQuery();
+                result.next();
+
+                sharedActive.set(result.getLong(1));
+                sharedReservedBytes.set(result.getLong(2));
+                sharedFilledBytes.set(result.getLong(3));
+
+                return null;
+            })
+            .throwIfError()
+            .ignoreResponse();
+        } catch (Exception ex) {
+            System.out.println("Failed to read shared upload stats.");
+            ex.printStackTrace();
         }
     }
 
@@ -151,11 +1069,11 @@ public class Uploader implements Runnable {
     public void run() {
         while (true) {
             try {
-                cleanup();
-            } catch (Exception ex) {}
-            try {
-                Thread.sleep(cleanupInterval.toMillis());
-            } catch (InterruptedException ex) {}
+                expire(expiries.take());
+            } catch (InterruptedException ex) {
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
         }
     }
 }
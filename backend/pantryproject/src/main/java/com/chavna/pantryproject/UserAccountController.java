@@ -455,7 +455,7 @@ public class UserAccountController {
 
         String key = S3.getImageKey(PROFILE_PICTURE_PREFIX, login.userId);
 
-        Upload upload = UploadController.uploader.initializeUpload(UploadController.UPLOAD_CHUNK_SIZE, requestBody.fileSize, new S3Upload(key));
+        Upload upload = UploadController.uploader.initializeUpload(UploadController.UPLOAD_CHUNK_SIZE, requestBody.fileSize, login.userId, new S3Upload(key));
 
         return Response.Success(new SetProfilePictureResponse(upload.getUploadId(), upload.getChunkCount(), upload.getChunkSize()));
     }
@@ -0,0 +1,182 @@
+package com.chavna.pantryproject;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+public class CompactTrieTests {
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    // Writes the entries (already in order) and reads them back through the memory map
+    private static CompactTrie roundTrip(Path file, Map<String, byte[]> entries) throws IOException {
+        try (CompactTrie.Writer writer = new CompactTrie.Writer(file)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet())
+                writer.add(entry.getKey(), entry.getValue());
+        }
+
+        return CompactTrie.open(file);
+    }
+
+    @Test
+    public void prefixesAndMissingKeys() throws IOException {
+        Path file = Files.createTempFile("trie", ".trie");
+        try {
+            TreeMap<String, byte[]> entries = new TreeMap<>();
+            entries.put("", new byte[] {0});
+            entries.put("A", new byte[] {1});
+            entries.put("ABC", new byte[] {2, 3});
+            entries.put("ABD", new byte[0]);
+            entries.put("B", "bee".getBytes(StandardCharsets.UTF_8));
+
+            CompactTrie trie = roundTrip(file, entries);
+
+            for (Map.Entry<String, byte[]> entry : entries.entrySet())
+                assertArrayEquals(entry.getValue(), bytes(trie.get(entry.getKey())), entry.getKey());
+
+            // On the way to a key but not one
+            assertNull(trie.get("AB"));
+            // Past the end of a key
+            assertNull(trie.get("ABCD"));
+            assertNull(trie.get("C"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void randomKeysRoundTrip() throws IOException {
+        Path file = Files.createTempFile("trie", ".trie");
+        try {
+            Random rng = new Random(0);
+
+            // Sorted by String, the same as the byte order for ASCII
+            TreeMap<String, byte[]> entries = new TreeMap<>();
+            while (entries.size() < 20_000) {
+                char[] key = new char[1 + rng.nextInt(12)];
+                for (int i = 0; i < key.length; i++)
+                    key[i] = (char) ('A' + rng.nextInt(26));
+
+                byte[] value = new byte[rng.nextInt(300)];
+                rng.nextBytes(value);
+
+                entries.put(new String(key), value);
+            }
+
+            CompactTrie trie = roundTrip(file, entries);
+
+            for (Map.Entry<String, byte[]> entry : entries.entrySet())
+                assertArrayEquals(entry.getValue(), bytes(trie.get(entry.getKey())), entry.getKey());
+
+            for (int i = 0; i < 1000; i++) {
+                String missing = "a" + i;
+                assertNull(trie.get(missing));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void everyLabelUnderOneNode() throws IOException {
+        Path file = Files.createTempFile("trie", ".trie");
+        try {
+            // More children than the writer starts with room for, and labels over 0x7F
+            try (CompactTrie.Writer writer = new CompactTrie.Writer(file)) {
+                for (int label = 0; label < 256; label++)
+                    writer.add(new byte[] {(byte) label}, new byte[] {(byte) label, (byte) label});
+            }
+
+            CompactTrie trie = CompactTrie.open(file);
+
+            for (int label = 0; label < 256; label++)
+                assertArrayEquals(new byte[] {(byte) label, (byte) label}, bytes(trie.get(new byte[] {(byte) label})));
+
+            assertNull(trie.get(new byte[] {0, 0}));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void utf8Keys() throws IOException {
+        Path file = Files.createTempFile("trie", ".trie");
+        try {
+            // Each accented letter is two bytes, so two levels of the trie
+            try (CompactTrie.Writer writer = new CompactTrie.Writer(file)) {
+                writer.add("CAFE", new byte[] {1});
+                writer.add("CAF\u00C9", new byte[] {2});
+                writer.add("JALAPE\u00D1O", new byte[] {3});
+            }
+
+            CompactTrie trie = CompactTrie.open(file);
+
+            assertArrayEquals(new byte[] {1}, bytes(trie.get("CAFE")));
+            assertArrayEquals(new byte[] {2}, bytes(trie.get("CAF\u00C9")));
+            assertArrayEquals(new byte[] {3}, bytes(trie.get("JALAPE\u00D1O")));
+            assertNull(trie.get("CAF"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void valuesAreReadOnly() throws IOException {
+        Path file = Files.createTempFile("trie", ".trie");
+        try {
+            TreeMap<String, byte[]> entries = new TreeMap<>();
+            entries.put("KEY", new byte[] {1, 2, 3});
+
+            ByteBuffer value = roundTrip(file, entries).get("KEY");
+
+            assertEquals(3, value.remaining());
+            assertThrows(ReadOnlyBufferException.class, () -> value.put((byte) 0));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void keysOutOfOrderAreRejected() throws IOException {
+        CompactTrie.Writer writer = new CompactTrie.Writer(new ByteArrayOutputStream());
+        writer.add("B", new byte[0]);
+
+        assertThrows(IllegalArgumentException.class, () -> writer.add("A", new byte[0]));
+        assertThrows(IllegalArgumentException.class, () -> writer.add("B", new byte[0]));
+        assertThrows(IllegalArgumentException.class, () -> writer.add("", new byte[0]));
+
+        writer.add("BA", new byte[0]);
+        writer.close();
+    }
+
+    @Test
+    public void otherFilesAreRejected() throws IOException {
+        Path file = Files.createTempFile("trie", ".trie");
+        try {
+            Files.write(file, "not a trie".getBytes(StandardCharsets.UTF_8));
+            assertThrows(IOException.class, () -> CompactTrie.open(file));
+
+            Files.write(file, new byte[0]);
+            assertThrows(IOException.class, () -> CompactTrie.open(file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.chavna.pantryproject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ * Stand-in for Textract. The "image" is the name of a fixture in src/test/resources/receipts as UTF-8, and the
+ * recognized words are the ones saved in it.
+ *
+ * hold() makes recognize wait until release() so tests can fill up a queue.
+ */
+public class FixtureTextRecognizer implements TextRecognizer {
+    private volatile CountDownLatch gate = new CountDownLatch(0);
+    private final AtomicInteger calls = new AtomicInteger();
+
+    public static byte[] image(String fixtureName) {
+        return fixtureName.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public void hold() {
+        gate = new CountDownLatch(1);
+    }
+
+    public void release() {
+        gate.countDown();
+    }
+
+    public int getCalls() {
+        return calls.get();
+    }
+
+    @Override
+    public ReceiptGeometry recognize(byte[] image) {
+        calls.incrementAndGet();
+
+        try {
+            if (!gate.await(10, TimeUnit.SECONDS))
+                throw new IllegalStateException("Recognizer was never released.");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        }
+
+        return TextractFixtures.load(new String(image, StandardCharsets.UTF_8)).geometry();
+    }
+}
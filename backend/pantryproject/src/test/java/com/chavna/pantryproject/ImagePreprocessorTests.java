@@ -0,0 +1,179 @@
+package com.chavna.pantryproject;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+import com.chavna.pantryproject.TextRecognizer.UnreadableImageException;
+
+public class ImagePreprocessorTests {
+    /***
+     * Finds one "word", the box around everything dark in the image, and keeps the last image it got.
+     */
+    private static class InkRecognizer implements TextRecognizer {
+        volatile BufferedImage lastImage;
+
+        @Override
+        public ReceiptGeometry recognize(byte[] bytes) {
+            BufferedImage image = read(bytes);
+            lastImage = image;
+
+            int minX = Integer.MAX_VALUE;
+            int minY = Integer.MAX_VALUE;
+            int maxX = -1;
+            int maxY = -1;
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    if ((image.getRGB(x, y) & 0xFF) < 100) {
+                        minX = Math.min(minX, x);
+                        minY = Math.min(minY, y);
+                        maxX = Math.max(maxX, x + 1);
+                        maxY = Math.max(maxY, y + 1);
+                    }
+                }
+            }
+
+            float width = image.getWidth();
+            float height = image.getHeight();
+
+            ReceiptGeometry geometry = new ReceiptGeometry(1);
+            geometry.addWord("INK");
+            geometry.addPoint(minX / width, minY / height);
+            geometry.addPoint(maxX / width, minY / height);
+            geometry.addPoint(maxX / width, maxY / height);
+            geometry.addPoint(minX / width, maxY / height);
+
+            return geometry;
+        }
+    }
+
+    private static ImagePreprocessor preprocessor(TextRecognizer recognizer) {
+        return ImagePreprocessor.builder()
+            .recognizer(recognizer)
+            .maxWidth(800)
+            .maxHeight(4000)
+            .jpegQuality(0.85f)
+            .threads(2)
+            .maxQueued(4)
+            .build();
+    }
+
+    private static BufferedImage read(byte[] bytes) {
+        try {
+            return ImageIO.read(new ByteArrayInputStream(bytes));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static byte[] write(BufferedImage image, String format) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, format, bytes);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void photoIsShrunkAndGray() {
+        byte[] upload = write(SyntheticReceipts.photo(2000, 2800, 300, 600), "PNG");
+
+        InkRecognizer recognizer = new InkRecognizer();
+        preprocessor(recognizer).recognize(upload);
+
+        BufferedImage sent = recognizer.lastImage;
+        assertTrue(sent.getWidth() <= 800, "width " + sent.getWidth());
+        assertEquals(1, sent.getColorModel().getNumComponents());
+
+        ImagePreprocessor.Prepared prepared = preprocessor(recognizer).prepare(upload);
+        assertTrue(prepared.image.length * 10 < upload.length, prepared.image.length + " vs " + upload.length);
+    }
+
+    @Test
+    public void cropIsUndone() {
+        BufferedImage image = SyntheticReceipts.photo(1200, 2400, 300, 900);
+        byte[] upload = write(image, "PNG");
+
+        // Where the text really is
+        ReceiptGeometry expected = new InkRecognizer().recognize(upload);
+
+        InkRecognizer recognizer = new InkRecognizer();
+        ReceiptGeometry geometry = preprocessor(recognizer).recognize(upload);
+
+        // Most of the page was margin
+        assertTrue(recognizer.lastImage.getHeight() < 1500, "height " + recognizer.lastImage.getHeight());
+
+        for (int p = 0; p < 4; p++) {
+            assertEquals(expected.pointX(p), geometry.pointX(p), 0.01, "x of point " + p);
+            assertEquals(expected.pointY(p), geometry.pointY(p), 0.01, "y of point " + p);
+        }
+    }
+
+    @Test
+    public void blankImagesAreRejected() {
+        InkRecognizer recognizer = new InkRecognizer();
+        ImagePreprocessor preprocessor = preprocessor(recognizer);
+
+        BufferedImage white = new BufferedImage(600, 800, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = white.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, 600, 800);
+        graphics.dispose();
+
+        BufferedImage black = new BufferedImage(600, 800, BufferedImage.TYPE_INT_RGB);
+
+        assertThrows(UnreadableImageException.class, () -> preprocessor.recognize(write(white, "JPG")));
+        assertThrows(UnreadableImageException.class, () -> preprocessor.recognize(write(black, "PNG")));
+        assertThrows(UnreadableImageException.class, () -> preprocessor.recognize(write(SyntheticReceipts.photo(600, 800, 0, -2000), "PNG")));
+        assertEquals(null, recognizer.lastImage);
+    }
+
+    @Test
+    public void undecodableImagesAreRejected() {
+        InkRecognizer recognizer = new InkRecognizer();
+        ImagePreprocessor preprocessor = preprocessor(recognizer);
+
+        byte[] png = write(SyntheticReceipts.photo(600, 800, 50, 50), "PNG");
+        byte[] truncated = new byte[png.length / 2];
+        System.arraycopy(png, 0, truncated, 0, truncated.length);
+
+        assertThrows(UnreadableImageException.class, () -> preprocessor.recognize(new byte[0]));
+        assertThrows(UnreadableImageException.class, () -> preprocessor.recognize(FixtureTextRecognizer.image("small")));
+        assertThrows(UnreadableImageException.class, () -> preprocessor.recognize(truncated));
+        assertEquals(null, recognizer.lastImage);
+    }
+
+    @Test
+    public void inkBounds() {
+        byte[] pixels = new byte[100 * 50];
+        Arrays.fill(pixels, (byte) 240);
+        for (int y = 10; y < 20; y++) {
+            for (int x = 30; x < 60; x++)
+                pixels[y * 100 + x] = 20;
+        }
+        // A speck doesn't count
+        pixels[45 * 100 + 5] = 20;
+
+        int[] bounds = ImagePreprocessor.inkBounds(pixels, 100, 50);
+        assertEquals(30, bounds[0]);
+        assertEquals(10, bounds[1]);
+        assertEquals(59, bounds[2]);
+        assertEquals(19, bounds[3]);
+    }
+}
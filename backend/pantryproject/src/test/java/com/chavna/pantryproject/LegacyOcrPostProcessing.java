@@ -0,0 +1,74 @@
+package com.chavna.pantryproject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.chavna.pantryproject.ReceiptParser.LineBlock;
+import com.chavna.pantryproject.ReceiptParser.Point;
+import com.chavna.pantryproject.ReceiptParser.Word;
+
+/***
+ * How scan-receipt straightened words before ReceiptGeometry, with a Point object per polygon point and a Word per word.
+ * Only kept to check ReceiptGeometry gives the same JSON and to benchmark against.
+ */
+public class LegacyOcrPostProcessing {
+    public static LineBlock[] process(List<String> texts, List<float[]> polygons) {
+        ArrayList<Word> words = new ArrayList<>();
+        float totalAngle = 0;
+        int count = 0;
+        for (int w = 0; w < texts.size(); w++) {
+            float[] polygon = polygons.get(w);
+
+            float angle = (float) Math.atan2(polygon[3] - polygon[1], polygon[2] - polygon[0]);
+
+            totalAngle += angle;
+            count += 1;
+
+            Point[] points = new Point[polygon.length / 2];
+            for (int i = 0; i < points.length; i++)
+                points[i] = new Point(polygon[i * 2], polygon[i * 2 + 1]);
+
+            words.add(new Word(0, 0, 0, 0, points, texts.get(w)));
+        }
+
+        double avgAngle = totalAngle / count;
+
+        ReceiptParser parser = new ReceiptParser();
+        for (Word w : words) {
+            Point[] polygon = w.getOriginalPolygon();
+
+            Float minX = null;
+            Float maxX = null;
+            Float minY = null;
+            Float maxY = null;
+
+            // Rotate all points by -avgAngle to straighten the lines
+            for (int i = 0; i < polygon.length; i++) {
+                Point point = polygon[i];
+                double x = point.x*Math.cos(-avgAngle) - point.y*Math.sin(-avgAngle);
+                double y = point.x*Math.sin(-avgAngle) + point.y*Math.cos(-avgAngle);
+
+                if (minX == null || x < minX)
+                    minX = (float) x;
+
+                if (maxX == null || x > maxX)
+                    maxX = (float) x;
+
+                if (minY == null || y < minY)
+                    minY = (float) y;
+
+                if (maxY == null || y > maxY)
+                    maxY = (float) y;
+            }
+
+            minX = minX != null? minX : 0;
+            minY = minY != null? minY : 0;
+            maxX = maxX != null? maxX : 0;
+            maxY = maxY != null? maxY : 0;
+
+            parser.addWord(new Word(minX, minY, maxX - minX, maxY - minY, polygon, w.getText()));
+        }
+
+        return parser.getLines();
+    }
+}
@@ -0,0 +1,116 @@
+package com.chavna.pantryproject;
+
+import java.util.TreeSet;
+
+import com.chavna.pantryproject.ReceiptParser.Word;
+
+/***
+ * The TreeSet based line grouping ReceiptParser used before the sweep.
+ * Only kept to check the new one gives the same lines and to benchmark against.
+ */
+public class LegacyReceiptParser {
+    public static class LineBlock implements Comparable<LineBlock> {
+        float x;
+        float y;
+        float width;
+        float height;
+        Word[] words;
+
+        private LineBlock(Word[] words) {
+            this.words = words;
+
+            Float x = null;
+            for (Word w : words) {
+                if (x == null || w.x < x)
+                    x = w.x;
+            }
+            this.x = x != null? x : 0;
+
+            Float y = null;
+            for (Word w : words) {
+                if (y == null || w.y < y)
+                    y = w.y;
+            }
+            this.y = y != null? y : 0;
+
+            Float xMax = null;
+            for (Word w : words) {
+                if (xMax == null || w.x + w.width > xMax)
+                    xMax = w.x + w.width;
+            }
+            width = (xMax != null? xMax : 0) - this.x;
+
+            Float yMax = null;
+            for (Word w : words) {
+                if (yMax == null || w.y + w.height > yMax)
+                    yMax = w.y + w.height;
+            }
+            height = (yMax != null? yMax : 0) - this.y;
+        }
+
+        public LineBlock(Word word) {
+            this(new Word[] {word});
+        }
+
+        @Override
+        public int compareTo(LineBlock other) {
+            float aCenter = centerY();
+            float bCenter = other.centerY();
+
+            // If either block's y center is within the other's y bounds, they are considered on the same line.
+            if ((bCenter <= y + height && bCenter >= y) || (aCenter <= other.y + other.height && aCenter >= other.y))
+                return 0;
+
+            // Otherwise compare the y position of their centers
+            return Float.compare(aCenter, bCenter);
+        }
+
+        public float centerY() {
+            return y + height / 2;
+        }
+
+        public static LineBlock combine(LineBlock a, LineBlock b) {
+            TreeSet<Word> wordSet = new TreeSet<>();
+
+            for (Word w : a.words)
+                wordSet.add(w);
+
+            for (Word w : b.words)
+                wordSet.add(w);
+
+            Word[] words = new Word[wordSet.size()];
+            wordSet.toArray(words);
+
+            return new LineBlock(words);
+        }
+    }
+
+    private TreeSet<LineBlock> blocks;
+
+    public LegacyReceiptParser() {
+        blocks = new TreeSet<>();
+    }
+
+    public void addWord(Word word) {
+        LineBlock textBlock = new LineBlock(word);
+
+        LineBlock existing = blocks.ceiling(textBlock);
+
+        if (existing != null && existing.compareTo(textBlock) != 0)
+            existing = null;
+
+        if (existing != null) {
+            blocks.remove(existing);
+            textBlock = LineBlock.combine(existing, textBlock);
+        }
+
+        blocks.add(textBlock);
+    }
+
+    public LineBlock[] getLines() {
+        LineBlock[] out = new LineBlock[blocks.size()];
+        blocks.toArray(out);
+
+        return out;
+    }
+}
@@ -0,0 +1,199 @@
+package com.chavna.pantryproject;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.chavna.pantryproject.OcrJobQueue.Job;
+import com.chavna.pantryproject.OcrJobQueue.RejectReason;
+import com.chavna.pantryproject.OcrJobQueue.RejectedException;
+import com.chavna.pantryproject.OcrJobQueue.Status;
+import com.chavna.pantryproject.Uploader.Upload;
+
+public class OcrJobQueueTests {
+    private static OcrJobQueue queue(FixtureTextRecognizer recognizer, int workers, int maxQueued, int maxPerUser) {
+        return OcrJobQueue.builder()
+            .recognizer(recognizer)
+            .workers(workers)
+            .maxQueued(maxQueued)
+            .maxPerUser(maxPerUser)
+            .resultLifetime(Duration.ofMinutes(1))
+            .build();
+    }
+
+    private static Job submit(OcrJobQueue queue, UUID owner, String fixture, boolean structured) {
+        byte[] image = FixtureTextRecognizer.image(fixture);
+        return queue.submit(owner, () -> image, structured);
+    }
+
+    @Test
+    public void finishedJobHasLinesAndItems() throws Exception {
+        OcrJobQueue queue = queue(new FixtureTextRecognizer(), 2, 4, 2);
+        UUID owner = UUID.randomUUID();
+
+        Job job = submit(queue, owner, "small", true);
+        Job finished = job.whenFinished().get(10, TimeUnit.SECONDS);
+
+        assertEquals(Status.DONE, finished.getStatus());
+        assertEquals(21, finished.getGeometry().getLineCount());
+        assertEquals(12, finished.getStructure().getItems().size());
+        assertEquals(0, finished.getGeometry().getAngle(), 1e-6);
+    }
+
+    @Test
+    public void perUserLimit() throws Exception {
+        FixtureTextRecognizer recognizer = new FixtureTextRecognizer();
+        recognizer.hold();
+        OcrJobQueue queue = queue(recognizer, 4, 8, 2);
+
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+
+        Job a = submit(queue, first, "small", false);
+        Job b = submit(queue, first, "small", false);
+        RejectedException ex = assertThrows(RejectedException.class, () -> submit(queue, first, "small", false));
+        assertEquals(RejectReason.USER_LIMIT, ex.getReason());
+
+        // Other users aren't affected
+        Job c = submit(queue, second, "small", false);
+
+        recognizer.release();
+        a.whenFinished().get(10, TimeUnit.SECONDS);
+        b.whenFinished().get(10, TimeUnit.SECONDS);
+        c.whenFinished().get(10, TimeUnit.SECONDS);
+
+        // Finished jobs give their slot back
+        Job d = submit(queue, first, "small", false);
+        assertEquals(Status.DONE, d.whenFinished().get(10, TimeUnit.SECONDS).getStatus());
+    }
+
+    @Test
+    public void queueDepthLimit() throws Exception {
+        FixtureTextRecognizer recognizer = new FixtureTextRecognizer();
+        recognizer.hold();
+        OcrJobQueue queue = queue(recognizer, 1, 1, 10);
+
+        Job running = submit(queue, UUID.randomUUID(), "small", false);
+        // Wait for the worker to pick it up so the next one is the only one queued
+        while (recognizer.getCalls() == 0)
+            Thread.sleep(1);
+
+        Job queued = submit(queue, UUID.randomUUID(), "small", false);
+        assertEquals(Status.QUEUED, queued.getStatus());
+
+        UUID rejectedOwner = UUID.randomUUID();
+        RejectedException ex = assertThrows(RejectedException.class, () -> submit(queue, rejectedOwner, "small", false));
+        assertEquals(RejectReason.QUEUE_FULL, ex.getReason());
+
+        recognizer.release();
+        assertEquals(Status.DONE, running.whenFinished().get(10, TimeUnit.SECONDS).getStatus());
+        assertEquals(Status.DONE, queued.whenFinished().get(10, TimeUnit.SECONDS).getStatus());
+
+        // The rejected submission didn't keep a slot
+        submit(queue, rejectedOwner, "small", false).whenFinished().get(10, TimeUnit.SECONDS);
+    }
+
+    /***
+     * Scans finish their upload once a worker gets to them, which can be well past the uploader's idleTimeout.
+     */
+    @Test
+    public void completeUploadOutlastsIdleTimeoutInTheQueue() throws Exception {
+        Uploader uploader = Uploader.builder()
+            .idleTimeout(Duration.ofMillis(200))
+            .build();
+
+        byte[] image = FixtureTextRecognizer.image("small");
+        Upload upload = uploader.initializeUpload(image.length, image.length, null);
+        assertTrue(upload.uploadChunk(0, image));
+
+        FixtureTextRecognizer recognizer = new FixtureTextRecognizer();
+        recognizer.hold();
+        OcrJobQueue queue = queue(recognizer, 1, 10, 10);
+
+        Job running = submit(queue, UUID.randomUUID(), "small", false);
+        while (recognizer.getCalls() == 0)
+            Thread.sleep(1);
+
+        Job queued = queue.submit(UUID.randomUUID(), () -> ChunkStore.toBytes(upload.finish()), false);
+        Thread.sleep(800);
+        assertEquals(Status.QUEUED, queued.getStatus());
+
+        recognizer.release();
+        assertEquals(Status.DONE, running.whenFinished().get(10, TimeUnit.SECONDS).getStatus());
+        assertEquals(Status.DONE, queued.whenFinished().get(10, TimeUnit.SECONDS).getStatus());
+    }
+
+    @Test
+    public void longPollReturnsCurrentStatusOnTimeout() throws Exception {
+        FixtureTextRecognizer recognizer = new FixtureTextRecognizer();
+        recognizer.hold();
+        OcrJobQueue queue = queue(recognizer, 1, 4, 2);
+
+        Job job = submit(queue, UUID.randomUUID(), "small", false);
+        while (recognizer.getCalls() == 0)
+            Thread.sleep(1);
+
+        Job polled = job.whenFinished(Duration.ofMillis(50)).get(10, TimeUnit.SECONDS);
+        assertEquals(Status.RUNNING, polled.getStatus());
+
+        recognizer.release();
+        assertEquals(Status.DONE, job.whenFinished(Duration.ofSeconds(10)).get(10, TimeUnit.SECONDS).getStatus());
+    }
+
+    @Test
+    public void failedRecognition() throws Exception {
+        OcrJobQueue queue = queue(new FixtureTextRecognizer(), 1, 4, 1);
+        UUID owner = UUID.randomUUID();
+
+        Job job = submit(queue, owner, "does-not-exist", false);
+        Job finished = job.whenFinished().get(10, TimeUnit.SECONDS);
+
+        assertEquals(Status.FAILED, finished.getStatus());
+        assertNotNull(finished.getError());
+        assertNull(finished.getGeometry());
+        assertFalse(finished.isUnreadable());
+
+        // Failing still gives the slot back
+        submit(queue, owner, "small", false).whenFinished().get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void unreadableImage() throws Exception {
+        OcrJobQueue queue = OcrJobQueue.builder()
+            .recognizer((byte[] image) -> {
+                throw new TextRecognizer.UnreadableImageException("Image is blank.");
+            })
+            .workers(1)
+            .maxQueued(4)
+            .maxPerUser(1)
+            .resultLifetime(Duration.ofMinutes(1))
+            .build();
+
+        Job finished = queue.submit(UUID.randomUUID(), () -> new byte[0], false).whenFinished().get(10, TimeUnit.SECONDS);
+
+        assertEquals(Status.FAILED, finished.getStatus());
+        assertTrue(finished.isUnreadable());
+        assertEquals("Image is blank.", finished.getError());
+    }
+
+    @Test
+    public void jobsAreOnlyVisibleToTheirOwner() {
+        OcrJobQueue queue = queue(new FixtureTextRecognizer(), 1, 4, 1);
+        UUID owner = UUID.randomUUID();
+
+        Job job = submit(queue, owner, "small", false);
+
+        assertNotNull(queue.getJob(job.getJobId(), owner));
+        assertNull(queue.getJob(job.getJobId(), UUID.randomUUID()));
+        assertNull(queue.getJob(UUID.randomUUID(), owner));
+    }
+}
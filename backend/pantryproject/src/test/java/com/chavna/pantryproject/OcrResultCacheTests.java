@@ -0,0 +1,101 @@
+package com.chavna.pantryproject;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class OcrResultCacheTests {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    // Not persistent, tests don't have a database
+    private static OcrResultCache cache(FixtureTextRecognizer recognizer, int maxEntries, Duration ttl) {
+        return OcrResultCache.builder()
+            .recognizer(recognizer)
+            .maxEntries(maxEntries)
+            .ttl(ttl)
+            .persistent(false)
+            .build();
+    }
+
+    private static String processedJson(ReceiptGeometry geometry) throws JsonProcessingException {
+        geometry.process();
+        return mapper.writeValueAsString(geometry);
+    }
+
+    @Test
+    public void sameImageIsRecognizedOnce() throws JsonProcessingException {
+        FixtureTextRecognizer recognizer = new FixtureTextRecognizer();
+        OcrResultCache cache = cache(recognizer, 16, Duration.ofMinutes(1));
+
+        for (String name : TextractFixtures.NAMES) {
+            String expected = processedJson(TextractFixtures.load(name).geometry());
+
+            String first = processedJson(cache.recognize(FixtureTextRecognizer.image(name)));
+            String second = processedJson(cache.recognize(FixtureTextRecognizer.image(name)));
+
+            assertEquals(expected, first, name);
+            assertEquals(expected, second, name);
+        }
+
+        assertEquals(TextractFixtures.NAMES.length, recognizer.getCalls());
+        assertEquals(0.5, cache.hitRatio(), 1e-9);
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        FixtureTextRecognizer recognizer = new FixtureTextRecognizer();
+        OcrResultCache cache = cache(recognizer, 2, Duration.ofMinutes(1));
+
+        cache.recognize(FixtureTextRecognizer.image("small"));
+        cache.recognize(FixtureTextRecognizer.image("skewed"));
+        cache.recognize(FixtureTextRecognizer.image("small")); // skewed is now the oldest
+        cache.recognize(FixtureTextRecognizer.image("messy"));
+        assertEquals(3, recognizer.getCalls());
+
+        cache.recognize(FixtureTextRecognizer.image("small"));
+        assertEquals(3, recognizer.getCalls());
+
+        cache.recognize(FixtureTextRecognizer.image("skewed"));
+        assertEquals(4, recognizer.getCalls());
+    }
+
+    @Test
+    public void expiredEntriesAreRecognizedAgain() throws InterruptedException {
+        FixtureTextRecognizer recognizer = new FixtureTextRecognizer();
+        OcrResultCache cache = cache(recognizer, 16, Duration.ofMillis(50));
+
+        cache.recognize(FixtureTextRecognizer.image("small"));
+        cache.recognize(FixtureTextRecognizer.image("small"));
+        assertEquals(1, recognizer.getCalls());
+
+        Thread.sleep(100);
+
+        cache.recognize(FixtureTextRecognizer.image("small"));
+        assertEquals(2, recognizer.getCalls());
+    }
+
+    @Test
+    public void bytesRoundTrip() throws JsonProcessingException {
+        for (String name : TextractFixtures.NAMES) {
+            ReceiptGeometry geometry = TextractFixtures.load(name).geometry();
+            ReceiptGeometry copy = ReceiptGeometry.fromBytes(geometry.toBytes());
+
+            assertEquals(processedJson(geometry), processedJson(copy), name);
+        }
+
+        ReceiptGeometry processed = TextractFixtures.load("small").geometry();
+        processed.process();
+        assertThrows(IllegalStateException.class, processed::toBytes);
+    }
+
+    @Test
+    public void sha256() {
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", OcrResultCache.sha256(new byte[0]));
+    }
+}
@@ -0,0 +1,208 @@
+package com.chavna.pantryproject;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+import com.chavna.pantryproject.ProductCatalog.Product;
+
+public class ProductCatalogTests {
+    private static final String CSV = String.join("\n",
+        "code,product_name,quantity,categories_tags",
+        "1,Boneless Chicken Breast,2 lbs,\"en:meats,en:poultry\"",
+        "2,Whole Milk,1 gal,en:dairies",
+        "3,\"Cheddar Cheese, Sharp\",8 oz,en:cheeses",
+        "4,Frozen Peas,500 g,en:frozen-foods",
+        "5,\"Chicken Noodle Soup\nFamily Size\",\"1,5 l\",en:canned-foods",
+        "6,,1 kg,",
+        "7,Bananas,,",
+        "8,Orange Juice,52 fl oz,en:beverages"
+    ) + "\n";
+
+    private static final String JSONL = String.join("\n",
+        "{\"code\": \"1\", \"product_name\": \"Boneless Chicken Breast\", \"quantity\": \"2 lbs\", \"categories_tags\": [\"en:meats\", \"en:poultry\"]}",
+        "{\"code\": \"2\", \"product_name\": \"Whole Milk\", \"quantity\": \"1 gal\", \"categories_tags\": [\"en:dairies\"]}",
+        "",
+        "{\"code\": \"3\", \"product_name\": \"Cheddar Cheese, Sharp\", \"quantity\": \"8 oz\", \"categories\": \"Cheeses\"}",
+        "{\"code\": \"4\", \"product_name\": \"Frozen Peas\", \"quantity\": \"500 g\", \"categories_tags\": [\"en:frozen-foods\"]}",
+        "{\"code\": \"5\", \"product_name\": \"Chicken Noodle Soup\\nFamily Size\", \"quantity\": \"1,5 l\", \"categories_tags\": [\"en:canned-foods\"]}",
+        "{\"code\": \"6\", \"quantity\": \"1 kg\"}",
+        "{\"code\": \"7\", \"product_name\": \"Bananas\"}",
+        "{\"code\": \"8\", \"product_name\": \"Orange Juice\", \"quantity\": \"52 fl oz\", \"categories_tags\": [\"en:beverages\"]}"
+    ) + "\n";
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            paths = new ArrayList<>(walk.sorted(Comparator.reverseOrder()).toList());
+        }
+
+        for (Path path : paths)
+            Files.delete(path);
+    }
+
+    // Digits would be split off into their own token, so products are told apart by letters
+    private static String letters(int i) {
+        StringBuilder letters = new StringBuilder();
+        do {
+            letters.append((char) ('A' + i % 26));
+            i /= 26;
+        } while (i > 0);
+
+        return letters.toString();
+    }
+
+    private static ProductCatalog build(Path directory, String fileName, String contents, int runSize) throws IOException {
+        Path input = directory.resolve(fileName);
+        Files.writeString(input, contents, StandardCharsets.UTF_8);
+
+        Path output = directory.resolve("catalog-" + runSize);
+        ProductCatalog.importCatalog(input, output, runSize);
+
+        return ProductCatalog.open(output);
+    }
+
+    private static String render(List<Product> products) {
+        StringBuilder out = new StringBuilder();
+        for (Product product : products) {
+            out.append(product.name).append(" | ").append(product.amount).append(' ').append(product.unit)
+                .append(" | ").append(product.shelfLifeDays).append(" days | ").append(product.matchedTokens).append('\n');
+        }
+
+        return out.toString();
+    }
+
+    private static void checkLookups(ProductCatalog catalog) {
+        List<Product> chicken = catalog.lookup("CHKN BRST", 5);
+        assertEquals(0, chicken.size(), "abbreviations aren't in the catalog");
+
+        chicken = catalog.lookup("chicken breast 2lb", 5);
+        assertEquals(
+            "Boneless Chicken Breast | 2.0 lb | 3 days | 2\n"
+            + "Chicken Noodle Soup\nFamily Size | 1.5 L | 730 days | 1\n",
+            render(chicken));
+
+        assertEquals("Whole Milk | 1.0 gal | 10 days | 2\n", render(catalog.lookup("WHOLE MILK", 5)));
+        assertEquals("Cheddar Cheese, Sharp | 8.0 oz | 30 days | 1\n", render(catalog.lookup("cheddar", 5)));
+        assertEquals("Frozen Peas | 500.0 g | 180 days | 1\n", render(catalog.lookup("peas", 5)));
+        assertEquals("Orange Juice | 52.0 fl oz | 30 days | 2\n", render(catalog.lookup("orange juice", 5)));
+
+        // No quantity means one of them
+        assertEquals("Bananas | 1.0 count | 30 days | 1\n", render(catalog.lookup("BANANAS", 5)));
+
+        // Best match first, then the limit
+        assertEquals(1, catalog.lookup("chicken breast", 1).size());
+        assertEquals("Boneless Chicken Breast", catalog.lookup("chicken breast", 1).get(0).name);
+
+        // Numbers and single letters don't match anything
+        assertEquals(0, catalog.lookup("2 LB", 5).size());
+        assertEquals(0, catalog.lookup("nothing here", 5).size());
+    }
+
+    @Test
+    public void csvImport() throws IOException {
+        Path directory = Files.createTempDirectory("catalog");
+        try {
+            checkLookups(build(directory, "products.csv", CSV, 1_000));
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void tsvImport() throws IOException {
+        Path directory = Files.createTempDirectory("catalog");
+        try {
+            String tsv = String.join("\n",
+                "product_name\tquantity\tcategories",
+                "Whole Milk\t1 gal\tDairies",
+                "Frozen Peas\t500 g\tFrozen foods"
+            ) + "\n";
+
+            ProductCatalog catalog = build(directory, "products.tsv", tsv, 1_000);
+
+            assertEquals("Whole Milk | 1.0 gal | 10 days | 2\n", render(catalog.lookup("whole milk", 5)));
+            assertEquals("Frozen Peas | 500.0 g | 180 days | 1\n", render(catalog.lookup("peas", 5)));
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void jsonlImport() throws IOException {
+        Path directory = Files.createTempDirectory("catalog");
+        try {
+            checkLookups(build(directory, "products.jsonl", JSONL, 1_000));
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void spilledRunsMergeTheSame() throws IOException {
+        Path directory = Files.createTempDirectory("catalog");
+        try {
+            // A run every few tokens, so every postings list is spread over several runs
+            for (int runSize : new int[] {1, 2, 3, 5})
+                checkLookups(build(directory, "products.csv", CSV, runSize));
+
+            // The runs are cleaned up
+            try (Stream<Path> files = Files.list(directory.resolve("catalog-1"))) {
+                assertEquals(List.of(ProductCatalog.PRODUCTS_FILE, ProductCatalog.TOKENS_FILE),
+                    files.map((Path path) -> path.getFileName().toString()).sorted().toList());
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void manyProducts() throws IOException {
+        Path directory = Files.createTempDirectory("catalog");
+        try {
+            // Offsets big enough to need multi-byte varint deltas, and a token in every product
+            StringBuilder csv = new StringBuilder("product_name,quantity\n");
+            for (int i = 0; i < 5_000; i++)
+                csv.append("Product").append(letters(i)).append(" Snack Mix,").append(i % 100 + 1).append(" g\n");
+
+            ProductCatalog catalog = build(directory, "products.csv", csv.toString(), 4_096);
+
+            for (int i = 0; i < 5_000; i += 499) {
+                List<Product> products = catalog.lookup("PRODUCT" + letters(i) + " SNACK", 3);
+
+                assertEquals("Product" + letters(i) + " Snack Mix", products.get(0).name);
+                assertEquals(2, products.get(0).matchedTokens);
+                assertEquals(i % 100 + 1, products.get(0).amount, 1e-6);
+                assertTrue(products.get(1).matchedTokens < 2);
+            }
+
+            assertEquals(10, catalog.lookup("mix", 10).size());
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void csvWithoutNamesIsRejected() throws IOException {
+        Path directory = Files.createTempDirectory("catalog");
+        try {
+            Path input = directory.resolve("products.csv");
+            Files.writeString(input, "code,quantity\n1,2 lbs\n", StandardCharsets.UTF_8);
+
+            assertThrows(IOException.class, () -> ProductCatalog.importCatalog(input, directory.resolve("catalog")));
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+}
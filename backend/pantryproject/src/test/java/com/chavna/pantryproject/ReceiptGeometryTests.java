@@ -0,0 +1,73 @@
+package com.chavna.pantryproject;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.chavna.pantryproject.ReceiptParser.Word;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class ReceiptGeometryTests {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    static ReceiptGeometry geometry(List<String> texts, List<float[]> polygons) {
+        ReceiptGeometry geometry = new ReceiptGeometry(texts.size());
+        for (int w = 0; w < texts.size(); w++) {
+            geometry.addWord(texts.get(w));
+
+            float[] polygon = polygons.get(w);
+            for (int i = 0; i < polygon.length; i += 2)
+                geometry.addPoint(polygon[i], polygon[i + 1]);
+        }
+
+        geometry.process();
+
+        return geometry;
+    }
+
+    @Test
+    public void sameJsonAsObjectPath() throws JsonProcessingException {
+        double[] angles = {0, 0.02, -0.05, 0.1};
+
+        for (int size : new int[] {1, 100, 1000, 5000}) {
+            for (double angle : angles) {
+                List<Word> words = SyntheticReceipts.generate(size, size);
+                List<String> texts = SyntheticReceipts.texts(words);
+                List<float[]> polygons = SyntheticReceipts.skewedPolygons(words, angle);
+
+                String expected = mapper.writeValueAsString(LegacyOcrPostProcessing.process(texts, polygons));
+                String actual = mapper.writeValueAsString(geometry(texts, polygons));
+
+                assertEquals(expected, actual, "size " + size + " angle " + angle);
+            }
+        }
+    }
+
+    @Test
+    public void wordsWithoutEnoughPointsAreDropped() throws JsonProcessingException {
+        ReceiptGeometry geometry = new ReceiptGeometry(2);
+        geometry.addWord("BROKEN");
+        geometry.addPoint(0.1f, 0.1f);
+        geometry.addWord("MILK");
+        geometry.addPoint(0.1f, 0.2f);
+        geometry.addPoint(0.2f, 0.2f);
+        geometry.addPoint(0.2f, 0.21f);
+        geometry.addPoint(0.1f, 0.21f);
+
+        geometry.process();
+
+        assertEquals(1, geometry.getWordCount());
+        assertEquals(1, geometry.getLineCount());
+    }
+
+    @Test
+    public void emptyReceipt() throws JsonProcessingException {
+        ReceiptGeometry geometry = new ReceiptGeometry(0);
+        geometry.process();
+
+        assertEquals("[]", mapper.writeValueAsString(geometry));
+    }
+}
@@ -0,0 +1,121 @@
+package com.chavna.pantryproject;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.chavna.pantryproject.TextractFixtures.Fixture;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/***
+ * Runs every fixture in src/test/resources/receipts through the same steps as scan-receipt with structured set, and
+ * compares the result to <fixture>.golden.json. Numbers only have to be within TOLERANCE so a different but equally
+ * good float order doesn't fail, anything else has to match exactly.
+ *
+ * When the output is supposed to change, rerun with UPDATE_GOLDEN=true in the environment and review the diff.
+ */
+public class ReceiptGoldenTests {
+    private static final double TOLERANCE = 1e-6;
+    private static final Path GOLDEN_DIRECTORY = Path.of("src/test/resources/receipts");
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    static JsonNode output(Fixture fixture) {
+        ReceiptGeometry geometry = fixture.geometry();
+        geometry.process();
+
+        ReceiptStructure structure = new ReceiptStructure(geometry);
+
+        ObjectNode output = mapper.createObjectNode();
+        output.set("lines", mapper.valueToTree(geometry));
+        output.set("items", mapper.valueToTree(structure.getItems()));
+        output.set("total", mapper.valueToTree(structure.getTotal()));
+
+        return output;
+    }
+
+    @Test
+    public void fixturesMatchGolden() throws IOException {
+        boolean update = "true".equals(System.getenv("UPDATE_GOLDEN"));
+
+        for (String name : TextractFixtures.NAMES) {
+            JsonNode actual = output(TextractFixtures.load(name));
+
+            if (update) {
+                mapper.writer(SerializationFeature.INDENT_OUTPUT).writeValue(GOLDEN_DIRECTORY.resolve(name + ".golden.json").toFile(), actual);
+                continue;
+            }
+
+            try (InputStream in = ReceiptGoldenTests.class.getResourceAsStream("/receipts/" + name + ".golden.json")) {
+                if (in == null)
+                    fail("No golden output for " + name + ", run with UPDATE_GOLDEN=true to create it.");
+
+                assertMatches(mapper.readTree(in), actual, name);
+            }
+        }
+    }
+
+    // The line grouping has two implementations, they have to agree on every fixture
+    @Test
+    public void parserMatchesGeometry() {
+        for (String name : TextractFixtures.NAMES) {
+            Fixture fixture = TextractFixtures.load(name);
+            ReceiptGeometry geometry = fixture.geometry();
+            geometry.process();
+
+            ReceiptParser parser = new ReceiptParser();
+            for (ReceiptParser.Word word : fixture.straightenedWords(geometry))
+                parser.addWord(word);
+
+            assertEquals(mapper.valueToTree(parser.getLines()), mapper.valueToTree(geometry), name);
+        }
+    }
+
+    @Test
+    public void messyBlocksAreSkipped() {
+        Fixture fixture = TextractFixtures.load("messy");
+        ReceiptGeometry geometry = fixture.geometry();
+        geometry.process();
+
+        // Missing geometry, missing text and a null polygon are dropped when loading, the single point word after that
+        assertEquals(fixture.texts.size() - 1, geometry.getWordCount());
+        assertTrue(fixture.texts.size() > 0);
+    }
+
+    private static void assertMatches(JsonNode expected, JsonNode actual, String path) {
+        if (expected.isNumber() && actual.isNumber()) {
+            if (Math.abs(expected.doubleValue() - actual.doubleValue()) > TOLERANCE)
+                fail(path + ": expected " + expected + " but was " + actual);
+
+            return;
+        }
+
+        if (expected.getNodeType() != actual.getNodeType() || expected.size() != actual.size())
+            fail(path + ": expected " + expected + " but was " + actual);
+
+        if (expected.isArray()) {
+            for (int i = 0; i < expected.size(); i++)
+                assertMatches(expected.get(i), actual.get(i), path + "[" + i + "]");
+        } else if (expected.isObject()) {
+            for (Map.Entry<String, JsonNode> field : expected.properties()) {
+                if (!actual.has(field.getKey()))
+                    fail(path + ": missing " + field.getKey());
+
+                assertMatches(field.getValue(), actual.get(field.getKey()), path + "." + field.getKey());
+            }
+        } else if (!expected.equals(actual)) {
+            fail(path + ": expected " + expected + " but was " + actual);
+        }
+    }
+}
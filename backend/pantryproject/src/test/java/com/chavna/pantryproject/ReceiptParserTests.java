@@ -0,0 +1,98 @@
+package com.chavna.pantryproject;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.chavna.pantryproject.ReceiptParser.LineBlock;
+import com.chavna.pantryproject.ReceiptParser.Word;
+
+public class ReceiptParserTests {
+    private static final int[] SIZES = {1, 100, 1000, 5000};
+
+    private static String render(LineBlock[] lines) {
+        StringBuilder out = new StringBuilder();
+        for (LineBlock line : lines) {
+            out.append(line.getX()).append(',').append(line.getY()).append(',')
+                .append(line.getWidth()).append(',').append(line.getHeight()).append(':');
+
+            for (Word word : line.getWords())
+                out.append(' ').append(word.getText());
+
+            out.append('\n');
+        }
+
+        return out.toString();
+    }
+
+    private static String render(LegacyReceiptParser.LineBlock[] lines) {
+        StringBuilder out = new StringBuilder();
+        for (LegacyReceiptParser.LineBlock line : lines) {
+            out.append(line.x).append(',').append(line.y).append(',')
+                .append(line.width).append(',').append(line.height).append(':');
+
+            for (Word word : line.words)
+                out.append(' ').append(word.getText());
+
+            out.append('\n');
+        }
+
+        return out.toString();
+    }
+
+    @Test
+    public void sweepMatchesLegacy() {
+        for (int size : SIZES) {
+            for (long seed = 0; seed < 5; seed++) {
+                List<Word> words = SyntheticReceipts.generate(size, seed);
+
+                ReceiptParser parser = new ReceiptParser();
+                LegacyReceiptParser legacy = new LegacyReceiptParser();
+                for (Word word : words) {
+                    parser.addWord(word);
+                    legacy.addWord(word);
+                }
+
+                assertEquals(render(legacy.getLines()), render(parser.getLines()), "size " + size + " seed " + seed);
+            }
+        }
+    }
+
+    @Test
+    public void insertionOrderDoesNotMatter() {
+        List<Word> words = new ArrayList<>(SyntheticReceipts.generate(1000, 0));
+        Random rng = new Random(0);
+
+        String expected = null;
+        for (int i = 0; i < 5; i++) {
+            Collections.shuffle(words, rng);
+
+            ReceiptParser parser = new ReceiptParser();
+            for (Word word : words)
+                parser.addWord(word);
+
+            String lines = render(parser.getLines());
+            if (expected == null)
+                expected = lines;
+
+            assertEquals(expected, lines);
+        }
+    }
+
+    @Test
+    public void wordsWithTheSameXAreKept() {
+        // The old parser dropped one of them since its word set compared by x
+        ReceiptParser parser = new ReceiptParser();
+        parser.addWord(SyntheticReceipts.word(0.1f, 0.1f, 0.05f, 0.01f, "A"));
+        parser.addWord(SyntheticReceipts.word(0.1f, 0.1005f, 0.05f, 0.01f, "B"));
+
+        LineBlock[] lines = parser.getLines();
+        assertEquals(1, lines.length);
+        assertEquals(2, lines[0].getWords().length);
+    }
+}
@@ -0,0 +1,131 @@
+package com.chavna.pantryproject;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.chavna.pantryproject.ReceiptParser.Word;
+import com.chavna.pantryproject.ReceiptStructure.LineItem;
+
+public class ReceiptStructureTests {
+    private static final float CHARACTER = 0.012f;
+    private static final float HEIGHT = 0.012f;
+
+    // Words of one line, each given as "x:text"
+    private static void line(List<Word> words, float y, String... placed) {
+        for (String word : placed) {
+            int colon = word.indexOf(':');
+            float x = Float.parseFloat(word.substring(0, colon));
+            String text = word.substring(colon + 1);
+
+            words.add(SyntheticReceipts.word(x, y, text.length() * CHARACTER, HEIGHT, text));
+        }
+    }
+
+    private static ReceiptStructure structure(List<Word> words) {
+        return new ReceiptStructure(ReceiptGeometryTests.geometry(SyntheticReceipts.texts(words), SyntheticReceipts.skewedPolygons(words, 0)));
+    }
+
+    @Test
+    public void readsQuantitiesWrappedDescriptionsAndDiscounts() {
+        List<Word> words = new ArrayList<>();
+        line(words, 0.02f, "0.30:FRESH", "0.40:MARKET");
+        line(words, 0.05f, "0.05:MILK", "0.11:WHL", "0.16:GAL", "0.76:3.49", "0.83:F");
+        line(words, 0.08f, "0.05:BANANAS");
+        line(words, 0.11f, "0.07:2.5", "0.11:LB", "0.14:@", "0.16:0.59/LB", "0.79:1.48");
+        line(words, 0.14f, "0.05:YOG", "0.10:GRK", "0.79:5.97");
+        line(words, 0.17f, "0.07:3", "0.09:@", "0.11:1.99");
+        line(words, 0.20f, "0.05:ORG", "0.10:SPINACH");
+        line(words, 0.23f, "0.05:BABY", "0.11:LEAF", "0.79:4.99");
+        line(words, 0.26f, "0.05:COUPON", "0.77:1.00-");
+        line(words, 0.29f, "0.05:SUBTOTAL", "0.76:13.93");
+        line(words, 0.32f, "0.05:TOTAL", "0.76:13.93");
+        line(words, 0.35f, "0.05:VISA", "0.76:13.93");
+
+        ReceiptStructure structure = structure(words);
+        List<LineItem> items = structure.getItems();
+
+        assertEquals(4, items.size());
+
+        assertEquals("MILK WHL GAL", items.get(0).description);
+        assertEquals(3.49, items.get(0).price, 1e-9);
+        assertNull(items.get(0).quantity);
+
+        assertEquals("BANANAS", items.get(1).description);
+        assertEquals(2.5, items.get(1).quantity, 1e-9);
+        assertEquals(0.59, items.get(1).unitPrice, 1e-9);
+        assertEquals(1.48, items.get(1).price, 1e-9);
+
+        assertEquals("YOG GRK", items.get(2).description);
+        assertEquals(3, items.get(2).quantity, 1e-9);
+        assertEquals(1.99, items.get(2).unitPrice, 1e-9);
+
+        assertEquals("ORG SPINACH BABY LEAF", items.get(3).description);
+        assertEquals(3.99, items.get(3).price, 1e-9);
+
+        assertEquals(13.93, structure.getTotal(), 1e-9);
+    }
+
+    @Test
+    public void matchesPricesSplitOffTheirLine() {
+        List<Word> words = new ArrayList<>();
+        line(words, 0.05f, "0.05:MILK", "0.76:3.49");
+        line(words, 0.08f, "0.05:EGGS", "0.76:2.99");
+        line(words, 0.11f, "0.05:RICE", "0.11:LONG", "0.17:GRAIN");
+        // Printed between the lines, so the sweep leaves it on its own
+        line(words, 0.1145f, "0.76:1.89");
+        line(words, 0.14f, "0.05:BUTTER", "0.76:4.29");
+
+        List<LineItem> items = structure(words).getItems();
+
+        assertEquals(4, items.size());
+        assertEquals("RICE LONG GRAIN", items.get(2).description);
+        assertEquals(1.89, items.get(2).price, 1e-9);
+        assertEquals("BUTTER", items.get(3).description);
+    }
+
+    @Test
+    public void quantityColumn() {
+        List<Word> words = new ArrayList<>();
+        line(words, 0.05f, "0.02:2", "0.06:MILK", "0.76:6.98");
+        line(words, 0.08f, "0.02:1", "0.06:EGGS", "0.76:2.99");
+        line(words, 0.11f, "0.02:4", "0.06:YOG", "0.76:3.96");
+
+        List<LineItem> items = structure(words).getItems();
+
+        assertEquals(3, items.size());
+        assertEquals("MILK", items.get(0).description);
+        assertEquals(2, items.get(0).quantity, 1e-9);
+        assertEquals(3.49, items.get(0).unitPrice, 1e-9);
+    }
+
+    @Test
+    public void longReceiptAddsUpToItsTotal() {
+        for (int itemCount : new int[] {5, 50, 500}) {
+            ReceiptStructure structure = structure(SyntheticReceipts.groceryReceipt(itemCount, itemCount));
+
+            double sum = 0;
+            for (LineItem item : structure.getItems())
+                sum += item.price;
+
+            assertEquals(itemCount, structure.getItems().size(), "items " + itemCount);
+            assertEquals((double) structure.getTotal(), sum, 1e-6, "items " + itemCount);
+        }
+    }
+
+    @Test
+    public void noPrices() {
+        List<Word> words = new ArrayList<>();
+        line(words, 0.05f, "0.05:THANK", "0.12:YOU");
+
+        ReceiptStructure structure = structure(words);
+
+        assertTrue(structure.getItems().isEmpty());
+        assertNull(structure.getTotal());
+    }
+}
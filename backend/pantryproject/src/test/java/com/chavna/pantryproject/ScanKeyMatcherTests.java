@@ -0,0 +1,139 @@
+package com.chavna.pantryproject;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import com.chavna.pantryproject.ScanKeyMatcher.Candidate;
+import com.chavna.pantryproject.ScanKeyMatcher.DeletionIndex;
+
+public class ScanKeyMatcherTests {
+    private static final UUID BANANAS = UUID.randomUUID();
+    private static final UUID CHICKEN = UUID.randomUUID();
+    private static final UUID CHEESE = UUID.randomUUID();
+
+    // Keys go in normalized, the way set-scan-key stores them
+    private static DeletionIndex index() {
+        DeletionIndex keys = new DeletionIndex();
+        keys.put(ScanKeys.normalize("BANANAS"), "BANANAS", BANANAS);
+        keys.put(ScanKeys.normalize("CHKN BRST 2LB"), "CHKN BRST 2LB", CHICKEN);
+        keys.put(ScanKeys.normalize("CHEDDAR CHS"), "CHEDDAR CHS", CHEESE);
+
+        return keys;
+    }
+
+    private static List<Candidate> match(DeletionIndex keys, String key) {
+        return ScanKeyMatcher.matchKey(keys, key, 5, new ArrayList<>());
+    }
+
+    @Test
+    public void exactMatch() {
+        List<Candidate> candidates = match(index(), "chkn brst 2 lbs");
+
+        assertEquals(1, candidates.size());
+        assertEquals(CHICKEN, candidates.get(0).templateId);
+        assertEquals("CHKN BRST 2LB", candidates.get(0).scanText);
+        assertEquals(0, candidates.get(0).distance);
+    }
+
+    @Test
+    public void shortKeysMatchAtDistanceOne() {
+        // Digits split letters apart when normalized, but matching ignores spaces
+        List<Candidate> candidates = match(index(), "B4NANAS");
+
+        assertEquals(1, candidates.size());
+        assertEquals(BANANAS, candidates.get(0).templateId);
+        assertEquals(1, candidates.get(0).distance);
+
+        assertEquals(BANANAS, match(index(), "BANANA").get(0).templateId);
+    }
+
+    @Test
+    public void shortKeysMissAtDistanceTwo() {
+        assertNull(match(index(), "B4NAN4S"));
+        assertNull(match(index(), "BNANS"));
+    }
+
+    @Test
+    public void longKeysMatchAtDistanceTwo() {
+        List<Candidate> candidates = match(index(), "CHXN BRS7 2LB");
+
+        assertEquals(1, candidates.size());
+        assertEquals(CHICKEN, candidates.get(0).templateId);
+        assertEquals(2, candidates.get(0).distance);
+
+        // A deletion and an insertion
+        assertEquals(2, match(index(), "CHEDAR CHSE").get(0).distance);
+    }
+
+    @Test
+    public void longKeysMissAtDistanceThree() {
+        assertNull(match(index(), "CHXN BR57 2LB"));
+        assertNull(match(index(), "CHDR CHESE"));
+    }
+
+    @Test
+    public void closestComesFirst() {
+        DeletionIndex keys = index();
+        UUID bananas2 = UUID.randomUUID();
+        keys.put(ScanKeys.normalize("BANANAS 2"), "BANANAS 2", bananas2);
+
+        List<Candidate> candidates = match(keys, "BANANAS");
+
+        assertEquals(2, candidates.size());
+        assertEquals(BANANAS, candidates.get(0).templateId);
+        assertEquals(0, candidates.get(0).distance);
+        assertEquals(bananas2, candidates.get(1).templateId);
+        assertEquals(1, candidates.get(1).distance);
+
+        assertEquals(1, ScanKeyMatcher.matchKey(keys, "BANANAS", 1, new ArrayList<>()).size());
+    }
+
+    @Test
+    public void setScanKeyUpdatesMatches() {
+        DeletionIndex keys = index();
+
+        // set-scan-key pointing an existing key at another template
+        UUID plantains = UUID.randomUUID();
+        keys.put(ScanKeys.normalize("BANANAS"), "bananas", plantains);
+
+        List<Candidate> candidates = match(keys, "B4NANAS");
+        assertEquals(1, candidates.size());
+        assertEquals(plantains, candidates.get(0).templateId);
+        assertEquals("bananas", candidates.get(0).scanText);
+
+        // A new key is found right away
+        UUID milk = UUID.randomUUID();
+        keys.put(ScanKeys.normalize("WHL MILK 1GAL"), "WHL MILK 1GAL", milk);
+        assertEquals(milk, match(keys, "WHL M1LK 1 GAL").get(0).templateId);
+
+        // A removed key isn't, until it's set again
+        keys.remove(ScanKeys.normalize("BANANAS"));
+        assertNull(match(keys, "B4NANAS"));
+
+        keys.put(ScanKeys.normalize("BANANAS"), "BANANAS", BANANAS);
+        assertEquals(BANANAS, match(keys, "B4NANAS").get(0).templateId);
+    }
+
+    @Test
+    public void boundedDistance() {
+        assertEquals(3, ScanKeyMatcher.distance("KITTEN", "SITTING", 5));
+        assertEquals(0, ScanKeyMatcher.distance("KITTEN", "KITTEN", 0));
+        assertEquals(1, ScanKeyMatcher.distance("KITTEN", "KITTENS", 2));
+
+        // Over the bound gives bound + 1, whether from the lengths or partway through
+        assertEquals(2, ScanKeyMatcher.distance("KITTEN", "SITTING", 1));
+        assertEquals(3, ScanKeyMatcher.distance("A", "ABCD", 2));
+    }
+
+    @Test
+    public void emptyKeyMatchesNothing() {
+        assertNull(match(index(), ""));
+        assertNull(match(index(), " - "));
+    }
+}
@@ -0,0 +1,66 @@
+package com.chavna.pantryproject;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class ScanKeysTests {
+    @Test
+    public void spacingAndCaseDontMatter() {
+        assertEquals("CHKN BRST 2 LB", ScanKeys.normalize("CHKN BRST 2LB"));
+        assertEquals("CHKN BRST 2 LB", ScanKeys.normalize("CHKN BRST 2 LB"));
+        assertEquals("CHKN BRST 2 LB", ScanKeys.normalize("chkn  brst 2lb"));
+        assertEquals("CHKN BRST 2 LB", ScanKeys.normalize("  Chkn\tBrst 2 lb  "));
+    }
+
+    @Test
+    public void punctuationIsSpace() {
+        assertEquals("CHKN BRST 2 LB", ScanKeys.normalize("CHKN-BRST, 2LB."));
+        assertEquals("HALF HALF", ScanKeys.normalize("HALF & HALF"));
+        assertEquals("BEN JERRY S", ScanKeys.normalize("BEN&JERRY'S"));
+    }
+
+    @Test
+    public void dotsStayInsideNumbers() {
+        assertEquals("MILK 1.5 GAL", ScanKeys.normalize("MILK 1.5GAL"));
+        assertEquals("SODA 2 L", ScanKeys.normalize("SODA 2. L"));
+        assertEquals("ORG BANANAS", ScanKeys.normalize("ORG.BANANAS"));
+    }
+
+    @Test
+    public void lettersAndDigitsAreSplit() {
+        assertEquals("B 4 NANAS", ScanKeys.normalize("B4NANAS"));
+        assertEquals("12 OZ", ScanKeys.normalize("12oz"));
+    }
+
+    @Test
+    public void unitsAfterNumbersAreAliased() {
+        assertEquals("CHKN BRST 2 LB", ScanKeys.normalize("chkn brst 2lbs"));
+        assertEquals("BEEF 3 LB", ScanKeys.normalize("BEEF 3 POUNDS"));
+        assertEquals("BEEF 1 LB", ScanKeys.normalize("BEEF 1 POUND"));
+        assertEquals("CHIPS 6 OZ", ScanKeys.normalize("CHIPS 6 OUNCES"));
+        assertEquals("WATER 24 PK", ScanKeys.normalize("WATER 24PACK"));
+    }
+
+    @Test
+    public void unitsWithoutNumbersStay() {
+        assertEquals("POUND CAKE", ScanKeys.normalize("POUND CAKE"));
+        assertEquals("SIX PACK ABS", ScanKeys.normalize("six pack abs"));
+    }
+
+    @Test
+    public void emptyText() {
+        assertEquals("", ScanKeys.normalize(""));
+        assertEquals("", ScanKeys.normalize(" .,- "));
+    }
+
+    @Test
+    public void normalizedTextStaysTheSame() {
+        String[] texts = {"chkn brst 2lbs", "MILK 1.5GAL", "B4NANAS", "POUND CAKE", "HALF & HALF", "WATER 24PACK"};
+
+        for (String text : texts) {
+            String normalized = ScanKeys.normalize(text);
+            assertEquals(normalized, ScanKeys.normalize(normalized), text);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.chavna.pantryproject;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.chavna.pantryproject.ReceiptParser.Point;
+import com.chavna.pantryproject.ReceiptParser.Word;
+
+/***
+ * Generates straightened receipt words for the parser: lines of a few words with some vertical jitter,
+ * separated by a gap, in random order like Textract returns them.
+ */
+public class SyntheticReceipts {
+    private static final String[] ITEMS = {
+        "CHKN", "BRST", "MILK", "WHL", "GAL", "BANANAS", "YOG", "GRK", "EGGS", "LG", "BRD", "WHT", "CHDR", "SHRD",
+        "APPL", "GALA", "RICE", "PASTA", "BUTTER", "TOMATO", "ONION", "ORG", "SPINACH", "CEREAL"
+    };
+
+    private static final float LINE_HEIGHT = 0.012f;
+    private static final float LINE_GAP = 0.008f;
+    private static final float JITTER = 0.002f;
+
+    public static List<Word> generate(int wordCount, long seed) {
+        Random rng = new Random(seed);
+        List<Word> words = new ArrayList<>(wordCount);
+
+        float lineTop = 0.01f;
+        while (words.size() < wordCount) {
+            int lineWords = Math.min(2 + rng.nextInt(4), wordCount - words.size());
+
+            float x = 0.02f + rng.nextFloat() * 0.02f;
+            for (int i = 0; i < lineWords; i++) {
+                String text = i == lineWords - 1 && lineWords > 1
+                    ? String.format("%d.%02d", rng.nextInt(30), rng.nextInt(100))
+                    : ITEMS[rng.nextInt(ITEMS.length)];
+
+                float width = text.length() * 0.012f;
+                float y = lineTop + (rng.nextFloat() * 2 - 1) * JITTER;
+                float height = LINE_HEIGHT + (rng.nextFloat() * 2 - 1) * JITTER / 2;
+
+                words.add(word(x, y, width, height, text));
+
+                x += width + 0.01f + rng.nextFloat() * 0.03f;
+            }
+
+            lineTop += LINE_HEIGHT + LINE_GAP;
+        }
+
+        Collections.shuffle(words, rng);
+
+        return words;
+    }
+
+    /***
+     * Polygons of the words rotated by angle (radians) around the top left corner, like a photo taken at an angle.
+     * Each polygon is {x0, y0, x1, y1, ...} starting at the top left corner and going clockwise.
+     */
+    public static List<float[]> skewedPolygons(List<Word> words, double angle) {
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+
+        List<float[]> polygons = new ArrayList<>(words.size());
+        for (Word word : words) {
+            Point[] points = word.getOriginalPolygon();
+            float[] polygon = new float[points.length * 2];
+            for (int i = 0; i < points.length; i++) {
+                polygon[i * 2] = (float) (points[i].x * cos - points[i].y * sin);
+                polygon[i * 2 + 1] = (float) (points[i].x * sin + points[i].y * cos);
+            }
+
+            polygons.add(polygon);
+        }
+
+        return polygons;
+    }
+
+    public static List<String> texts(List<Word> words) {
+        List<String> texts = new ArrayList<>(words.size());
+        for (Word word : words)
+            texts.add(word.getText());
+
+        return texts;
+    }
+
+    /***
+     * A grocery receipt with itemCount items: descriptions on the left and prices right aligned, some items with a
+     * "2 @ 1.99" line under them, some descriptions wrapped over two lines, then subtotal, tax, total and payment.
+     * The total is the sum of the item prices.
+     */
+    public static List<Word> groceryReceipt(int itemCount, long seed) {
+        Random rng = new Random(seed);
+        List<Word> words = new ArrayList<>();
+
+        float[] lineTop = {0.01f};
+        addLine(words, rng, lineTop, 0.3f, "FRESH", "MARKET", "#123");
+        addLine(words, rng, lineTop, 0.25f, "100", "MAIN", "ST");
+
+        int totalCents = 0;
+        for (int i = 0; i < itemCount; i++) {
+            String first = ITEMS[rng.nextInt(ITEMS.length)];
+            String second = ITEMS[rng.nextInt(ITEMS.length)];
+
+            int roll = rng.nextInt(10);
+            if (roll < 2) {
+                int quantity = 2 + rng.nextInt(4);
+                int unitCents = 50 + rng.nextInt(500);
+                addLine(words, rng, lineTop, 0.05f, first, second);
+                addPricedLine(words, rng, lineTop, quantity * unitCents, String.valueOf(quantity), "@", cents(unitCents));
+                totalCents += quantity * unitCents;
+            } else {
+                int priceCents = 50 + rng.nextInt(2000);
+                if (roll == 2)
+                    addLine(words, rng, lineTop, 0.05f, "ORG", first);
+
+                addPricedLine(words, rng, lineTop, priceCents, first, second);
+                totalCents += priceCents;
+            }
+        }
+
+        addPricedLine(words, rng, lineTop, totalCents, "SUBTOTAL");
+        addPricedLine(words, rng, lineTop, 0, "TAX");
+        addPricedLine(words, rng, lineTop, totalCents, "TOTAL");
+        addPricedLine(words, rng, lineTop, totalCents, "VISA", "1234");
+
+        Collections.shuffle(words, rng);
+
+        return words;
+    }
+
+    /***
+     * A receipt laid out as a table: quantity, description, unit price and amount columns, then subtotal, tax and total.
+     */
+    public static List<Word> multiColumnReceipt(int itemCount, long seed) {
+        Random rng = new Random(seed);
+        List<Word> words = new ArrayList<>();
+
+        float[] lineTop = {0.01f};
+        addLine(words, rng, lineTop, 0.3f, "CORNER", "GROCER");
+
+        float y = lineTop[0];
+        addLine(words, rng, lineTop, 0.04f, "QTY", "DESCRIPTION");
+        addRightAligned(words, rng, y, 0.62f, "PRICE");
+        addRightAligned(words, rng, y, 0.88f, "AMOUNT");
+
+        int totalCents = 0;
+        for (int i = 0; i < itemCount; i++) {
+            int quantity = 1 + rng.nextInt(4);
+            int unitCents = 50 + rng.nextInt(900);
+
+            y = lineTop[0];
+            addLine(words, rng, lineTop, 0.04f, String.valueOf(quantity));
+            lineTop[0] = y;
+            addLine(words, rng, lineTop, 0.10f, ITEMS[rng.nextInt(ITEMS.length)], ITEMS[rng.nextInt(ITEMS.length)]);
+            addRightAligned(words, rng, y, 0.62f, cents(unitCents));
+            addRightAligned(words, rng, y, 0.88f, cents(quantity * unitCents));
+
+            totalCents += quantity * unitCents;
+        }
+
+        for (String label : new String[] {"SUBTOTAL", "TAX", "TOTAL"}) {
+            y = lineTop[0];
+            addLine(words, rng, lineTop, 0.10f, label);
+            addRightAligned(words, rng, y, 0.88f, cents(label.equals("TAX") ? 0 : totalCents));
+        }
+
+        Collections.shuffle(words, rng);
+
+        return words;
+    }
+
+    private static void addRightAligned(List<Word> words, Random rng, float y, float right, String text) {
+        float width = text.length() * 0.012f;
+
+        words.add(word(right - width, y + (rng.nextFloat() * 2 - 1) * JITTER, width, LINE_HEIGHT, text));
+    }
+
+    private static String cents(int cents) {
+        return String.format("%d.%02d", cents / 100, cents % 100);
+    }
+
+    private static void addPricedLine(List<Word> words, Random rng, float[] lineTop, int priceCents, String... description) {
+        String price = cents(priceCents);
+
+        float y = lineTop[0];
+        addLine(words, rng, lineTop, 0.05f, description);
+        addRightAligned(words, rng, y, 0.85f, price);
+    }
+
+    private static void addLine(List<Word> words, Random rng, float[] lineTop, float x, String... texts) {
+        for (String text : texts) {
+            float width = text.length() * 0.012f;
+            float y = lineTop[0] + (rng.nextFloat() * 2 - 1) * JITTER;
+
+            words.add(word(x, y, width, LINE_HEIGHT, text));
+
+            x += width + 0.012f;
+        }
+
+        lineTop[0] += LINE_HEIGHT + LINE_GAP;
+    }
+
+    public static Word word(float x, float y, float width, float height, String text) {
+        Point[] polygon = {
+            new Point(x, y),
+            new Point(x + width, y),
+            new Point(x + width, y + height),
+            new Point(x, y + height)
+        };
+
+        return new Word(x, y, width, height, polygon, text);
+    }
+
+    /***
+     * Something like a phone photo of a receipt: noisy off-white paper, with 20 lines of text starting at
+     * (textX, textY) pixels.
+     */
+    public static BufferedImage photo(int width, int height, int textX, int textY) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        Random rng = new Random(width * 31L + height);
+        for (int i = 0; i < pixels.length; i++) {
+            int noise = rng.nextInt(12);
+            pixels[i] = (235 - noise) << 16 | (230 - noise) << 8 | (220 - noise);
+        }
+
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(new Color(30, 30, 40));
+        graphics.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 48));
+        for (int line = 0; line < 20; line++) {
+            String text = String.format("%-8s %-8s %5d.%02d", ITEMS[rng.nextInt(ITEMS.length)], ITEMS[rng.nextInt(ITEMS.length)],
+                rng.nextInt(30), rng.nextInt(100));
+            graphics.drawString(text, textX, textY + 48 + line * 60);
+        }
+        graphics.dispose();
+
+        return image;
+    }
+}
@@ -1,7 +1,8 @@
 package com.chavna.pantryproject;
 
-import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
@@ -49,8 +50,8 @@ public class Tests {
                 upload.uploadChunk(i, chunk);
             }
 
-            byte[] data = upload.finish();
-            assertArrayEquals(bytes, data);
+            ByteBuffer data = upload.finish();
+            assertEquals(ByteBuffer.wrap(bytes), data);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,219 @@
+package com.chavna.pantryproject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import com.chavna.pantryproject.ReceiptParser.Point;
+import com.chavna.pantryproject.ReceiptParser.Word;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/***
+ * DetectDocumentText responses saved as JSON in src/test/resources/receipts, in the same format the Textract API
+ * returns ({"Blocks": [{"BlockType": "WORD", "Text": ..., "Geometry": {"Polygon": [{"X": ..., "Y": ...}]}}]}).
+ *
+ * The fixtures are generated from SyntheticReceipts so no real receipt ends up in the repo. To regenerate them:
+ * run main with src/test/resources/receipts as the argument.
+ */
+public class TextractFixtures {
+    public static final String[] NAMES = {"small", "skewed", "long", "multi-column", "messy"};
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    /***
+     * The WORD blocks TextractRecognizer.toGeometry would use, in the order Textract returned them.
+     */
+    public static class Fixture {
+        public final String name;
+        public final List<String> texts = new ArrayList<>();
+        public final List<float[]> polygons = new ArrayList<>();
+
+        Fixture(String name) {
+            this.name = name;
+        }
+
+        /***
+         * Unprocessed, call process() on it.
+         */
+        public ReceiptGeometry geometry() {
+            ReceiptGeometry geometry = new ReceiptGeometry(texts.size());
+            for (int w = 0; w < texts.size(); w++) {
+                geometry.addWord(texts.get(w));
+
+                float[] polygon = polygons.get(w);
+                for (int i = 0; i < polygon.length; i += 2)
+                    geometry.addPoint(polygon[i], polygon[i + 1]);
+            }
+
+            return geometry;
+        }
+
+        /***
+         * Straightened words for ReceiptParser, from a processed geometry of this fixture.
+         * Words without enough points to straighten are left out, like ReceiptGeometry does.
+         */
+        public List<Word> straightenedWords(ReceiptGeometry processed) {
+            List<Word> words = new ArrayList<>(processed.getWordCount());
+
+            int word = 0;
+            for (int w = 0; w < texts.size(); w++) {
+                float[] polygon = polygons.get(w);
+                if (polygon.length < 4)
+                    continue;
+
+                Point[] points = new Point[polygon.length / 2];
+                for (int i = 0; i < points.length; i++)
+                    points[i] = new Point(polygon[i * 2], polygon[i * 2 + 1]);
+
+                float minX = processed.minX(word);
+                float minY = processed.minY(word);
+                words.add(new Word(minX, minY, processed.maxX(word) - minX, processed.maxY(word) - minY, points, texts.get(w)));
+                word++;
+            }
+
+            return words;
+        }
+    }
+
+    public static Fixture load(String name) {
+        try (InputStream in = TextractFixtures.class.getResourceAsStream("/receipts/" + name + ".json")) {
+            if (in == null)
+                throw new IllegalArgumentException("No fixture named " + name);
+
+            return parse(name, mapper.readTree(in));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // Same checks as TextractRecognizer.toGeometry
+    static Fixture parse(String name, JsonNode response) {
+        Fixture fixture = new Fixture(name);
+
+        for (JsonNode block : response.path("Blocks")) {
+            if (!block.path("BlockType").asText().equals("WORD"))
+                continue;
+
+            JsonNode text = block.get("Text");
+            JsonNode polygon = block.path("Geometry").get("Polygon");
+            if (text == null || text.isNull() || polygon == null || polygon.isNull())
+                continue;
+
+            float[] points = new float[polygon.size() * 2];
+            for (int i = 0; i < polygon.size(); i++) {
+                points[i * 2] = polygon.get(i).path("X").floatValue();
+                points[i * 2 + 1] = polygon.get(i).path("Y").floatValue();
+            }
+
+            fixture.texts.add(text.asText());
+            fixture.polygons.add(points);
+        }
+
+        return fixture;
+    }
+
+    //                  //
+    //    GENERATING    //
+    //                  //
+
+    public static void main(String[] args) throws IOException {
+        Path directory = Path.of(args.length > 0 ? args[0] : "src/test/resources/receipts");
+
+        write(directory, "small", SyntheticReceipts.groceryReceipt(12, 1), 0, 0, 1);
+        write(directory, "skewed", SyntheticReceipts.groceryReceipt(40, 2), 0.06, 0.01, 2);
+        write(directory, "long", SyntheticReceipts.groceryReceipt(400, 3), 0.015, 0.005, 3);
+        write(directory, "multi-column", SyntheticReceipts.multiColumnReceipt(30, 4), -0.03, 0.005, 4);
+
+        // Blocks Textract sometimes sends back without everything filled in
+        ObjectNode messy = response(SyntheticReceipts.groceryReceipt(10, 5), 0.02, 0, 5);
+        ArrayNode blocks = (ArrayNode) messy.get("Blocks");
+        ((ObjectNode) blocks.get(3)).remove("Geometry");
+        ((ObjectNode) blocks.get(5)).remove("Text");
+        ((ObjectNode) blocks.get(7).get("Geometry")).putNull("Polygon");
+        ArrayNode polygon = (ArrayNode) blocks.get(9).get("Geometry").get("Polygon");
+        while (polygon.size() > 1)
+            polygon.remove(polygon.size() - 1);
+        mapper.writeValue(directory.resolve("messy.json").toFile(), messy);
+    }
+
+    private static void write(Path directory, String name, List<Word> words, double angle, double angleJitter, long seed) throws IOException {
+        mapper.writeValue(directory.resolve(name + ".json").toFile(), response(words, angle, angleJitter, seed));
+    }
+
+    /***
+     * The words rotated by angle, each one turned up to angleJitter more, as a DetectDocumentText response.
+     */
+    private static ObjectNode response(List<Word> words, double angle, double angleJitter, long seed) {
+        Random rng = new Random(seed);
+
+        ObjectNode response = mapper.createObjectNode();
+        ObjectNode metadata = response.putObject("DocumentMetadata");
+        metadata.put("Pages", 1);
+
+        ArrayNode blocks = response.putArray("Blocks");
+        ObjectNode page = blocks.addObject();
+        page.put("BlockType", "PAGE");
+        page.put("Id", new UUID(rng.nextLong(), rng.nextLong()).toString());
+
+        // Textract coordinates are fractions of the page, so long receipts get shrunk to fit
+        float extent = 0;
+        for (Word word : words) {
+            for (Point point : word.getOriginalPolygon())
+                extent = Math.max(extent, Math.max(point.x, point.y));
+        }
+        float scale = Math.min(1, 0.95f / extent);
+
+        for (Word word : words) {
+            float[] polygon = SyntheticReceipts.skewedPolygons(List.of(word), angle).get(0);
+            for (int i = 0; i < polygon.length; i++)
+                polygon[i] *= scale;
+
+            // Each word is also a bit off from the rest, turned around its own center
+            double jitter = (rng.nextDouble() * 2 - 1) * angleJitter;
+            float centerX = (polygon[0] + polygon[4]) / 2;
+            float centerY = (polygon[1] + polygon[5]) / 2;
+            for (int i = 0; i < polygon.length; i += 2) {
+                double x = polygon[i] - centerX;
+                double y = polygon[i + 1] - centerY;
+                polygon[i] = (float) (centerX + x * Math.cos(jitter) - y * Math.sin(jitter));
+                polygon[i + 1] = (float) (centerY + x * Math.sin(jitter) + y * Math.cos(jitter));
+            }
+
+            ObjectNode block = blocks.addObject();
+            block.put("BlockType", "WORD");
+            block.put("Confidence", 90 + rng.nextInt(1000) / 100.0);
+            block.put("Text", word.getText());
+            block.put("TextType", "PRINTED");
+            block.put("Id", new UUID(rng.nextLong(), rng.nextLong()).toString());
+
+            float minX = Math.min(Math.min(polygon[0], polygon[2]), Math.min(polygon[4], polygon[6]));
+            float minY = Math.min(Math.min(polygon[1], polygon[3]), Math.min(polygon[5], polygon[7]));
+            float maxX = Math.max(Math.max(polygon[0], polygon[2]), Math.max(polygon[4], polygon[6]));
+            float maxY = Math.max(Math.max(polygon[1], polygon[3]), Math.max(polygon[5], polygon[7]));
+
+            ObjectNode geometry = block.putObject("Geometry");
+            ObjectNode box = geometry.putObject("BoundingBox");
+            box.put("Width", maxX - minX);
+            box.put("Height", maxY - minY);
+            box.put("Left", minX);
+            box.put("Top", minY);
+
+            ArrayNode points = geometry.putArray("Polygon");
+            for (int i = 0; i < polygon.length; i += 2) {
+                ObjectNode point = points.addObject();
+                point.put("X", polygon[i]);
+                point.put("Y", polygon[i + 1]);
+            }
+        }
+
+        return response;
+    }
+}
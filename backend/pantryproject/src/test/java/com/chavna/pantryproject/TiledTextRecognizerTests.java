@@ -0,0 +1,265 @@
+package com.chavna.pantryproject;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+public class TiledTextRecognizerTests {
+    /***
+     * Reads "words" off images where every word is a solid rectangle in its own color, and the text is the color.
+     */
+    private static class RectangleRecognizer implements TextRecognizer {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger mostRunning = new AtomicInteger();
+        volatile long delayMillis;
+
+        @Override
+        public ReceiptGeometry recognize(byte[] bytes) {
+            calls.incrementAndGet();
+            mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+
+            try {
+                if (delayMillis > 0)
+                    Thread.sleep(delayMillis);
+
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+                int width = image.getWidth();
+                int height = image.getHeight();
+
+                ReceiptGeometry geometry = new ReceiptGeometry(16);
+                boolean[] seen = new boolean[width * height];
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        int rgb = image.getRGB(x, y) & 0xFFFFFF;
+                        if (rgb == 0xFFFFFF || seen[y * width + x])
+                            continue;
+
+                        int right = x;
+                        while (right + 1 < width && (image.getRGB(right + 1, y) & 0xFFFFFF) == rgb)
+                            right++;
+                        int bottom = y;
+                        while (bottom + 1 < height && (image.getRGB(x, bottom + 1) & 0xFFFFFF) == rgb)
+                            bottom++;
+
+                        for (int j = y; j <= bottom; j++) {
+                            for (int i = x; i <= right; i++)
+                                seen[j * width + i] = true;
+                        }
+
+                        float minX = (float) x / width;
+                        float minY = (float) y / height;
+                        float maxX = (float) (right + 1) / width;
+                        float maxY = (float) (bottom + 1) / height;
+
+                        geometry.addWord(Integer.toHexString(rgb));
+                        geometry.addPoint(minX, minY);
+                        geometry.addPoint(maxX, minY);
+                        geometry.addPoint(maxX, maxY);
+                        geometry.addPoint(minX, maxY);
+                    }
+                }
+
+                return geometry;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    private static TiledTextRecognizer tiled(TextRecognizer recognizer) {
+        return TiledTextRecognizer.builder()
+            .recognizer(recognizer)
+            .tileAspect(2)
+            .overlapAspect(0.2)
+            .threads(4)
+            .maxQueued(8)
+            .build();
+    }
+
+    /***
+     * A width x height PNG with rows of 3 words, a row every 25 pixels.
+     */
+    private static byte[] receipt(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, width, height);
+
+        int color = 1;
+        for (int y = 5; y + 10 < height; y += 25) {
+            for (int x = 10; x + 40 < width; x += 65) {
+                graphics.setColor(new Color(color));
+                graphics.fillRect(x, y, 40, 10);
+                color += 7;
+            }
+        }
+        graphics.dispose();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "PNG", bytes);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    // text -> {minX, minY, maxX, maxY}
+    private static Map<String, float[]> boxes(ReceiptGeometry geometry) {
+        Map<String, float[]> boxes = new HashMap<>();
+        for (int w = 0; w < geometry.getWordCount(); w++) {
+            float[] box = {Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+            for (int p = geometry.pointStart(w); p < geometry.pointStart(w + 1); p++) {
+                box[0] = Math.min(box[0], geometry.pointX(p));
+                box[1] = Math.min(box[1], geometry.pointY(p));
+                box[2] = Math.max(box[2], geometry.pointX(p));
+                box[3] = Math.max(box[3], geometry.pointY(p));
+            }
+
+            float[] previous = boxes.put(geometry.text(w), box);
+            assertEquals(null, previous, "Word " + geometry.text(w) + " found twice");
+        }
+
+        return boxes;
+    }
+
+    @Test
+    public void tilesCoverTheImage() {
+        TiledTextRecognizer tiled = tiled(new RectangleRecognizer());
+
+        assertEquals(1, tiled.tileTops(200, 400).length);
+
+        for (int height : new int[] {401, 700, 2000, 2003, 10000}) {
+            int[] tops = tiled.tileTops(200, height);
+
+            assertEquals(0, tops[0]);
+            assertEquals(height, tops[tops.length - 1] + 400, "height " + height);
+            for (int i = 1; i < tops.length; i++)
+                assertTrue(tops[i - 1] + 400 - tops[i] >= 40, "tiles overlap at least 40px, height " + height);
+        }
+    }
+
+    @Test
+    public void sameWordsAsWholeImage() {
+        for (int height : new int[] {300, 1000, 2000, 4567}) {
+            byte[] image = receipt(200, height);
+
+            RectangleRecognizer recognizer = new RectangleRecognizer();
+            Map<String, float[]> expected = boxes(recognizer.recognize(image));
+            Map<String, float[]> actual = boxes(tiled(recognizer).recognize(image));
+
+            assertEquals(expected.keySet(), actual.keySet(), "height " + height);
+            for (String word : expected.keySet()) {
+                for (int i = 0; i < 4; i++)
+                    assertEquals(expected.get(word)[i], actual.get(word)[i], 1e-5, "height " + height + " word " + word);
+            }
+        }
+    }
+
+    private static ReceiptGeometry tile(String text, float minY, float maxY) {
+        ReceiptGeometry geometry = new ReceiptGeometry(1);
+        geometry.addWord(text);
+        geometry.addPoint(0.1f, minY);
+        geometry.addPoint(0.3f, minY);
+        geometry.addPoint(0.3f, maxY);
+        geometry.addPoint(0.1f, maxY);
+
+        return geometry;
+    }
+
+    @Test
+    public void wordOnTheBoundaryIsKeptOnce() {
+        // Tiles 0-400 and 360-760 split at 380. The first tile sees the word a bit below the second one, so by its
+        // center alone neither tile would own it.
+        ReceiptGeometry first = tile("MILK", 378 / 400f, 386 / 400f);
+        ReceiptGeometry second = tile("MILK", (375 - 360) / 400f, (383 - 360) / 400f);
+
+        ReceiptGeometry merged = TiledTextRecognizer.merge(List.of(first, second), new int[] {0, 360}, 400, 760);
+        assertEquals(1, merged.getWordCount());
+        assertEquals(378 / 760f, merged.pointY(0), 1e-5);
+
+        // Different words on the seam are both kept
+        ReceiptGeometry other = tile("EGGS", (375 - 360) / 400f, (383 - 360) / 400f);
+        assertEquals(2, TiledTextRecognizer.merge(List.of(first, other), new int[] {0, 360}, 400, 760).getWordCount());
+    }
+
+    @Test
+    public void tilesRunInParallel() {
+        RectangleRecognizer recognizer = new RectangleRecognizer();
+        recognizer.delayMillis = 100;
+
+        tiled(recognizer).recognize(receipt(200, 2000));
+
+        assertEquals(6, recognizer.calls.get());
+        assertEquals(4, recognizer.mostRunning.get());
+    }
+
+    @Test
+    public void notImagesArePassedThrough() {
+        FixtureTextRecognizer recognizer = new FixtureTextRecognizer();
+
+        ReceiptGeometry geometry = tiled(recognizer).recognize(FixtureTextRecognizer.image("small"));
+
+        assertEquals(1, recognizer.getCalls());
+        assertEquals(TextractFixtures.load("small").texts.size(), geometry.getWordCount());
+    }
+
+    @Test
+    public void failedTileFailsTheImage() {
+        RectangleRecognizer failing = new RectangleRecognizer() {
+            @Override
+            public ReceiptGeometry recognize(byte[] bytes) {
+                ReceiptGeometry geometry = super.recognize(bytes);
+                if (geometry.getWordCount() == 0)
+                    throw new IllegalStateException("Textract is down.");
+
+                return geometry;
+            }
+        };
+
+        // Only the last tile is past the end of the words
+        byte[] image = receipt(200, 2000);
+        BufferedImage blankBottom;
+        try {
+            blankBottom = ImageIO.read(new ByteArrayInputStream(image));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        Graphics2D graphics = blankBottom.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 1500, 200, 500);
+        graphics.dispose();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(blankBottom, "PNG", bytes);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+
+        assertThrows(IllegalStateException.class, () -> tiled(failing).recognize(bytes.toByteArray()));
+    }
+}
@@ -0,0 +1,544 @@
+package com.chavna.pantryproject;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+
+import org.junit.jupiter.api.Test;
+
+import com.chavna.pantryproject.Uploader.RejectReason;
+import com.chavna.pantryproject.Uploader.RejectedException;
+import com.chavna.pantryproject.Uploader.Upload;
+
+public class UploaderTests {
+    // Every store, however big the upload is
+    private static final ChunkStore.Factory[] STORES = {ChunkStore.Direct::new, ChunkStore.TempFile::new};
+
+    private static byte[] chunk(byte[] file, Upload upload, int index) {
+        int start = index * upload.getChunkSize();
+        int end = Math.min(start + upload.getChunkSize(), file.length);
+
+        byte[] chunk = new byte[end - start];
+        System.arraycopy(file, start, chunk, 0, chunk.length);
+
+        return chunk;
+    }
+
+    @Test
+    public void chunksInAnyOrder() {
+        for (ChunkStore.Factory stores : STORES)
+            chunksInAnyOrder(Uploader.builder().chunkStores(stores).build());
+    }
+
+    private void chunksInAnyOrder(Uploader uploader) {
+        Random rng = new Random(1);
+
+        for (int size : new int[] {1, 99, 100, 101, 6400, 6401, 12345}) {
+            byte[] file = new byte[size];
+            rng.nextBytes(file);
+
+            Upload upload = uploader.initializeUpload(100, size, null);
+
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < upload.getChunkCount(); i++)
+                order.add(i);
+            Collections.shuffle(order, rng);
+
+            for (int n = 0; n < order.size(); n++) {
+                assertFalse(upload.isComplete());
+                assertEquals(n == order.size() - 1, upload.uploadChunk(order.get(n), chunk(file, upload, order.get(n))));
+            }
+
+            assertTrue(upload.isComplete());
+            assertArrayEquals(file, ChunkStore.toBytes(upload.finish()));
+            assertNull(uploader.getUpload(upload.getUploadId()));
+        }
+    }
+
+    @Test
+    public void badChunks() {
+        Uploader uploader = Uploader.builder().build();
+        Upload upload = uploader.initializeUpload(100, 250, null);
+
+        assertThrows(IndexOutOfBoundsException.class, () -> upload.uploadChunk(3, new byte[50]));
+        assertThrows(IndexOutOfBoundsException.class, () -> upload.uploadChunk(-1, new byte[100]));
+        assertThrows(IllegalArgumentException.class, () -> upload.uploadChunk(0, new byte[50]));
+        assertThrows(IllegalArgumentException.class, () -> upload.uploadChunk(2, new byte[100]));
+
+        upload.uploadChunk(0, new byte[100]);
+        assertThrows(IllegalArgumentException.class, () -> upload.uploadChunk(0, new byte[100]));
+        assertThrows(IllegalStateException.class, upload::finish);
+
+        upload.uploadChunk(1, new byte[100]);
+        upload.uploadChunk(2, new byte[50]);
+        upload.finish();
+
+        assertThrows(IllegalStateException.class, upload::finish);
+        assertThrows(IllegalStateException.class, upload::isComplete);
+        assertThrows(IllegalStateException.class, () -> upload.uploadChunk(1, new byte[100]));
+    }
+
+    /***
+     * Many uploads at once with their chunks spread over many threads in random order, every chunk sent twice.
+     * Each chunk is accepted exactly once, exactly one call completes each upload, and the bytes come out right.
+     */
+    @Test
+    public void concurrentChunks() throws Exception {
+        for (ChunkStore.Factory stores : STORES)
+            concurrentChunks(Uploader.builder().chunkStores(stores).build());
+    }
+
+    private void concurrentChunks(Uploader uploader) throws Exception {
+        final int uploadCount = 200;
+        final int threads = 16;
+
+        Random rng = new Random(2);
+
+        byte[][] files = new byte[uploadCount][];
+        Upload[] uploads = new Upload[uploadCount];
+        List<int[]> sends = new ArrayList<>(); // {upload, chunk}
+        for (int u = 0; u < uploadCount; u++) {
+            files[u] = new byte[1 + rng.nextInt(64 * 1024)];
+            rng.nextBytes(files[u]);
+            uploads[u] = uploader.initializeUpload(64 + rng.nextInt(2048), files[u].length, null);
+
+            for (int c = 0; c < uploads[u].getChunkCount(); c++) {
+                sends.add(new int[] {u, c});
+                sends.add(new int[] {u, c});
+            }
+        }
+        Collections.shuffle(sends, rng);
+
+        AtomicInteger[] completions = new AtomicInteger[uploadCount];
+        AtomicInteger[] accepted = new AtomicInteger[uploadCount];
+        for (int u = 0; u < uploadCount; u++) {
+            completions[u] = new AtomicInteger();
+            accepted[u] = new AtomicInteger();
+        }
+        AtomicInteger duplicates = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            futures.add(executor.submit(() -> {
+                start.await();
+
+                for (int i = thread; i < sends.size(); i += threads) {
+                    int u = sends.get(i)[0];
+                    int c = sends.get(i)[1];
+                    try {
+                        if (uploads[u].uploadChunk(c, chunk(files[u], uploads[u], c)))
+                            completions[u].incrementAndGet();
+                        accepted[u].incrementAndGet();
+                    } catch (IllegalArgumentException | IllegalStateException ex) {
+                        duplicates.incrementAndGet();
+                    }
+                }
+
+                return null;
+            }));
+        }
+
+        start.countDown();
+        for (Future<?> future : futures)
+            future.get(60, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        assertEquals(sends.size() / 2, duplicates.get());
+        for (int u = 0; u < uploadCount; u++) {
+            assertEquals(uploads[u].getChunkCount(), accepted[u].get());
+            assertEquals(1, completions[u].get());
+            assertTrue(uploads[u].isComplete());
+            assertArrayEquals(files[u], ChunkStore.toBytes(uploads[u].finish()));
+        }
+    }
+
+    /***
+     * Whoever completes the upload finishes it while the duplicates are still arriving, like UploadController does.
+     */
+    @Test
+    public void finishRacesWithLateChunks() throws Exception {
+        Uploader uploader = Uploader.builder().build();
+        Random rng = new Random(3);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int round = 0; round < 200; round++) {
+            byte[] file = new byte[4096];
+            rng.nextBytes(file);
+            Upload upload = uploader.initializeUpload(128, file.length, null);
+
+            AtomicInteger finishes = new AtomicInteger();
+            byte[][] finished = new byte[1][];
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int c = 0; c < upload.getChunkCount(); c++) {
+                        try {
+                            if (upload.uploadChunk(c, chunk(file, upload, c))) {
+                                finished[0] = ChunkStore.toBytes(upload.finish());
+                                finishes.incrementAndGet();
+                            }
+                        } catch (IllegalArgumentException | IllegalStateException ex) {
+                            // Someone else sent it first, or it's already finished
+                        }
+                    }
+
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures)
+                future.get(10, TimeUnit.SECONDS);
+
+            assertEquals(1, finishes.get());
+            assertArrayEquals(file, finished[0]);
+            assertNull(uploader.getUpload(upload.getUploadId()));
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void streamedChunks() throws Exception {
+        for (ChunkStore.Factory stores : STORES) {
+            Uploader uploader = Uploader.builder().chunkStores(stores).build();
+            Random rng = new Random(6);
+
+            byte[] file = new byte[1234];
+            rng.nextBytes(file);
+            Upload upload = uploader.initializeUpload(500, file.length, null);
+
+            assertFalse(upload.uploadChunk(2, new ByteArrayInputStream(chunk(file, upload, 2))));
+
+            // Cut short, the chunk can be sent again
+            byte[] first = chunk(file, upload, 0);
+            assertThrows(IllegalArgumentException.class, () -> upload.uploadChunk(0, new ByteArrayInputStream(first, 0, 300)));
+            assertFalse(upload.uploadChunk(0, new ByteArrayInputStream(first)));
+
+            // Too long, same
+            byte[] second = chunk(file, upload, 1);
+            byte[] tooLong = Arrays.copyOf(second, second.length + 1);
+            assertThrows(IllegalArgumentException.class, () -> upload.uploadChunk(1, new ByteArrayInputStream(tooLong)));
+            assertTrue(upload.uploadChunk(1, new ByteArrayInputStream(second)));
+
+            assertArrayEquals(file, ChunkStore.toBytes(upload.finish()));
+
+            // The whole file at once
+            Upload whole = uploader.initializeUpload(500, file.length, null);
+            assertThrows(IllegalArgumentException.class, () -> whole.uploadAll(new ByteArrayInputStream(file, 0, 1000)));
+            Upload retried = uploader.initializeUpload(500, file.length, null);
+            assertTrue(retried.uploadAll(new ByteArrayInputStream(file)));
+            assertArrayEquals(file, ChunkStore.toBytes(retried.finish()));
+        }
+    }
+
+    @Test
+    public void uploadAllResumes() throws Exception {
+        for (ChunkStore.Factory stores : STORES) {
+            Uploader uploader = Uploader.builder().chunkStores(stores).build();
+            Random rng = new Random(8);
+
+            byte[] file = new byte[1234];
+            rng.nextBytes(file);
+            Upload upload = uploader.initializeUpload(500, file.length, null);
+
+            // Cut off partway through chunk 1, chunk 0 is kept
+            assertThrows(IllegalArgumentException.class, () -> upload.uploadAll(new ByteArrayInputStream(file, 0, 700)));
+            assertArrayEquals(new int[] {1, 2}, upload.getMissingChunks());
+
+            // Cut off again, this time while reading past chunk 0
+            assertThrows(IllegalArgumentException.class, () -> upload.uploadAll(new ByteArrayInputStream(file, 0, 300)));
+            assertArrayEquals(new int[] {1, 2}, upload.getMissingChunks());
+
+            // A chunk sent on its own in the meantime is read past too
+            assertFalse(upload.uploadChunk(2, chunk(file, upload, 2)));
+
+            // Sending the whole file again fills in the rest
+            assertTrue(upload.uploadAll(new ByteArrayInputStream(file)));
+            assertArrayEquals(file, ChunkStore.toBytes(upload.finish()));
+
+            // Extra bytes at the end are still caught when the last chunk is one that's read past
+            Upload tooLong = uploader.initializeUpload(500, file.length, null);
+            assertFalse(tooLong.uploadChunk(2, chunk(file, tooLong, 2)));
+            assertThrows(IllegalArgumentException.class, () -> tooLong.uploadAll(new ByteArrayInputStream(Arrays.copyOf(file, file.length + 1))));
+            assertArrayEquals(new int[] {}, tooLong.getMissingChunks());
+
+            // The upload is complete but that request failed, so the next try is told to finish it
+            assertTrue(tooLong.uploadAll(new ByteArrayInputStream(file)));
+            assertArrayEquals(file, ChunkStore.toBytes(tooLong.finish()));
+        }
+    }
+
+    @Test
+    public void checksums() throws Exception {
+        for (ChunkStore.Factory stores : STORES) {
+            Uploader uploader = Uploader.builder().chunkStores(stores).build();
+            Random rng = new Random(13);
+
+            byte[] file = new byte[1234];
+            rng.nextBytes(file);
+            Upload upload = uploader.initializeUpload(500, file.length, null);
+
+            long[] sums = new long[upload.getChunkCount()];
+            for (int i = 0; i < sums.length; i++) {
+                CRC32C crc = new CRC32C();
+                crc.update(chunk(file, upload, i));
+                sums[i] = crc.getValue();
+            }
+
+            // Mangled on the way, the chunk isn't kept and can be sent again
+            byte[] first = chunk(file, upload, 0);
+            byte[] mangled = first.clone();
+            mangled[7] ^= 1;
+            assertThrows(IllegalArgumentException.class, () -> upload.uploadChunk(0, mangled, sums[0]));
+            assertArrayEquals(new int[] {0, 1, 2}, upload.getMissingChunks());
+            assertFalse(upload.uploadChunk(0, first, sums[0]));
+
+            // Same when streamed, where the bytes are already in the store by the time it's checked
+            byte[] second = chunk(file, upload, 1);
+            assertThrows(IllegalArgumentException.class, () -> upload.uploadChunk(1, new ByteArrayInputStream(second), sums[1] ^ 1));
+            assertArrayEquals(new int[] {1, 2}, upload.getMissingChunks());
+            assertFalse(upload.uploadChunk(1, new ByteArrayInputStream(second), sums[1]));
+
+            // Without one nothing is checked
+            assertTrue(upload.uploadChunk(2, new ByteArrayInputStream(chunk(file, upload, 2)), null));
+
+            assertArrayEquals(file, ChunkStore.toBytes(upload.finish()));
+        }
+    }
+
+    @Test
+    public void tempFilesAreDeleted() throws Exception {
+        List<ChunkStore.TempFile> stores = Collections.synchronizedList(new ArrayList<>());
+        Uploader uploader = Uploader.builder()
+            .idleTimeout(Duration.ofSeconds(10))
+            .chunkStores((int size) -> {
+                ChunkStore.TempFile store = new ChunkStore.TempFile(size);
+                stores.add(store);
+                return store;
+            })
+            .build();
+
+        byte[] file = new byte[1000];
+        new Random(4).nextBytes(file);
+
+        Upload finished = uploader.initializeUpload(600, file.length, null);
+        Upload abandoned = uploader.initializeUpload(600, file.length, null);
+        Path finishedPath = stores.get(0).getPath();
+        Path abandonedPath = stores.get(1).getPath();
+        assertTrue(Files.exists(finishedPath));
+        assertEquals(file.length, Files.size(finishedPath));
+
+        finished.uploadChunk(1, chunk(file, finished, 1));
+        finished.uploadChunk(0, chunk(file, finished, 0));
+        ByteBuffer data = finished.finish();
+        assertFalse(Files.exists(finishedPath));
+        // Still readable after the file is gone
+        assertArrayEquals(file, ChunkStore.toBytes(data));
+
+        abandoned.uploadChunk(0, chunk(file, abandoned, 0));
+        uploader.setIdleTimeout(Duration.ZERO);
+        for (int i = 0; i < 500 && uploader.getUpload(abandoned.getUploadId()) != null; i++)
+            Thread.sleep(10);
+
+        assertNull(uploader.getUpload(abandoned.getUploadId()));
+        assertFalse(Files.exists(abandonedPath));
+        assertThrows(IllegalStateException.class, () -> abandoned.uploadChunk(1, chunk(file, abandoned, 1)));
+    }
+
+    @Test
+    public void idleUploadsExpire() throws Exception {
+        Uploader uploader = Uploader.builder()
+            .idleTimeout(Duration.ofMillis(300))
+            .build();
+
+        byte[] file = new byte[1000];
+        Upload steady = uploader.initializeUpload(100, file.length, null);
+        Upload idle = uploader.initializeUpload(100, file.length, null);
+        assertEquals(2 * file.length, uploader.getReservedBytes());
+
+        // Longer than the timeout altogether, but never idle for that long
+        for (int c = 0; c < 9; c++) {
+            steady.uploadChunk(c, chunk(file, steady, c));
+            Thread.sleep(100);
+        }
+
+        assertNull(uploader.getUpload(idle.getUploadId()));
+        assertThrows(IllegalStateException.class, () -> idle.uploadChunk(0, chunk(file, idle, 0)));
+        assertEquals(steady, uploader.getUpload(steady.getUploadId()));
+        assertEquals(file.length, uploader.getReservedBytes());
+
+        assertTrue(steady.uploadChunk(9, chunk(file, steady, 9)));
+        steady.finish();
+        assertEquals(0, uploader.getReservedBytes());
+    }
+
+    @Test
+    public void maxLifetime() throws Exception {
+        Uploader uploader = Uploader.builder()
+            .idleTimeout(Duration.ofSeconds(10))
+            .maxLifetime(Duration.ofMillis(300))
+            .build();
+
+        byte[] file = new byte[1000];
+        Upload upload = uploader.initializeUpload(100, file.length, null);
+        long start = System.nanoTime();
+
+        // Chunks keep coming until it's canceled
+        int c = 0;
+        try {
+            for (; c < upload.getChunkCount(); c++) {
+                upload.uploadChunk(c, chunk(file, upload, c));
+                Thread.sleep(50);
+            }
+        } catch (IllegalStateException ex) {}
+
+        long lived = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(c < upload.getChunkCount());
+        assertTrue(lived >= 300 && lived < 2000, "lived " + lived + "ms");
+        assertNull(uploader.getUpload(upload.getUploadId()));
+    }
+
+    @Test
+    public void missingChunks() {
+        Uploader uploader = Uploader.builder().build();
+        byte[] file = new byte[1000];
+        Upload upload = uploader.initializeUpload(64, file.length, null);
+
+        assertArrayEquals(IntStream.range(0, 16).toArray(), upload.getMissingChunks());
+
+        for (int c : new int[] {0, 3, 15, 7})
+            upload.uploadChunk(c, chunk(file, upload, c));
+        assertArrayEquals(new int[] {1, 2, 4, 5, 6, 8, 9, 10, 11, 12, 13, 14}, upload.getMissingChunks());
+
+        // Resuming from the list finishes it
+        for (int c : upload.getMissingChunks())
+            upload.uploadChunk(c, chunk(file, upload, c));
+        assertArrayEquals(new int[0], upload.getMissingChunks());
+
+        upload.finish();
+        assertThrows(IllegalStateException.class, upload::getMissingChunks);
+    }
+
+    @Test
+    public void budgets() {
+        Uploader uploader = Uploader.builder()
+            .maxBytes(1000)
+            .maxBytesPerUser(500)
+            .build();
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+
+        Upload a = uploader.initializeUpload(100, 400, first, null);
+        RejectedException ex = assertThrows(RejectedException.class, () -> uploader.initializeUpload(100, 200, first, null));
+        assertEquals(RejectReason.USER_BUDGET_FULL, ex.getReason());
+
+        // Other users aren't affected, until everything is full
+        Upload b = uploader.initializeUpload(100, 400, second, null);
+        ex = assertThrows(RejectedException.class, () -> uploader.initializeUpload(100, 300, null, null));
+        assertEquals(RejectReason.BUDGET_FULL, ex.getReason());
+        assertEquals(800, uploader.getReservedBytes());
+
+        // Finishing gives the bytes back
+        for (int c = 0; c < a.getChunkCount(); c++)
+            a.uploadChunk(c, new byte[100]);
+        assertEquals(400, uploader.getFilledBytes());
+        a.finish();
+        assertEquals(400, uploader.getReservedBytes());
+        assertEquals(0, uploader.getFilledBytes());
+
+        uploader.initializeUpload(100, 500, first, null);
+        assertEquals(900, uploader.getReservedBytes());
+        assertEquals(b, uploader.getUpload(b.getUploadId()));
+    }
+
+    @Test
+    public void expiredUploadsGiveTheirBudgetBack() throws Exception {
+        Uploader uploader = Uploader.builder()
+            .idleTimeout(Duration.ofMillis(100))
+            .maxBytesPerUser(500)
+            .build();
+        UUID owner = UUID.randomUUID();
+
+        Upload upload = uploader.initializeUpload(100, 500, owner, null);
+        assertThrows(RejectedException.class, () -> uploader.initializeUpload(100, 1, owner, null));
+
+        for (int i = 0; i < 100 && uploader.getUpload(upload.getUploadId()) != null; i++)
+            Thread.sleep(10);
+
+        assertEquals(0, uploader.getReservedBytes());
+        uploader.initializeUpload(100, 500, owner, null);
+    }
+
+    @Test
+    public void chunksWaitForTheirTurn() throws Exception {
+        Uploader uploader = Uploader.builder()
+            .maxReceivingBytes(150)
+            .build();
+        Upload upload = uploader.initializeUpload(100, 300, null);
+
+        // A slow client, half way through its chunk
+        PipedOutputStream client = new PipedOutputStream();
+        PipedInputStream slow = new PipedInputStream(client, 100);
+        client.write(new byte[50]);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Boolean> receiving = executor.submit(() -> upload.uploadChunk(0, slow));
+        while (slow.available() > 0)
+            Thread.sleep(1);
+
+        RejectedException ex = assertThrows(RejectedException.class, () -> upload.uploadChunk(1, new byte[100]));
+        assertEquals(RejectReason.TOO_MANY_CHUNKS, ex.getReason());
+
+        client.write(new byte[50]);
+        client.close();
+        assertFalse(receiving.get(10, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        // The rejected chunk can be sent again
+        assertFalse(upload.uploadChunk(1, new byte[100]));
+        assertTrue(upload.uploadChunk(2, new byte[100]));
+    }
+
+    @Test
+    public void inputStream() throws Exception {
+        byte[] bytes = new byte[300];
+        new Random(5).nextBytes(bytes);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+
+        InputStream in = ChunkStore.inputStream(buffer);
+        assertEquals(bytes[0] & 0xFF, in.read());
+        assertArrayEquals(Arrays.copyOfRange(bytes, 1, bytes.length), in.readAllBytes());
+        assertEquals(-1, in.read());
+
+        // The buffer itself isn't moved
+        assertEquals(0, buffer.position());
+    }
+}
@@ -4,7 +4,7 @@ import { View, StyleSheet, Image, ViewStyle, LayoutChangeEvent, ImageLoadEvent,
 import { router, useLocalSearchParams, type Href } from 'expo-router';
 import { Gesture, GestureDetector, GestureHandlerRootView } from 'react-native-gesture-handler';
 import Animated, { useAnimatedStyle, useSharedValue } from 'react-native-reanimated';
-import { API_URL, loadFileBytes, retrieveValue, UploadInfo, Response, uploadChunks } from './util';
+import { API_URL, fetchWithBackoff, loadFileBytes, retrieveValue, UploadInfo, Response, uploadChunks } from './util';
 import { ConfirmationItem } from './scannerConfirmation';
 import { FlipType, SaveFormat, useImageManipulator } from 'expo-image-manipulator';
 
@@ -96,7 +96,7 @@ export default function Splash() {
     };
 
     const processPhoto = async (uploadId: string): Promise<Line[]> => {
-        const response = await fetch(`${API_URL}/scan-receipt`, {
+        const response = await fetchWithBackoff(`${API_URL}/scan-receipt`, {
             method: 'POST',
             headers: {
                 'Content-Type': 'application/json'
@@ -1,6 +1,5 @@
 import * as SecureStore from 'expo-secure-store';
 import { File } from "expo-file-system";
-import base64 from "react-native-base64";
 import { useEffect, useState } from 'react';
 import { GestureStateChangeEvent, TapGestureHandlerEventPayload } from 'react-native-gesture-handler';
 
@@ -66,25 +65,80 @@ export type UploadInfo = {
     chunkSize: number
 };
 
+// Files up to this size are sent in one request (matches UploadController.MAX_SINGLE_REQUEST_SIZE)
+const MAX_SINGLE_REQUEST_SIZE = 8 * 1024 * 1024;
+
+// Sends the request again when the server says it's too busy (429), after waiting as long as it asks
+export async function fetchWithBackoff(url: string, init: RequestInit, attempts = 5): Promise<globalThis.Response> {
+    for (let attempt = 1; ; attempt++) {
+        const response = await fetch(url, init);
+
+        if (response.status !== 429 || attempt >= attempts)
+            return response;
+
+        const seconds = Number(response.headers.get('Retry-After') ?? 1);
+        await new Promise(resolve => setTimeout(resolve, (isNaN(seconds) ? 1 : seconds) * 1000));
+    }
+}
+
+// CRC32C (Castagnoli), sent with each chunk so the server can turn away one that got mangled on the way
+const CRC32C_TABLE = (() => {
+    const table = new Uint32Array(256);
+    for (let n = 0; n < 256; n++) {
+        let c = n;
+        for (let k = 0; k < 8; k++)
+            c = c & 1 ? (c >>> 1) ^ 0x82F63B78 : c >>> 1;
+        table[n] = c >>> 0;
+    }
+    return table;
+})();
+
+function crc32c(bytes: Uint8Array): number {
+    let crc = 0xFFFFFFFF;
+    for (let i = 0; i < bytes.length; i++)
+        crc = CRC32C_TABLE[(crc ^ bytes[i]) & 0xFF] ^ (crc >>> 8);
+    return (crc ^ 0xFFFFFFFF) >>> 0;
+}
+
+// A chunk whose checksum didn't match is sent again right away, it hasn't been counted
+async function sendChunk(url: string, chunk: Uint8Array, attempts = 3): Promise<globalThis.Response> {
+    for (let attempt = 1; ; attempt++) {
+        const response = await fetchWithBackoff(url, {
+            method: 'POST',
+            headers: {
+                'Content-Type': 'application/octet-stream',
+                'Chunk-CRC32C': crc32c(chunk).toString()
+            },
+            body: chunk
+        });
+
+        if (attempt >= attempts)
+            return response;
+
+        const body = await response.clone().json().catch(() => null);
+        if (body?.message !== "Chunk checksum doesn't match.")
+            return response;
+    }
+}
+
 export async function uploadChunks(data: Uint8Array, uploadInfo: UploadInfo) {
     let requests = [];
 
-    for (let i = 0; i < uploadInfo.chunkCount; i++) {
-        const start = i * uploadInfo.chunkSize;
-        const end = Math.min(start + uploadInfo.chunkSize, data.length);
-
-        const chunk = data.slice(start, end);
-        requests.push(fetch(`${API_URL}/upload-chunk`, {
+    if (data.length <= MAX_SINGLE_REQUEST_SIZE) {
+        requests.push(fetchWithBackoff(`${API_URL}/upload/${uploadInfo.uploadId}`, {
             method: 'POST',
             headers: {
-                'Content-Type': 'application/json'
+                'Content-Type': 'application/octet-stream'
             },
-            body: JSON.stringify({
-                uploadId: uploadInfo.uploadId,
-                index: i,
-                base64Data: base64.encodeFromByteArray(chunk)
-            })
+            body: data
         }));
+    } else {
+        for (let i = 0; i < uploadInfo.chunkCount; i++) {
+            const start = i * uploadInfo.chunkSize;
+            const end = Math.min(start + uploadInfo.chunkSize, data.length);
+
+            requests.push(sendChunk(`${API_URL}/upload-chunk/${uploadInfo.uploadId}/${i}`, data.subarray(start, end)));
+        }
     }
 
     const responses = await Promise.all(requests);